@@ -0,0 +1,201 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * 処理結果をまとめてbulkで登録する。件数、バイト数、経過時間のどれかが上限に達したら送る。
+ * 同時に送るbulkはconcurrentRequests件までで、それ以上は {@link #add} が空くまでブロックする。
+ * 混んでいて断られた(429)ドキュメントは、間隔を伸ばしながら送り直す
+ */
+public class BulkIndexer implements AutoCloseable {
+
+    private final String index;
+    private final BulkProcessor processor;
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    // beforeBulkの直後に空きを待ち、空いたら同じスレッドでbulkを送るので、その間を待った時間とする
+    private final ThreadLocal<Long> waitingSince = new ThreadLocal<>();
+    private volatile String lastFailure;
+    private volatile long firstAdd;
+    private volatile long lastResponse;
+
+    /**
+     * インデックスがなければ {@link #createIndexRequest} のマッピングで作る
+     */
+    public BulkIndexer(Client client, String index) {
+        this(client::bulk, index, 1000, new ByteSizeValue(5, ByteSizeUnit.MB), TimeValue.timeValueSeconds(1), 2,
+                BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(50), 8));
+        try {
+            client.admin().indices().create(createIndexRequest(index)).actionGet();
+        } catch (ElasticsearchException e) {
+            // 既にあれば、そのマッピングのまま使う
+            if (!(ExceptionsHelper.unwrapCause(e) instanceof ResourceAlreadyExistsException)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param bulk               bulkリクエストを送る先。テストではクラスタの代わりを渡す
+     * @param concurrentRequests 応答を待たずに送っておけるbulkの数。0なら {@link #add} の中で応答まで待つ
+     * @param backoff            断られた時に送り直す間隔と回数
+     */
+    public BulkIndexer(BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulk, String index, int maxActions,
+                       ByteSizeValue maxBytes, TimeValue flushInterval, int concurrentRequests, BackoffPolicy backoff) {
+        this.index = index;
+        this.processor = BulkProcessor.builder((request, listener) -> {
+            Long since = waitingSince.get();
+            if (since != null) {
+                // 送り直しは別のスレッドから来るので、ここには入らない
+                waitingSince.remove();
+                blockedNanos.addAndGet(System.nanoTime() - since);
+            }
+            bulk.accept(request, listener);
+        }, new Listener())
+                .setBulkActions(maxActions)
+                .setBulkSize(maxBytes)
+                .setFlushInterval(flushInterval)
+                .setConcurrentRequests(concurrentRequests)
+                .setBackoffPolicy(backoff)
+                .build();
+    }
+
+    /**
+     * {@link ScanDocument} を入れるインデックス。hashなどの文字列はkeywordなので、並べ替えや完全一致に使える
+     */
+    public static CreateIndexRequest createIndexRequest(String index) {
+        return new CreateIndexRequest(index).mapping("_doc", ScanDocument.mapping());
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            waitingSince.set(System.nanoTime());
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            // 送り直しても断られ続けたものは、ここで失敗として返ってくる
+            long failures = 0;
+            for (BulkItemResponse item : response) {
+                if (item.isFailed()) {
+                    failures++;
+                    lastFailure = item.getFailureMessage();
+                }
+            }
+            record(request.numberOfActions() - failures, failures);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            lastFailure = failure.toString();
+            record(0, request.numberOfActions());
+        }
+
+        private void record(long succeeded, long failures) {
+            indexed.addAndGet(succeeded);
+            failed.addAndGet(failures);
+            bulks.incrementAndGet();
+            lastResponse = System.nanoTime();
+        }
+    }
+
+    /**
+     * 送っているbulkが上限に達していれば、どれかの応答が返るまでブロックする
+     */
+    public void add(ScanDocument document) {
+        IndexRequest request = new IndexRequest(index).id(document.getHash()).source(document.toXContent());
+        if (added.getAndIncrement() == 0) {
+            firstAdd = System.nanoTime();
+        }
+        processor.add(request);
+    }
+
+    /**
+     * 溜まっている分をすぐに送る。応答は待たない
+     */
+    public void flush() {
+        processor.flush();
+    }
+
+    public long addedCount() {
+        return added.get();
+    }
+
+    public long indexedCount() {
+        return indexed.get();
+    }
+
+    /**
+     * 送り直しても登録できなかった件数
+     */
+    public long failedCount() {
+        return failed.get();
+    }
+
+    public long bulkCount() {
+        return bulks.get();
+    }
+
+    /**
+     * 最後に失敗した理由。失敗していなければnull
+     */
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * 同時に送れるbulkの上限が空くのを待った時間の合計。送り先が追いつけていないほど長くなる
+     */
+    public long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * 最初の追加から最後の応答までで、1秒あたりに登録できた件数
+     */
+    public double docsPerSecond() {
+        long elapsed = lastResponse - firstAdd;
+        return elapsed <= 0 ? 0 : indexed.get() / (elapsed / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d indexed, %d failed in %d bulks, %.0f docs/sec, blocked %.1f ms",
+                indexedCount(), failedCount(), bulkCount(), docsPerSecond(), blockedNanos() / 1e6);
+    }
+
+    /**
+     * 溜まっている分を送り、全ての応答を待ってから閉じる
+     */
+    @Override
+    public void close() {
+        try {
+            processor.awaitClose(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * 書類を1枚処理した結果。IDは入力の内容のハッシュなので、同じ画像を入れ直しても上書きになる
+ */
+public final class ScanDocument {
+
+    private final String hash;
+    private final String path;
+    private final float[] corners;
+    private final int width;
+    private final int height;
+    private final Map<String, Long> stageMicros;
+    private final String output;
+    private final long scannedAt;
+
+    /**
+     * @param hash        入力の内容のハッシュ。IDと {@link ScanExporter#searchAfter} の並び順に使うので必須
+     * @param corners     元画像での四隅(x0, y0, ... x3, y3)。見つからなかった場合はnull
+     * @param stageMicros 段ごとの処理時間
+     * @param output      補正後の画像を書き出した場所。書き出していなければnull
+     */
+    public ScanDocument(String hash, String path, float[] corners, int width, int height,
+                        Map<String, Long> stageMicros, String output, long scannedAt) {
+        if (hash == null) {
+            throw new IllegalArgumentException("hash must not be null");
+        }
+        if (corners != null && corners.length != 8) {
+            throw new IllegalArgumentException("corners must have 8 values: " + corners.length);
+        }
+        this.hash = hash;
+        this.path = path;
+        this.corners = corners == null ? null : corners.clone();
+        this.width = width;
+        this.height = height;
+        this.stageMicros = Map.copyOf(stageMicros);
+        this.output = output;
+        this.scannedAt = scannedAt;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * 動的マッピングに任せると文字列はtextになり、hashで並べ替えられないので、インデックスを作る時に渡す
+     */
+    static XContentBuilder mapping() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject("properties");
+            builder.startObject("hash").field("type", "keyword").endObject();
+            builder.startObject("path").field("type", "keyword").endObject();
+            builder.startObject("found").field("type", "boolean").endObject();
+            builder.startObject("corners").field("type", "float").endObject();
+            builder.startObject("width").field("type", "integer").endObject();
+            builder.startObject("height").field("type", "integer").endObject();
+            builder.startObject("output").field("type", "keyword").endObject();
+            builder.startObject("scanned_at").field("type", "date").field("format", "epoch_millis").endObject();
+            // stage_microsは段の名前がキーになるので、動的マッピングでlongにする
+            return builder.endObject().endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    XContentBuilder toXContent() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.field("hash", hash);
+            builder.field("path", path);
+            builder.field("found", corners != null);
+            if (corners != null) {
+                builder.startArray("corners");
+                for (int i = 0; i < 8; i += 2) {
+                    builder.startArray().value(corners[i]).value(corners[i + 1]).endArray();
+                }
+                builder.endArray();
+            }
+            builder.field("width", width);
+            builder.field("height", height);
+            builder.startObject("stage_micros");
+            for (Map.Entry<String, Long> stage : stageMicros.entrySet()) {
+                builder.field(stage.getKey(), stage.getValue());
+            }
+            builder.endObject();
+            builder.field("output", output);
+            builder.field("scanned_at", scannedAt);
+            return builder.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 登録した処理結果を、件数に関わらず一定のメモリで全て読み出す。
+ * 呼び出し側が今のページを読んでいる間に次のページを取りに行き、1つのカーソルが先読みするのは {@link #PREFETCH_PAGES} ページまで。
+ * 返すStreamは読み終わるか閉じるまでスクロールを持ち続けるので、try-with-resourcesで閉じること
+ */
+public class ScanExporter {
+
+    /**
+     * 検索に使う操作だけを切り出したもの。テストではクラスタの代わりを渡す
+     */
+    public interface Transport {
+        void search(SearchRequest request, ActionListener<SearchResponse> listener);
+
+        void searchScroll(SearchScrollRequest request, ActionListener<SearchResponse> listener);
+
+        void clearScroll(ClearScrollRequest request, ActionListener<ClearScrollResponse> listener);
+
+        static Transport of(Client client) {
+            return new Transport() {
+                @Override
+                public void search(SearchRequest request, ActionListener<SearchResponse> listener) {
+                    client.search(request, listener);
+                }
+
+                @Override
+                public void searchScroll(SearchScrollRequest request, ActionListener<SearchResponse> listener) {
+                    client.searchScroll(request, listener);
+                }
+
+                @Override
+                public void clearScroll(ClearScrollRequest request, ActionListener<ClearScrollResponse> listener) {
+                    client.clearScroll(request, listener);
+                }
+            };
+        }
+    }
+
+    /**
+     * 読み終わっていないページと取りに行っているページを合わせて、カーソルごとにこれだけ持つ
+     */
+    static final int PREFETCH_PAGES = 2;
+
+    private final Transport transport;
+    private final String index;
+    private final int pageSize;
+
+    public ScanExporter(Client client, String index, int pageSize) {
+        this(Transport.of(client), index, pageSize);
+    }
+
+    public ScanExporter(Transport transport, String index, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        }
+        this.transport = transport;
+        this.index = index;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * search_afterで1本ずつ読む。スクロールのようにサーバーに状態を残さない
+     *
+     * @param sortField 値が重複しないkeywordのフィールド。{@link BulkIndexer} が作ったインデックスならhash。
+     *                  動的マッピングで作られたインデックスではtextになっているので、hash.keywordを使う
+     */
+    public Stream<SearchHit> searchAfter(QueryBuilder query, String sortField) {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(query)
+                .size(pageSize)
+                .sort(sortField, SortOrder.ASC)
+                .trackTotalHits(false);
+        return stream(new Pages(List.of(new SearchAfterCursor(source))));
+    }
+
+    /**
+     * スライスしたスクロールで、slices本を並行に読む。ヒットの順番は決まらない
+     */
+    public Stream<SearchHit> slicedScroll(QueryBuilder query, int slices, TimeValue keepAlive) {
+        if (slices <= 0) {
+            throw new IllegalArgumentException("slices must be positive: " + slices);
+        }
+        List<Cursor> cursors = new ArrayList<>();
+        for (int i = 0; i < slices; i++) {
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(query)
+                    .size(pageSize)
+                    .sort("_doc");
+            if (slices > 1) {
+                source.slice(new SliceBuilder(i, slices));
+            }
+            cursors.add(new ScrollCursor(source, keepAlive));
+        }
+        return stream(new Pages(cursors));
+    }
+
+    private static Stream<SearchHit> stream(Pages pages) {
+        pages.start();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.NONNULL), false)
+                .onClose(pages::close);
+    }
+
+    /**
+     * 1本分の読み出し位置
+     */
+    private abstract class Cursor {
+        // 読み終わっていないページと、取りに行っているページの数
+        int outstanding;
+        SearchResponse paused;
+        boolean finished;
+
+        abstract void first(ActionListener<SearchResponse> listener);
+
+        abstract void next(SearchResponse previous, ActionListener<SearchResponse> listener);
+
+        void release() {
+        }
+    }
+
+    private class SearchAfterCursor extends Cursor {
+        private final SearchSourceBuilder source;
+
+        SearchAfterCursor(SearchSourceBuilder source) {
+            this.source = source;
+        }
+
+        @Override
+        void first(ActionListener<SearchResponse> listener) {
+            transport.search(new SearchRequest(index).source(source), listener);
+        }
+
+        @Override
+        void next(SearchResponse previous, ActionListener<SearchResponse> listener) {
+            SearchHit[] hits = previous.getHits().getHits();
+            SearchSourceBuilder after = source.shallowCopy().searchAfter(hits[hits.length - 1].getSortValues());
+            transport.search(new SearchRequest(index).source(after), listener);
+        }
+    }
+
+    private class ScrollCursor extends Cursor {
+        private final SearchSourceBuilder source;
+        private final TimeValue keepAlive;
+        private volatile String scrollId;
+
+        ScrollCursor(SearchSourceBuilder source, TimeValue keepAlive) {
+            this.source = source;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        void first(ActionListener<SearchResponse> listener) {
+            transport.search(new SearchRequest(index).source(source).scroll(keepAlive), remember(listener));
+        }
+
+        @Override
+        void next(SearchResponse previous, ActionListener<SearchResponse> listener) {
+            transport.searchScroll(new SearchScrollRequest(previous.getScrollId()).scroll(keepAlive), remember(listener));
+        }
+
+        private ActionListener<SearchResponse> remember(ActionListener<SearchResponse> listener) {
+            return ActionListener.wrap(response -> {
+                scrollId = response.getScrollId();
+                listener.onResponse(response);
+            }, listener::onFailure);
+        }
+
+        @Override
+        void release() {
+            String id = scrollId;
+            if (id != null) {
+                ClearScrollRequest request = new ClearScrollRequest();
+                request.addScrollId(id);
+                // 消せなくてもkeepAliveが切れれば消える
+                transport.clearScroll(request, ActionListener.wrap(response -> {}, e -> {}));
+            }
+        }
+    }
+
+    private static final class Page {
+        final Cursor cursor;
+        final SearchHit[] hits;
+        final boolean last;
+        final Exception error;
+
+        Page(Cursor cursor, SearchHit[] hits, boolean last, Exception error) {
+            this.cursor = cursor;
+            this.hits = hits;
+            this.last = last;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 各カーソルが取ってきたページを届いた順に渡す。ページを渡し終えるたびに、止めていたカーソルを再開する
+     */
+    private class Pages implements Iterator<SearchHit> {
+        private final List<Cursor> cursors;
+        private final BlockingQueue<Page> ready = new LinkedBlockingQueue<>();
+        private int running;
+        private Page current;
+        private int position;
+        private boolean closed;
+
+        Pages(List<Cursor> cursors) {
+            this.cursors = cursors;
+            this.running = cursors.size();
+        }
+
+        void start() {
+            for (Cursor cursor : cursors) {
+                synchronized (this) {
+                    cursor.outstanding++;
+                }
+                cursor.first(listener(cursor));
+            }
+        }
+
+        private ActionListener<SearchResponse> listener(Cursor cursor) {
+            return ActionListener.wrap(response -> received(cursor, response),
+                    e -> ready.add(new Page(cursor, null, true, e)));
+        }
+
+        private void received(Cursor cursor, SearchResponse response) {
+            SearchHit[] hits = response.getHits().getHits();
+            boolean fetchNext;
+            synchronized (this) {
+                if (closed) {
+                    cursor.release();
+                    return;
+                }
+                // 1ページに満たなければ、次を取りに行かなくても最後だと分かる
+                cursor.finished = hits.length < pageSize;
+                fetchNext = !cursor.finished && cursor.outstanding < PREFETCH_PAGES;
+                if (fetchNext) {
+                    cursor.outstanding++;
+                } else if (!cursor.finished) {
+                    cursor.paused = response;
+                }
+            }
+            if (cursor.finished) {
+                cursor.release();
+            }
+            ready.add(new Page(cursor, hits, cursor.finished, null));
+            if (fetchNext) {
+                cursor.next(response, listener(cursor));
+            }
+        }
+
+        /**
+         * 呼び出し側がページを読み終えた
+         */
+        private void consumed(Page page) {
+            SearchResponse resume;
+            synchronized (this) {
+                page.cursor.outstanding--;
+                resume = page.cursor.paused;
+                page.cursor.paused = null;
+                if (resume != null) {
+                    page.cursor.outstanding++;
+                }
+            }
+            if (resume != null) {
+                page.cursor.next(resume, listener(page.cursor));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || position >= current.hits.length) {
+                if (current != null) {
+                    if (current.last) {
+                        running--;
+                    } else {
+                        consumed(current);
+                    }
+                    current = null;
+                }
+                if (running == 0) {
+                    return false;
+                }
+                Page page;
+                try {
+                    page = ready.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ElasticsearchException("export interrupted", e);
+                }
+                if (page.error != null) {
+                    close();
+                    throw new ElasticsearchException("export failed", page.error);
+                }
+                current = page;
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.hits[position++];
+        }
+
+        /**
+         * 読み終わる前に閉じた場合も、残っているスクロールを消す
+         */
+        void close() {
+            List<Cursor> unfinished = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (Cursor cursor : cursors) {
+                    if (!cursor.finished) {
+                        unfinished.add(cursor);
+                    }
+                }
+            }
+            unfinished.forEach(Cursor::release);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BulkIndexerTest {
+
+    private static final BackoffPolicy FAST_BACKOFF = BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(1), 5);
+
+    @Test
+    void retriesRejectedDocumentsWithinConcurrencyLimit() {
+        int count = 20_000;
+        // 5件に1件は、最初に送った時に断る
+        try (InProcessCluster cluster = new InProcessCluster(5, (id, attempt) -> attempt == 1 && id.hashCode() % 5 == 0)) {
+            BulkIndexer indexer = new BulkIndexer(cluster, "scans", 500, new ByteSizeValue(5, ByteSizeUnit.MB),
+                    TimeValue.timeValueSeconds(10), 2, FAST_BACKOFF);
+            try (indexer) {
+                for (int i = 0; i < count; i++) {
+                    indexer.add(document(i));
+                }
+            }
+            assertThat(indexer.toString()).startsWith(count + " indexed, 0 failed in " + indexer.bulkCount() + " bulks");
+
+            assertThat(cluster.documents).hasSize(count);
+            assertThat(cluster.rejected.get()).isPositive();
+            assertThat(cluster.maxInFlight.get()).isLessThanOrEqualTo(2);
+            assertThat(indexer.indexedCount()).isEqualTo(count);
+            assertThat(indexer.failedCount()).isZero();
+            assertThat(indexer.docsPerSecond()).isPositive();
+
+            Map<String, Object> source = cluster.documents.get(hash(7));
+            assertThat(source).containsEntry("path", "page-7.png").containsEntry("found", true);
+            assertThat((List<?>) source.get("corners")).hasSize(4);
+            assertThat(((Map<?, ?>) source.get("stage_micros")).get("CANNY")).isEqualTo(7);
+        }
+    }
+
+    @Test
+    void documentsWithoutHashAreRejected() {
+        // IDを自動で振らせると、searchAfterで並べるhashが重複してしまう
+        assertThatThrownBy(() -> new ScanDocument(null, "page.png", null, 170, 240, Map.of(), null, 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void flushesBySizeAndTime() throws InterruptedException {
+        try (InProcessCluster cluster = new InProcessCluster(0, (id, attempt) -> false)) {
+            // 1件あたり約300バイトなので、1KBごとに数件ずつ送られる
+            try (BulkIndexer indexer = new BulkIndexer(cluster, "scans", 1000, new ByteSizeValue(1, ByteSizeUnit.KB),
+                    TimeValue.timeValueHours(1), 1, FAST_BACKOFF)) {
+                for (int i = 0; i < 20; i++) {
+                    indexer.add(document(i));
+                }
+            }
+            assertThat(cluster.bulkSizes).hasSizeGreaterThan(3).allMatch(size -> size < 10);
+        }
+
+        try (InProcessCluster cluster = new InProcessCluster(0, (id, attempt) -> false);
+             BulkIndexer indexer = new BulkIndexer(cluster, "scans", 1000, new ByteSizeValue(5, ByteSizeUnit.MB),
+                     TimeValue.timeValueMillis(50), 1, FAST_BACKOFF)) {
+            indexer.add(document(1));
+            // 閉じなくても、時間が経てば送られる
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (indexer.indexedCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(cluster.documents).containsOnlyKeys(hash(1));
+        }
+    }
+
+    @Test
+    void blockedTimeIsOnlyTheWaitForAFreeSlot() {
+        try (InProcessCluster cluster = new InProcessCluster(100, (id, attempt) -> false)) {
+            BulkIndexer indexer = new BulkIndexer(cluster, "scans", 1, new ByteSizeValue(5, ByteSizeUnit.MB),
+                    TimeValue.timeValueHours(1), 1, FAST_BACKOFF);
+            try (indexer) {
+                // 1件ごとに送るので、2件目と3件目は前の応答を待つ
+                for (int i = 0; i < 3; i++) {
+                    indexer.add(document(i));
+                }
+            }
+            assertThat(indexer.blockedNanos()).isBetween(150_000_000L, 2_000_000_000L);
+        }
+
+        try (InProcessCluster cluster = new InProcessCluster(100, (id, attempt) -> false)) {
+            BulkIndexer indexer = new BulkIndexer(cluster, "scans", 1, new ByteSizeValue(5, ByteSizeUnit.MB),
+                    TimeValue.timeValueHours(1), 3, FAST_BACKOFF);
+            try (indexer) {
+                for (int i = 0; i < 3; i++) {
+                    indexer.add(document(i));
+                }
+            }
+            // 上限に達しなければ待たない
+            assertThat(indexer.blockedNanos()).isLessThan(50_000_000L);
+        }
+    }
+
+    @Test
+    void reportsDocumentsStillRejectedAfterRetries() {
+        try (InProcessCluster cluster = new InProcessCluster(0, (id, attempt) -> true)) {
+            BulkIndexer indexer = new BulkIndexer(cluster, "scans", 10, new ByteSizeValue(5, ByteSizeUnit.MB),
+                    TimeValue.timeValueSeconds(10), 1, FAST_BACKOFF);
+            try (indexer) {
+                for (int i = 0; i < 25; i++) {
+                    indexer.add(document(i));
+                }
+            }
+            assertThat(indexer.indexedCount()).isZero();
+            assertThat(indexer.failedCount()).isEqualTo(25);
+            assertThat(indexer.getLastFailure()).contains("write queue is full");
+            // 最初の1回と、バックオフの回数分
+            assertThat(cluster.rejected.get()).isEqualTo(25 * 6);
+        }
+    }
+
+    private static ScanDocument document(int i) {
+        float[] corners = {40, 50, 200, 40, 210, 280, 30, 290};
+        return new ScanDocument(hash(i), "page-" + i + ".png", corners, 170, 240,
+                Map.of("CANNY", (long) i, "WARP", 1200L), "out/page-" + i + ".png", 1_590_000_000_000L + i);
+    }
+
+    private static String hash(int i) {
+        return String.format("%016x", i * 0x9E3779B97F4A7C15L);
+    }
+}
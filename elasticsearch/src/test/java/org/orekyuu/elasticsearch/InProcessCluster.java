@@ -0,0 +1,89 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Dockerのクラスタの代わりに、bulkリクエストを別スレッドで受けて覚えておく。
+ * rejectが真を返したドキュメントは、書き込みのキューが一杯だった時と同じく429で断る
+ */
+class InProcessCluster implements BiConsumer<BulkRequest, ActionListener<BulkResponse>>, AutoCloseable {
+
+    final Map<String, Map<String, Object>> documents = new ConcurrentHashMap<>();
+    final List<Integer> bulkSizes = new CopyOnWriteArrayList<>();
+    final AtomicInteger rejected = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMillis;
+    private final BiPredicate<String, Integer> reject;
+
+    /**
+     * @param reject ドキュメントのIDと何回目に届いたか(1から)を受け取り、断るならtrueを返す
+     */
+    InProcessCluster(long latencyMillis, BiPredicate<String, Integer> reject) {
+        this.latencyMillis = latencyMillis;
+        this.reject = reject;
+    }
+
+    private boolean rejects(String id) {
+        return reject.test(id, attempts.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet());
+    }
+
+    @Override
+    public void accept(BulkRequest request, ActionListener<BulkResponse> listener) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        bulkSizes.add(request.numberOfActions());
+        executor.execute(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                List<DocWriteRequest<?>> requests = request.requests();
+                BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+                for (int i = 0; i < items.length; i++) {
+                    IndexRequest index = (IndexRequest) requests.get(i);
+                    if (rejects(index.id())) {
+                        rejected.incrementAndGet();
+                        items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure(
+                                index.index(), "_doc", index.id(),
+                                new EsRejectedExecutionException("write queue is full"), RestStatus.TOO_MANY_REQUESTS));
+                    } else {
+                        documents.put(index.id(), index.sourceAsMap());
+                        items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                                new IndexResponse(new ShardId(index.index(), "_na_", 0), "_doc", index.id(), 1, 1, 1, true));
+                    }
+                }
+                inFlight.decrementAndGet();
+                listener.onResponse(new BulkResponse(items, latencyMillis));
+            } catch (Exception e) {
+                inFlight.decrementAndGet();
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
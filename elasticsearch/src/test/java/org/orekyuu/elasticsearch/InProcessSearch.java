@@ -0,0 +1,218 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Dockerのクラスタの代わりに、hashの順に並べたドキュメントを返す。クエリは見ずに全件を対象にする。
+ * スライスはIDのハッシュで分ける。クラスタと同じく、マッピングがtextのフィールドでは並べ替えられない
+ */
+class InProcessSearch implements ScanExporter.Transport, AutoCloseable {
+
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicLong servedHits = new AtomicLong();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Scroll> scrolls = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMillis;
+    private final Map<String, String> fieldTypes;
+
+    private static final class Scroll {
+        final List<String> ids;
+        final int size;
+        int offset;
+
+        Scroll(List<String> ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+    }
+
+    /**
+     * {@link BulkIndexer} が作ったインデックスとして振る舞う
+     *
+     * @param ids 昇順に並べておくこと
+     */
+    InProcessSearch(List<String> ids, long latencyMillis) {
+        this(ids, latencyMillis, BulkIndexer.createIndexRequest("scans"));
+    }
+
+    /**
+     * @param index インデックスを作ったリクエスト。nullならマッピングを決めずにドキュメントを入れた時と同じく、
+     *              hashはtextになり、並べ替えにはhash.keywordを使う
+     */
+    InProcessSearch(List<String> ids, long latencyMillis, CreateIndexRequest index) {
+        this.ids.addAll(ids);
+        this.latencyMillis = latencyMillis;
+        this.fieldTypes = index == null ? Map.of("hash", "text", "hash.keyword", "keyword") : fieldTypes(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> fieldTypes(CreateIndexRequest index) {
+        Map<String, Object> mapping = XContentHelper.convertToMap(
+                new BytesArray(index.mappings().get("_doc")), false, XContentType.JSON).v2();
+        Map<String, Object> properties = (Map<String, Object>) ((Map<String, Object>) mapping.get("_doc")).get("properties");
+        Map<String, String> types = new HashMap<>();
+        properties.forEach((field, property) -> types.put(field, (String) ((Map<String, Object>) property).get("type")));
+        return types;
+    }
+
+    private void checkSortable(SearchSourceBuilder source) {
+        if (source.sorts() == null) {
+            return;
+        }
+        for (SortBuilder<?> sort : source.sorts()) {
+            String field = ((FieldSortBuilder) sort).getFieldName();
+            if (field.equals("_doc")) {
+                continue;
+            }
+            String type = fieldTypes.get(field);
+            if (type == null) {
+                throw new IllegalArgumentException("No mapping found for [" + field + "] in order to sort on");
+            }
+            if (type.equals("text")) {
+                throw new IllegalArgumentException("Text fields are not optimised for operations that require "
+                        + "per-document field data like aggregations and sorting, so these operations are disabled "
+                        + "by default. Please use a keyword field instead. Alternatively, set fielddata=true on ["
+                        + field + "] in order to load field data by uninverting the inverted index.");
+            }
+        }
+    }
+
+    int openScrolls() {
+        return scrolls.size();
+    }
+
+    @Override
+    public void search(SearchRequest request, ActionListener<SearchResponse> listener) {
+        respond(listener, () -> {
+            SearchSourceBuilder source = request.source();
+            checkSortable(source);
+            if (request.scroll() != null) {
+                SliceBuilder slice = source.slice();
+                List<String> matched = new ArrayList<>();
+                for (String id : ids) {
+                    if (slice == null || Math.floorMod(id.hashCode(), slice.getMax()) == slice.getId()) {
+                        matched.add(id);
+                    }
+                }
+                String scrollId = UUID.randomUUID().toString();
+                Scroll scroll = new Scroll(matched, source.size());
+                scrolls.put(scrollId, scroll);
+                return page(scroll, scrollId);
+            }
+            int from = 0;
+            if (source.searchAfter() != null) {
+                String after = (String) source.searchAfter()[0];
+                while (from < ids.size() && ids.get(from).compareTo(after) <= 0) {
+                    from++;
+                }
+            }
+            return response(ids.subList(from, Math.min(ids.size(), from + source.size())), null);
+        });
+    }
+
+    @Override
+    public void searchScroll(SearchScrollRequest request, ActionListener<SearchResponse> listener) {
+        respond(listener, () -> {
+            Scroll scroll = scrolls.get(request.scrollId());
+            if (scroll == null) {
+                throw new ElasticsearchException("No search context found for id [" + request.scrollId() + "]");
+            }
+            return page(scroll, request.scrollId());
+        });
+    }
+
+    @Override
+    public void clearScroll(ClearScrollRequest request, ActionListener<ClearScrollResponse> listener) {
+        int freed = 0;
+        for (String id : request.getScrollIds()) {
+            if (scrolls.remove(id) != null) {
+                freed++;
+            }
+        }
+        listener.onResponse(new ClearScrollResponse(true, freed));
+    }
+
+    private SearchResponse page(Scroll scroll, String scrollId) {
+        synchronized (scroll) {
+            List<String> page = scroll.ids.subList(scroll.offset, Math.min(scroll.ids.size(), scroll.offset + scroll.size));
+            scroll.offset += page.size();
+            return response(page, scrollId);
+        }
+    }
+
+    private SearchResponse response(List<String> page, String scrollId) {
+        SearchHit[] hits = new SearchHit[page.size()];
+        for (int i = 0; i < hits.length; i++) {
+            String id = page.get(i);
+            hits[i] = new SearchHit(i, id, new Text("_doc"), Map.of());
+            hits[i].sourceRef(new BytesArray(("{\"hash\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8)));
+            hits[i].sortValues(new Object[]{id}, new DocValueFormat[]{DocValueFormat.RAW});
+        }
+        servedHits.addAndGet(hits.length);
+        InternalSearchResponse internal = new InternalSearchResponse(new SearchHits(hits, null, Float.NaN),
+                null, null, null, false, null, 1);
+        return new SearchResponse(internal, scrollId, 1, 1, 0, latencyMillis, ShardSearchFailure.EMPTY_ARRAY,
+                SearchResponse.Clusters.EMPTY);
+    }
+
+    private void respond(ActionListener<SearchResponse> listener, Supplier<SearchResponse> handler) {
+        requests.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        executor.execute(() -> {
+            SearchResponse response;
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                response = handler.get();
+            } catch (Exception e) {
+                inFlight.decrementAndGet();
+                listener.onFailure(e);
+                return;
+            }
+            inFlight.decrementAndGet();
+            listener.onResponse(response);
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,132 @@
+package org.orekyuu.elasticsearch;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ScanExporterTest {
+
+    private static final int PAGE = 100;
+
+    @Test
+    void searchAfterStreamsInOrderWithBoundedPrefetch() {
+        List<String> ids = ids(10_050);
+        try (InProcessSearch cluster = new InProcessSearch(ids, 0)) {
+            ScanExporter exporter = new ScanExporter(cluster, "scans", PAGE);
+            List<String> read = new ArrayList<>();
+            long maxAhead = 0;
+            try (Stream<SearchHit> hits = exporter.searchAfter(QueryBuilders.matchAllQuery(), "hash")) {
+                for (Iterator<SearchHit> iterator = hits.iterator(); iterator.hasNext(); ) {
+                    read.add(iterator.next().getId());
+                    maxAhead = Math.max(maxAhead, cluster.servedHits.get() - read.size());
+                }
+            }
+            assertThat(read).isEqualTo(ids);
+            // 読んでいるページと、先読みした1ページ分まで
+            assertThat(maxAhead).isLessThanOrEqualTo(ScanExporter.PREFETCH_PAGES * PAGE);
+            // 最後のページは1ページに満たないので、空のページを取りに行かない
+            assertThat(cluster.requests.get()).isEqualTo(101);
+        }
+    }
+
+    @Test
+    void sortsOnHashThroughTheIndexMapping() {
+        List<String> ids = ids(250);
+        try (InProcessSearch cluster = new InProcessSearch(ids, 0, BulkIndexer.createIndexRequest("scans"));
+             Stream<SearchHit> hits = new ScanExporter(cluster, "scans", PAGE)
+                     .searchAfter(QueryBuilders.matchAllQuery(), "hash")) {
+            assertThat(hits.map(SearchHit::getId)).containsExactlyElementsOf(ids);
+        }
+
+        // マッピングを決めずに入れると、hashはtextになって並べ替えられない
+        try (InProcessSearch cluster = new InProcessSearch(ids, 0, null)) {
+            ScanExporter exporter = new ScanExporter(cluster, "scans", PAGE);
+            try (Stream<SearchHit> hits = exporter.searchAfter(QueryBuilders.matchAllQuery(), "hash")) {
+                assertThatThrownBy(hits::count).isInstanceOf(ElasticsearchException.class)
+                        .hasStackTraceContaining("Text fields are not optimised");
+            }
+            try (Stream<SearchHit> hits = exporter.searchAfter(QueryBuilders.matchAllQuery(), "hash.keyword")) {
+                assertThat(hits.map(SearchHit::getId)).containsExactlyElementsOf(ids);
+            }
+        }
+    }
+
+    @Test
+    void fetchesNextPageWhileCurrentIsConsumed() throws InterruptedException {
+        try (InProcessSearch cluster = new InProcessSearch(ids(1000), 20);
+             Stream<SearchHit> hits = new ScanExporter(cluster, "scans", PAGE)
+                     .searchAfter(QueryBuilders.matchAllQuery(), "hash")) {
+            Iterator<SearchHit> iterator = hits.iterator();
+            iterator.next();
+            assertThat(await(() -> cluster.requests.get() == 2)).isTrue();
+            // 先読みは1ページだけで、読み進めるまで次は取りに行かない
+            Thread.sleep(100);
+            assertThat(cluster.requests.get()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void slicedScrollReadsSlicesInParallelAndClearsThem() {
+        List<String> ids = ids(5000);
+        try (InProcessSearch cluster = new InProcessSearch(ids, 5)) {
+            ScanExporter exporter = new ScanExporter(cluster, "scans", PAGE);
+            Set<String> read = new HashSet<>();
+            long maxAhead = 0;
+            try (Stream<SearchHit> hits = exporter.slicedScroll(QueryBuilders.matchAllQuery(), 4, TimeValue.timeValueMinutes(1))) {
+                for (Iterator<SearchHit> iterator = hits.iterator(); iterator.hasNext(); ) {
+                    assertThat(read.add(iterator.next().getId())).isTrue();
+                    maxAhead = Math.max(maxAhead, cluster.servedHits.get() - read.size());
+                }
+            }
+            assertThat(read).containsExactlyInAnyOrderElementsOf(ids);
+            assertThat(cluster.maxInFlight.get()).isGreaterThan(1);
+            assertThat(maxAhead).isLessThanOrEqualTo(4 * ScanExporter.PREFETCH_PAGES * PAGE);
+            assertThat(cluster.openScrolls()).isZero();
+        }
+    }
+
+    @Test
+    void closingEarlyClearsScrolls() {
+        try (InProcessSearch cluster = new InProcessSearch(ids(5000), 5)) {
+            ScanExporter exporter = new ScanExporter(cluster, "scans", PAGE);
+            try (Stream<SearchHit> hits = exporter.slicedScroll(QueryBuilders.matchAllQuery(), 4, TimeValue.timeValueMinutes(1))) {
+                assertThat(hits.limit(150).count()).isEqualTo(150);
+            }
+            // 閉じた時に取りに行っていたページも、届いたら消す
+            assertThat(await(() -> cluster.openScrolls() == 0)).isTrue();
+        }
+    }
+
+    private static List<String> ids(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> String.format("%016x", i * 0x9E3779B97F4A7C15L))
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    private static boolean await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.onSpinWait();
+        }
+        return true;
+    }
+}
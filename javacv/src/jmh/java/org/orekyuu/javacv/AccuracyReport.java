@@ -0,0 +1,116 @@
+package org.orekyuu.javacv;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+/**
+ * 生成した書類の画像を実装ごとに処理し、見つけた四隅と正解とのずれを元画像のピクセル単位で出す。
+ * 速さは {@link PipelineBenchmark} で測り、こちらは精度だけを見る。
+ * ずれは四隅の並びを回して一番合うものとの距離で、並びが正解と違った枚数はrotatedに出す
+ *
+ * <pre>
+ * AccuracyReport [枚数] [解像度...]
+ * </pre>
+ */
+public class AccuracyReport {
+
+    public static void main(String[] args) throws IOException {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        String[] resolutions = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length)
+                : new String[]{"1280x960", "1920x1440", "4000x3000"};
+
+        Path dir = Files.createTempDirectory("accuracy");
+        System.out.printf("%-10s %-8s %8s %8s %10s %10s %10s%n",
+                "resolution", "finder", "found", "rotated", "mean(px)", "p95(px)", "max(px)");
+        for (String resolution : resolutions) {
+            String[] size = resolution.split("x");
+            int width = Integer.parseInt(size[0]);
+            int height = Integer.parseInt(size[1]);
+            Quad[] truths = new Quad[pages];
+            Path[] files = new Path[pages];
+            for (int i = 0; i < pages; i++) {
+                try (SyntheticPage page = SyntheticPage.generate(i, width, height)) {
+                    truths[i] = page.corners();
+                    files[i] = dir.resolve(resolution + "-" + i + ".png");
+                    imwrite(files[i].toString(), page.image());
+                }
+            }
+
+            for (FinderType type : FinderType.values()) {
+                double[] errors = new double[pages * 4];
+                int found = 0;
+                int rotated = 0;
+                try (DocumentFinder finder = type.create(new ImagePool(8), null)) {
+                    finder.setMetrics(PipelineMetrics.NONE);
+                    for (int i = 0; i < pages; i++) {
+                        finder.process(files[i].toString(), 50, 200);
+                        Quad quad = sourceQuad(finder, width, height);
+                        if (quad == null) {
+                            continue;
+                        }
+                        int shift = bestShift(quad, truths[i]);
+                        if (shift != 0) {
+                            rotated++;
+                        }
+                        for (int corner = 0; corner < 4; corner++) {
+                            errors[found * 4 + corner] = distance(quad, (corner + shift) % 4, truths[i], corner);
+                        }
+                        found++;
+                    }
+                }
+                double[] measured = Arrays.copyOf(errors, found * 4);
+                Arrays.sort(measured);
+                System.out.printf("%-10s %-8s %4d/%-3d %8d %10.2f %10.2f %10.2f%n", resolution, type, found, pages, rotated,
+                        Arrays.stream(measured).average().orElse(Double.NaN),
+                        measured.length == 0 ? Double.NaN : measured[(int) Math.ceil(measured.length * 0.95) - 1],
+                        measured.length == 0 ? Double.NaN : measured[measured.length - 1]);
+            }
+
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * 元画像の座標系での四隅。縮小画像で見つける実装は縮小率で戻す
+     */
+    private static Quad sourceQuad(DocumentFinder finder, int width, int height) {
+        if (finder.getSourceQuad() != null) {
+            return finder.getSourceQuad();
+        }
+        Quad quad = finder.getQuad();
+        if (quad == null) {
+            return null;
+        }
+        return quad.scale((float) width / finder.getResized().width(), (float) height / finder.getResized().height());
+    }
+
+    /**
+     * 見つけた四隅を何個ずらすと正解に一番近くなるか
+     */
+    private static int bestShift(Quad found, Quad truth) {
+        int best = 0;
+        double bestError = Double.MAX_VALUE;
+        for (int shift = 0; shift < 4; shift++) {
+            double error = 0;
+            for (int corner = 0; corner < 4; corner++) {
+                error += distance(found, (corner + shift) % 4, truth, corner);
+            }
+            if (error < bestError) {
+                bestError = error;
+                best = shift;
+            }
+        }
+        return best;
+    }
+
+    private static double distance(Quad a, int i, Quad b, int j) {
+        return Math.hypot(a.x(i) - b.x(j), a.y(i) - b.y(j));
+    }
+}
@@ -0,0 +1,56 @@
+package org.orekyuu.javacv;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+/**
+ * ファイルを読んでから台形補正した画像ができるまでを、実装と解像度ごとに測る。
+ * アロケーションは {@code -prof gc} で見る
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+
+    @Param({"LEGACY", "MAT", "PYRAMID"})
+    public FinderType finder;
+
+    @Param({"1280x960", "1920x1440", "4000x3000"})
+    public String resolution;
+
+    @Param({"1"})
+    public long seed;
+
+    private Path file;
+    private DocumentFinder documentFinder;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] size = resolution.split("x");
+        try (SyntheticPage page = SyntheticPage.generate(seed, Integer.parseInt(size[0]), Integer.parseInt(size[1]))) {
+            file = Files.createTempFile("page", ".png");
+            imwrite(file.toString(), page.image());
+        }
+
+        documentFinder = finder.create(new ImagePool(8), null);
+        documentFinder.setMetrics(PipelineMetrics.NONE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        documentFinder.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Quad process() {
+        documentFinder.process(file.toString(), 50, 200);
+        return documentFinder.getQuad();
+    }
+}
@@ -0,0 +1,217 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * {@link MatBookFinder} の段階を1つずつ測る。パラメータは実装と揃えてある。
+ * 入力は前の段階の結果をSetupで作っておく。legacyで始まるものは {@link BookFinder} の段階をそのまま呼ぶ
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StageBenchmark {
+
+    @Param({"1280x960", "1920x1440", "4000x3000"})
+    public String resolution;
+
+    @Param({"1"})
+    public long seed;
+
+    private BytePointer encoded;
+    private Mat encodedMat;
+    private Mat image;
+    private Mat decoded = new Mat();
+    private final Mat resized = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat smoothed = new Mat();
+    private final Mat eroded = new Mat();
+    private final Mat edges = new Mat();
+    private final MatVector contours = new MatVector();
+    private final Mat largest = new Mat();
+    private final Mat approx = new Mat();
+    private final Mat result = new Mat();
+    private final Mat kernel = new Mat();
+    private final Size blurSize = new Size(5, 5);
+    private Size resizedSize;
+    private Size resultSize;
+    private Mat perspective;
+    private MatBookFinder finder;
+    private BookFinder legacy;
+    private int[] legacyCorners;
+
+    @Setup
+    public void setUp() {
+        String[] size = resolution.split("x");
+        Quad corners;
+        try (SyntheticPage page = SyntheticPage.generate(seed, Integer.parseInt(size[0]), Integer.parseInt(size[1]))) {
+            image = page.image().clone();
+            corners = page.corners();
+        }
+        encoded = new BytePointer();
+        imencode(".png", image, encoded);
+        encodedMat = new Mat(encoded);
+
+        int[] fitted = BookFinder.fitSize(image.cols(), image.rows(), 480, 640);
+        resizedSize = new Size(fitted[0], fitted[1]);
+        opencv_imgproc.resize(image, resized, resizedSize);
+        cvtColor(resized, gray, COLOR_BGR2GRAY);
+        GaussianBlur(gray, smoothed, blurSize, 0, 0, BORDER_DEFAULT);
+        erode(smoothed, eroded, kernel);
+        dilate(eroded, eroded, kernel);
+        Canny(eroded, edges, 50, 200);
+        findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+        double maxArea = 0;
+        for (long i = 0; i < contours.size(); i++) {
+            double area = contourArea(contours.get(i));
+            if (area > maxArea) {
+                maxArea = area;
+                contours.get(i).copyTo(largest);
+            }
+        }
+
+        Quad quad = corners.scale((float) fitted[0] / image.cols(), (float) fitted[1] / image.rows());
+        int width = Math.round(Math.max(quad.x(Quad.TOP_RIGHT) - quad.x(Quad.TOP_LEFT),
+                quad.x(Quad.BOTTOM_RIGHT) - quad.x(Quad.BOTTOM_LEFT)));
+        int height = Math.round(Math.max(quad.y(Quad.BOTTOM_LEFT) - quad.y(Quad.TOP_LEFT),
+                quad.y(Quad.BOTTOM_RIGHT) - quad.y(Quad.TOP_RIGHT)));
+        resultSize = new Size(width, height);
+        try (Mat from = new Mat(4, 1, CV_32FC2); Mat to = new Mat(4, 1, CV_32FC2)) {
+            float[] source = {
+                    quad.x(Quad.TOP_LEFT), quad.y(Quad.TOP_LEFT), quad.x(Quad.TOP_RIGHT), quad.y(Quad.TOP_RIGHT),
+                    quad.x(Quad.BOTTOM_LEFT), quad.y(Quad.BOTTOM_LEFT), quad.x(Quad.BOTTOM_RIGHT), quad.y(Quad.BOTTOM_RIGHT)};
+            float[] destination = {0, 0, width, 0, 0, height, width, height};
+            FloatIndexer fromIndexer = from.createIndexer();
+            FloatIndexer toIndexer = to.createIndexer();
+            for (int i = 0; i < 8; i++) {
+                fromIndexer.put(i, source[i]);
+                toIndexer.put(i, destination[i]);
+            }
+            fromIndexer.release();
+            toIndexer.release();
+            perspective = getPerspectiveTransform(from, to);
+        }
+
+        finder = new MatBookFinder();
+        finder.setMetrics(PipelineMetrics.NONE);
+        finder.prepare(image);
+
+        legacy = new BookFinder(new ImagePool(8));
+        legacy.setMetrics(PipelineMetrics.NONE);
+        legacy.process(ImageSource.of("page.png", encoded.asByteBuffer()), 50, 200);
+        legacyCorners = legacy.findLargestSquare(legacy.filter);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Pointer pointer : new Pointer[]{encodedMat, encoded, image, decoded, resized, gray, smoothed, eroded, edges,
+                contours, largest, approx, result, kernel, blurSize, resizedSize, resultSize, perspective}) {
+            pointer.close();
+        }
+        finder.close();
+        legacy.close();
+    }
+
+    @Benchmark
+    public Mat decode() {
+        decoded.close();
+        decoded = imdecode(encodedMat, IMREAD_COLOR);
+        return decoded;
+    }
+
+    @Benchmark
+    public Mat resize() {
+        opencv_imgproc.resize(image, resized, resizedSize);
+        return resized;
+    }
+
+    @Benchmark
+    public Mat grayBlur() {
+        cvtColor(resized, gray, COLOR_BGR2GRAY);
+        GaussianBlur(gray, smoothed, blurSize, 0, 0, BORDER_DEFAULT);
+        return smoothed;
+    }
+
+    @Benchmark
+    public Mat erodeDilate() {
+        erode(smoothed, eroded, kernel);
+        dilate(eroded, eroded, kernel);
+        return eroded;
+    }
+
+    @Benchmark
+    public Mat canny() {
+        Canny(eroded, edges, 50, 200);
+        return edges;
+    }
+
+    @Benchmark
+    public MatVector contours() {
+        findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+        return contours;
+    }
+
+    @Benchmark
+    public Mat approxPoly() {
+        approxPolyDP(largest, approx, 0.02 * arcLength(largest, true), true);
+        return approx;
+    }
+
+    @Benchmark
+    public Mat warp() {
+        warpPerspective(resized, result, perspective, resultSize, INTER_LINEAR, BORDER_CONSTANT, Scalar.ZERO);
+        return result;
+    }
+
+    /**
+     * 縮小とぼかし。実装そのものを通したもの
+     */
+    @Benchmark
+    public MatBookFinder prepare() {
+        finder.prepare(image);
+        return finder;
+    }
+
+    /**
+     * Canny以降。実装そのものを通したもの
+     */
+    @Benchmark
+    public Quad detect() {
+        finder.detect(50, 200, null);
+        return finder.getQuad();
+    }
+
+    /**
+     * 旧APIでのグレースケール化、ぼかし、収縮と膨張、Canny
+     */
+    @Benchmark
+    public IplImage legacyApplyFilter() {
+        return legacy.canny(legacy.smooth(legacy.resized), 50, 200);
+    }
+
+    /**
+     * 旧APIでの輪郭の抽出と四角形の選択
+     */
+    @Benchmark
+    public int[] legacyFindLargestSquare() {
+        return legacy.findLargestSquare(legacy.filter);
+    }
+
+    /**
+     * 旧APIでの台形補正。同じ四隅が続くので、座標表を使い回した状態を測る
+     */
+    @Benchmark
+    public IplImage legacyTransform() {
+        return legacy.transform(legacy.resized, legacyCorners);
+    }
+}
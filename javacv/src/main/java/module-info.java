@@ -1,6 +1,8 @@
 module java.sandbox.javacv.main {
     requires javafx.controls;
     requires javafx.graphics;
+    requires java.management;
+    requires jdk.httpserver;
     requires org.bytedeco.opencv;
     requires org.bytedeco.javacv.platform;
 
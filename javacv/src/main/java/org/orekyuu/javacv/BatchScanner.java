@@ -0,0 +1,476 @@
+package org.orekyuu.javacv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 大量の画像をヘッドレスでまとめて処理する。
+ * ワーカースレッドごとに {@link DocumentFinder} を持ち、ネイティブのバッファはスレッド内で使い回す
+ */
+public class BatchScanner implements AutoCloseable {
+
+    /**
+     * ワーカースレッド上で呼ばれる。finderのバッファは次の画像で上書きされるので、必要なものはこの中で取り出すこと
+     */
+    public interface ResultHandler {
+        /**
+         * @param finder {@link #handleCached} を上書きしていなければ、{@link ResultCache} から返した場合はnull
+         */
+        void handle(ScanResult result, DocumentFinder finder) throws Exception;
+
+        /**
+         * {@link ResultCache} から返した場合に呼ばれる。既定ではfinderをnullにして {@link #handle} を呼ぶ
+         */
+        default void handleCached(ScanResult result, ResultCache.Entry entry) throws Exception {
+            handle(result, null);
+        }
+    }
+
+    /**
+     * 閾値に渡すと、Cannyの閾値を画像ごとに {@link ThresholdSweep} で決める
+     */
+    public static final double AUTO = Double.NaN;
+
+    private static final List<String> IMAGE_EXTENSIONS = List.of("jpeg", "jpg", "png");
+
+    private final double threshold;
+    private final double threshold2;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final Queue<DocumentFinder> finders = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<DocumentFinder> workerFinder;
+    private final String variant;
+    private final ResultCache resultCache;
+    private final CorePlan restore;
+
+    public BatchScanner(FinderType type, int workers, double threshold, double threshold2) {
+        this(type, workers, threshold, threshold2, null);
+    }
+
+    /**
+     * resultCacheを渡すと、前に処理したものと同じ内容の画像はデコードも検出もせずに結果を返す
+     */
+    public BatchScanner(FinderType type, int workers, double threshold, double threshold2, ResultCache resultCache) {
+        this(type, workers, threshold, threshold2, resultCache, null);
+    }
+
+    /**
+     * planのワーカー数で処理し、OpenCVのスレッド数もplanに合わせる。OpenCVのスレッド数はプロセスで1つなので、
+     * 閉じるまでは他の処理にも効く。閉じると元に戻す
+     */
+    public BatchScanner(FinderType type, CorePlan plan, double threshold, double threshold2, ResultCache resultCache) {
+        this(type, plan.getWorkers(), threshold, threshold2, resultCache, plan);
+    }
+
+    private BatchScanner(FinderType type, int workers, double threshold, double threshold2, ResultCache resultCache,
+                         CorePlan plan) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.workerFinder = ThreadLocal.withInitial(() -> {
+            DocumentFinder finder = type.create(ImagePool.shared(), null);
+            finders.add(finder);
+            return finder;
+        });
+        this.threshold = threshold;
+        this.threshold2 = threshold2;
+        this.variant = type.name();
+        this.resultCache = resultCache;
+        this.executor = Executors.newFixedThreadPool(workers, workerThreadFactory());
+        // キューに積みすぎないよう、同時に受け付ける件数をワーカー数の2倍までにする
+        this.inFlight = new Semaphore(workers * 2);
+        if (plan != null) {
+            this.restore = CorePlan.current();
+            plan.pin();
+        } else {
+            this.restore = null;
+        }
+    }
+
+    public BatchScanner(int workers, double threshold, double threshold2) {
+        this(FinderType.LEGACY, workers, threshold, threshold2);
+    }
+
+    public BatchScanner(double threshold, double threshold2) {
+        this(Runtime.getRuntime().availableProcessors(), threshold, threshold2);
+    }
+
+    private static ThreadFactory workerThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "book-finder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public List<ScanResult> scan(List<Path> files) {
+        return scan(files, (result, finder) -> {});
+    }
+
+    /**
+     * 全てのファイルを処理し終わるまでブロックする。結果は入力と同じ順で返す
+     */
+    public List<ScanResult> scan(List<Path> files, ResultHandler handler) {
+        return scan(files.stream().map(ImageSource::of).iterator(), handler);
+    }
+
+    /**
+     * {@link ImageArchive} のように、先に全件を読めない入力を順に処理する。
+     * 次の入力は空いたワーカーが出てから読むので、読み込み済みで待っている入力はワーカー数の2倍まで
+     */
+    public List<ScanResult> scan(Iterator<? extends ImageSource> sources, ResultHandler handler) {
+        Map<Integer, ScanResult> results = new ConcurrentHashMap<>();
+        // 件数が分からないので、投入するたびに登録する
+        Phaser done = new Phaser(1);
+        int count = 0;
+        try {
+            while (sources.hasNext()) {
+                inFlight.acquire();
+                ImageSource source;
+                try {
+                    source = sources.next();
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                int index = count++;
+                done.register();
+                executor.execute(() -> {
+                    try {
+                        results.put(index, scanOne(source, handler));
+                    } finally {
+                        inFlight.release();
+                        done.arriveAndDeregister();
+                    }
+                });
+            }
+            done.awaitAdvanceInterruptibly(done.arrive());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("scan interrupted");
+        }
+        ScanResult[] ordered = new ScanResult[count];
+        results.forEach((index, result) -> ordered[index] = result);
+        return Arrays.asList(ordered);
+    }
+
+    private ScanResult scanOne(ImageSource source, ResultHandler handler) {
+        long start = System.nanoTime();
+        Path path = Paths.get(source.name());
+        try {
+            String cacheKey = resultCache == null ? null : ResultCache.key(source, variant, threshold, threshold2);
+            ResultCache.Entry cached = cacheKey == null ? null : resultCache.get(cacheKey);
+            if (cached != null) {
+                ScanResult result = ScanResult.cached(path, cached, System.nanoTime() - start);
+                handler.handleCached(result, cached);
+                return result;
+            }
+
+            DocumentFinder finder = workerFinder.get();
+            if (Double.isNaN(threshold)) {
+                finder.processAuto(source);
+            } else {
+                finder.process(source, threshold, threshold2);
+            }
+            var image = finder.getResult();
+            ScanResult result = image == null
+                    ? ScanResult.success(path, finder.getQuad(), 0, 0, System.nanoTime() - start)
+                    : ScanResult.success(path, finder.getQuad(), image.width(), image.height(), System.nanoTime() - start);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, finder);
+            }
+            handler.handle(result, finder);
+            return result;
+        } catch (Exception e) {
+            return ScanResult.failure(path, e, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * ディレクトリ(配下の画像とアーカイブ全て)、グロブ(例: {@code photos/**.jpg})、
+     * {@code @list.txt} 形式のファイルリスト、もしくは単一のファイルを処理対象のパスに展開する
+     */
+    public static List<Path> resolve(String input) {
+        try {
+            if (input.startsWith("@")) {
+                try (Stream<String> lines = Files.lines(Paths.get(input.substring(1)))) {
+                    return lines.map(String::strip)
+                            .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                            .map(Paths::get)
+                            .collect(Collectors.toList());
+                }
+            }
+            int glob = indexOfGlob(input);
+            if (glob >= 0) {
+                int separator = input.lastIndexOf('/', glob);
+                Path base = separator < 0 ? Paths.get(".") : Paths.get(input.substring(0, separator + 1));
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(separator + 1));
+                try (Stream<Path> walk = Files.walk(base)) {
+                    return walk.filter(Files::isRegularFile)
+                            .filter(path -> matcher.matches(base.relativize(path)))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+            }
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    return walk.filter(Files::isRegularFile)
+                            .filter(file -> isImage(file) || ImageArchive.isArchive(file))
+                            .sorted()
+                            .collect(Collectors.toList());
+                }
+            }
+            return List.of(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int indexOfGlob(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isImage(Path path) {
+        return isImage(path.getFileName().toString());
+    }
+
+    static boolean isImage(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DocumentFinder finder;
+        while ((finder = finders.poll()) != null) {
+            finder.close();
+        }
+        if (restore != null) {
+            restore.pin();
+        }
+    }
+
+    /**
+     * 使い方: BatchScanner [--workers n(省略時は自動)] [--threshold (t1 t2|auto)] [--finder legacy|mat] [--cache ディレクトリ]
+     * [--output ディレクトリ [--format png|jpeg|webp] [--quality q]] [--native-cache ディレクトリ]
+     * [--near-duplicates ディレクトリ [--max-distance d]] (ディレクトリ|グロブ|@リスト|ファイル|zip|tar)...
+     */
+    public static void main(String[] args) throws IOException {
+        int workers = 0;
+        double threshold = 100;
+        double threshold2 = 100;
+        FinderType type = FinderType.LEGACY;
+        Path cacheDirectory = null;
+        Path output = null;
+        OutputWriter.Format format = OutputWriter.Format.PNG;
+        int quality = -1;
+        Path nativeCache = null;
+        Path nearDuplicates = null;
+        int maxDistance = 6;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--threshold":
+                    if (args[i + 1].equals("auto")) {
+                        threshold = AUTO;
+                        threshold2 = AUTO;
+                        i++;
+                    } else {
+                        threshold = Double.parseDouble(args[++i]);
+                        threshold2 = Double.parseDouble(args[++i]);
+                    }
+                    break;
+                case "--finder":
+                    type = FinderType.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--cache":
+                    cacheDirectory = Paths.get(args[++i]);
+                    break;
+                case "--output":
+                    output = Paths.get(args[++i]);
+                    break;
+                case "--format":
+                    format = OutputWriter.Format.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--quality":
+                    quality = Integer.parseInt(args[++i]);
+                    break;
+                case "--native-cache":
+                    nativeCache = Paths.get(args[++i]);
+                    break;
+                case "--near-duplicates":
+                    nearDuplicates = Paths.get(args[++i]);
+                    break;
+                case "--max-distance":
+                    maxDistance = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    files.addAll(resolve(args[i]));
+            }
+        }
+
+        // 短いジョブでは合成画像でのウォームアップは元が取れないので、ネイティブの読み込みだけを先に済ませる
+        long nativeLoad = Warmup.loadNatives(nativeCache);
+
+        // アーカイブは展開せず、中の画像を読みながら流し込む
+        List<ImageArchive> archives = new ArrayList<>();
+        List<Iterator<ImageSource>> inputs = new ArrayList<>();
+        List<ImageSource> plainFiles = new ArrayList<>();
+        for (Path file : files) {
+            if (ImageArchive.isArchive(file)) {
+                ImageArchive archive = ImageArchive.open(file);
+                archives.add(archive);
+                inputs.add(archive.iterator());
+            } else {
+                ImageSource source = ImageSource.of(file);
+                plainFiles.add(source);
+                inputs.add(List.of(source).iterator());
+            }
+        }
+        // ワーカー数を指定しなければ、枚数と画像の大きさからOpenCVのスレッド数と合わせて決める
+        CorePlan plan;
+        if (workers > 0) {
+            plan = CorePlan.withWorkers(workers);
+        } else if (archives.isEmpty()) {
+            plan = CorePlan.forSources(plainFiles, type);
+        } else {
+            plan = CorePlan.forWorkload(Integer.MAX_VALUE, 0);
+        }
+        workers = plan.getWorkers();
+
+        long start = System.nanoTime();
+        List<ScanResult> results;
+        AtomicLong firstResult = new AtomicLong(-1);
+        Map<Path, Throwable> writeFailures = Map.of();
+        long duplicates = 0;
+        // 書き出しは検出と並行して進め、待ち行列が一杯の時だけ検出を止める
+        try (OutputWriter writer = output == null ? null
+                : new OutputWriter(output, format, quality, Math.max(1, workers / 2), workers * 2, 32);
+             HashIndex index = nearDuplicates == null ? null : HashIndex.open(nearDuplicates);
+             PathIds paths = nearDuplicates == null ? null : PathIds.open(nearDuplicates);
+             BatchScanner scanner = new BatchScanner(type, plan, threshold, threshold2,
+                     resultCache(cacheDirectory, writer, nearDuplicates != null))) {
+            ResultHandler handler = writer == null ? (result, finder) -> {} : writer.handler();
+            if (writer != null) {
+                writeFailures = writer.getFailures();
+            }
+            NearDuplicateFilter filter = index == null ? null : new NearDuplicateFilter(index, paths, maxDistance, handler);
+            ResultHandler next = filter == null ? handler : filter;
+            results = scanner.scan(concat(inputs), new ResultHandler() {
+                @Override
+                public void handle(ScanResult result, DocumentFinder finder) throws Exception {
+                    firstResult.compareAndSet(-1, ManagementFactory.getRuntimeMXBean().getUptime());
+                    next.handle(result, finder);
+                }
+
+                @Override
+                public void handleCached(ScanResult result, ResultCache.Entry entry) throws Exception {
+                    firstResult.compareAndSet(-1, ManagementFactory.getRuntimeMXBean().getUptime());
+                    next.handleCached(result, entry);
+                }
+            });
+            if (filter != null) {
+                duplicates = filter.duplicateCount();
+            }
+        } finally {
+            for (ImageArchive archive : archives) {
+                archive.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        // 書き出しは検出より後で終わるので、閉じて出揃ってから結果に反映する
+        Map<Path, Throwable> failures = writeFailures;
+        results = results.stream()
+                .map(r -> r.isSuccess() && failures.containsKey(r.getPath()) ? r.withError(failures.get(r.getPath())) : r)
+                .collect(Collectors.toList());
+        results.forEach(System.out::println);
+        long failed = results.stream().filter(r -> !r.isSuccess()).count();
+        long found = results.stream().filter(ScanResult::isFound).count();
+        System.out.printf("%d files, %d found, %d failed (%d writes), %d near duplicates, %s (%s)%n",
+                results.size(), found, failed, failures.size(), duplicates, plan.throughput(results.size(), elapsed), plan);
+        System.out.printf("natives loaded in %.1f ms, first result %d ms after start%n", nativeLoad / 1e6, firstResult.get());
+        System.out.println(StageMetrics.shared());
+    }
+
+    /**
+     * 書き出す場合は、キャッシュから返した結果も書けるよう、書き出しと同じ形式で補正後の画像も残す。
+     * 撮り直しを探す場合も、キャッシュから返した結果を比べられるよう補正後の画像を残す
+     */
+    private static ResultCache resultCache(Path directory, OutputWriter writer, boolean keepImages) throws IOException {
+        if (directory == null) {
+            return null;
+        }
+        if (writer != null) {
+            return writer.cache(directory, 1L << 30);
+        }
+        return keepImages ? new ResultCache(directory, 1L << 30, ".png") : new ResultCache(directory, 1L << 30);
+    }
+
+    private static <T> Iterator<T> concat(List<Iterator<T>> iterators) {
+        return new Iterator<>() {
+            private int current;
+
+            @Override
+            public boolean hasNext() {
+                while (current < iterators.size()) {
+                    if (iterators.get(current).hasNext()) {
+                        return true;
+                    }
+                    current++;
+                }
+                return false;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return iterators.get(current).next();
+            }
+        };
+    }
+}
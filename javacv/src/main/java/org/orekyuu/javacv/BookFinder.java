@@ -1,9 +1,9 @@
 package org.orekyuu.javacv;
 
+import org.bytedeco.javacpp.IntPointer;
 import org.bytedeco.javacpp.Loader;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.bytedeco.opencv.global.opencv_imgcodecs;
 import org.bytedeco.opencv.global.opencv_imgproc;
 import org.bytedeco.opencv.opencv_core.*;
 
@@ -13,31 +13,81 @@ import java.util.List;
 import static org.bytedeco.opencv.global.opencv_core.*;
 import static org.bytedeco.opencv.global.opencv_imgproc.*;
 
-public class BookFinder {
+public class BookFinder implements DocumentFinder {
+
+    private static final System.Logger LOGGER = System.getLogger(BookFinder.class.getName());
 
     public static final int STEPS = 2;
     final int maxheight = 640;
     final int maxwidth = 480;
     private final String path;
+    private final ImagePool pool;
+    private final StageCache cache;
 
     int resizedWidth;
     int resizedHeight;
 
+    Mat decoded;
+    IplImage decodedHeader;
     IplImage resized;
     IplImage filter;
     IplImage pointing;
     IplImage result;
-
+    Quad quad;
+
+    // 同じインスタンスで続けてprocessする場合に使い回すバッファ
+    private IplImage gray;
+    private IplImage edges;
+    private IplImage contourBuffer;
+    private IplImage pointingBuffer;
+    private IplImage resultBuffer;
+    private CvMemStorage memory;
+    private final CvSeq contours = new CvSeq();
+    private final ContourBuffer contourPoints = new ContourBuffer();
+    private final RemapCache remapCache = new RemapCache();
+    private final CvPoint offset = cvPoint(0, 0);
+    private final Size blurSize = new Size(5, 5);
+    private final OpenCVFrameConverter.ToMat converter2Mat = new OpenCVFrameConverter.ToMat();
+    private PipelineMetrics metrics = StageMetrics.shared();
+    private ThresholdSweep sweep;
+    private ThresholdSweep.Result sweepResult;
 
     public BookFinder(String path) {
+        this(path, ImagePool.shared());
+    }
+
+    public BookFinder(String path, ImagePool pool) {
+        this(path, pool, null);
+    }
+
+    /**
+     * cacheを渡すと、同じ画像に対しては縮小とぼかしまでの結果を使い回し、Canny以降だけを計算し直す
+     */
+    public BookFinder(String path, ImagePool pool, StageCache cache) {
         this.path = path;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * バッチ処理のワーカー用。{@link #process(String, double, double)} で画像を切り替えながらバッファを使い回す
+     */
+    BookFinder(ImagePool pool) {
+        this(null, pool);
     }
 
     private void setResizedImageSize(IplImage original, int maxwidth, int maxheight) {
+        int[] size = fitSize(original.arrayWidth(), original.arrayHeight(), maxwidth, maxheight);
+        resizedWidth = size[0];
+        resizedHeight = size[1];
+    }
+
+    /**
+     * 縦横比を保ったまま、maxwidth x maxheightに収まるサイズを返す
+     */
+    static int[] fitSize(int imageWidth, int imageHeight, int maxwidth, int maxheight) {
         int width = maxwidth;
         int height = maxheight;
-        int imageWidth = original.arrayWidth();
-        int imageHeight = original.arrayHeight();
 
         if (width > (maxheight * imageWidth / imageHeight)) {
             width = (int)((float)(maxheight * imageWidth) / (float)(imageHeight) + 0.5);
@@ -50,143 +100,327 @@ public class BookFinder {
                 height = 1;
             }
         }
-        resizedWidth = width;
-        resizedHeight = height;
+        return new int[]{width, height};
     }
 
     public void process(double threshold, double threshold2) {
-        IplImage image = cvIplImage(opencv_imgcodecs.imread(path));
-        setResizedImageSize(image, maxwidth, maxheight);
-        resized = resize(image);
-        filter = applyFilter(resized, threshold, threshold2);
-        var seq = findLargestSquare(filter);
-        if (seq != null) {
-            result = transform(resized, seq);
+        process(path, threshold, threshold2);
+    }
+
+    @Override
+    public void process(ImageSource source, double threshold, double threshold2) {
+        load(source);
+        filter = canny(gray, threshold, threshold2);
+        pointing = null;
+        quad = null;
+        sweepResult = null;
+        int[] corners = findLargestSquare(filter);
+        finish(corners);
+    }
+
+    /**
+     * Cannyの閾値を {@link ThresholdSweep} で探して処理する
+     */
+    @Override
+    public void processAuto(ImageSource source) {
+        load(source);
+        pointing = null;
+        quad = null;
+        if (sweep == null) {
+            sweep = new ThresholdSweep();
+        }
+        // 閾値探しは輪郭の抽出と四角形の選択も含めてCANNYに数える
+        long start = System.nanoTime();
+        try (Mat smoothed = cvarrToMat(gray)) {
+            sweepResult = sweep.sweep(smoothed);
+        }
+        metrics.lap(PipelineMetrics.Stage.CANNY, start);
+        int[] corners = null;
+        if (sweepResult != null) {
+            // プレビュー用のエッジ画像は選んだ閾値で作り直す
+            filter = canny(gray, sweepResult.getThreshold(), sweepResult.getThreshold2());
+            corners = sweepResult.points();
+            drawCorners(corners, LOGGER.isLoggable(System.Logger.Level.DEBUG));
+        } else {
+            edges = reuse(edges, gray.width(), gray.height(), IPL_DEPTH_8U, 1);
+            cvSetZero(edges);
+            filter = edges;
+        }
+        finish(corners);
+    }
+
+    private void finish(int[] corners) {
+        if (corners != null) {
+            result = transform(resized, corners);
         } else {
             result = null;
         }
+        metrics.increment(quad != null ? PipelineMetrics.Counter.DOCUMENTS_FOUND : PipelineMetrics.Counter.DOCUMENTS_MISSED, 1);
+    }
+
+    /**
+     * ぼかしまでを済ませる。キャッシュがあればそこから読む
+     */
+    private void load(ImageSource source) {
+        releaseDecoded();
+        Object input = cache == null ? null : source.identity();
+        StageCache.Key resizedKey = input == null ? null
+                : StageCache.key(input, StageCache.Stage.RESIZED, maxwidth, maxheight);
+        StageCache.Key smoothedKey = input == null ? null
+                : StageCache.key(input, StageCache.Stage.SMOOTHED, maxwidth, maxheight, blurSize.width());
+
+        IplImage restored = restore(resizedKey, resized);
+        if (restored != null) {
+            resized = restored;
+            resizedWidth = resized.width();
+            resizedHeight = resized.height();
+        } else {
+            long start = System.nanoTime();
+            // 縮小画像しか使わないので、大きな画像は縮小デコードで読む
+            decoded = ImageDecoder.read(source, maxwidth, maxheight);
+            metrics.lap(PipelineMetrics.Stage.DECODE, start);
+            decodedHeader = cvIplImage(decoded);
+            IplImage image = decodedHeader;
+            setResizedImageSize(image, maxwidth, maxheight);
+            resized = resize(image);
+            store(resizedKey, resized);
+        }
+
+        restored = restore(smoothedKey, gray);
+        if (restored != null) {
+            gray = restored;
+        } else {
+            gray = smooth(resized);
+            store(smoothedKey, gray);
+        }
+    }
+
+    @Override
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private IplImage restore(StageCache.Key key, IplImage scratch) {
+        if (key == null) {
+            return null;
+        }
+        return cache.read(key, cached -> {
+            IplImage dest = reuse(scratch, cached.width(), cached.height(), cached.depth(), cached.nChannels());
+            cvCopy(cached, dest);
+            return dest;
+        });
+    }
+
+    private void store(StageCache.Key key, IplImage image) {
+        if (key != null) {
+            cache.put(key, image);
+        }
+    }
+
+    private IplImage reuse(IplImage image, int width, int height, int depth, int channels) {
+        if (image != null && image.width() == width && image.height() == height
+                && image.depth() == depth && image.nChannels() == channels) {
+            return image;
+        }
+        pool.release(image);
+        return pool.acquire(width, height, depth, channels);
     }
 
     private IplImage resize(IplImage image) {
-        IplImage iplImage = cvCreateImage(cvSize(resizedWidth, resizedHeight), image.depth(), image.nChannels());
+        IplImage iplImage = reuse(resized, resizedWidth, resizedHeight, image.depth(), image.nChannels());
+        long start = System.nanoTime();
         cvResize(image, iplImage);
+        metrics.lap(PipelineMetrics.Stage.RESIZE, start);
         return iplImage;
     }
 
-    private IplImage applyFilter(IplImage image, double threshold, double threshold2) {
-        IplImage gray = cvCreateImage(cvGetSize(image), IPL_DEPTH_8U, 1);
+    IplImage smooth(IplImage image) {
+        IplImage gray = reuse(this.gray, image.width(), image.height(), IPL_DEPTH_8U, 1);
+        long start = System.nanoTime();
         cvCvtColor(image, gray, CV_BGR2GRAY);
-        OpenCVFrameConverter.ToMat converter2Mat = new OpenCVFrameConverter.ToMat();
         Frame grayImageFrame = converter2Mat.convert(gray);
         Mat mat = converter2Mat.convert(grayImageFrame);
 
-        GaussianBlur(mat, mat, new Size(5, 5), 0, 0, BORDER_DEFAULT);
+        GaussianBlur(mat, mat, blurSize, 0, 0, BORDER_DEFAULT);
+        start = metrics.lap(PipelineMetrics.Stage.GRAY_BLUR, start);
         IplImage destImage = converter2Mat.convertToIplImage(grayImageFrame);
         cvErode(destImage, destImage);
         cvDilate(destImage, destImage);
-        cvCanny(destImage, destImage, threshold, threshold2);
-        return destImage;
+        metrics.lap(PipelineMetrics.Stage.ERODE_DILATE, start);
+        return gray;
     }
 
-    private CvSeq findLargestSquare(IplImage image) {
-        IplImage founded = cvCloneImage(image);
-        IplImage resultImage = cvCloneImage(resized);
+    IplImage canny(IplImage smoothed, double threshold, double threshold2) {
+        edges = reuse(edges, smoothed.width(), smoothed.height(), IPL_DEPTH_8U, 1);
+        long start = System.nanoTime();
+        cvCanny(smoothed, edges, threshold, threshold2);
+        metrics.lap(PipelineMetrics.Stage.CANNY, start);
+        return edges;
+    }
 
-        CvMemStorage memory = CvMemStorage.create();
-        CvSeq contours = new CvSeq();
+    int[] findLargestSquare(IplImage image) {
+        contourBuffer = reuse(contourBuffer, image.width(), image.height(), image.depth(), image.nChannels());
+        cvCopy(image, contourBuffer);
+        IplImage founded = contourBuffer;
+        long start = System.nanoTime();
 
+        if (memory == null) {
+            memory = CvMemStorage.create();
+        } else {
+            cvClearMemStorage(memory);
+        }
         cvFindContours(founded, memory, contours,
-                Loader.sizeof(CvContour.class), CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE, cvPoint(0, 0));
-
-        int maxWidth = 0;
-        int maxHeight = 0;
-        double maxArea = 0;
-
-        CvRect contour = null;
-        CvSeq seqFounded = null;
-        CvSeq nextSeq = new CvSeq();
-
-        CvSeq result = null;
-        for (nextSeq = contours; nextSeq != null; nextSeq = nextSeq.h_next()) {
-            double area = cvContourArea(nextSeq);
-            System.out.println("area: " + area);
-            if (area > 300) {
-                double peri = cvArcLength(nextSeq, CV_WHOLE_SEQ, 1);
-                CvSeq poly = cvApproxPoly(nextSeq, Loader.sizeof(CvContour.class), memory, CV_POLY_APPROX_DP, 0.02 * peri);
-                System.out.println(poly.total());
-                if (area > 300 && area > maxArea && poly.total() == 4) {
-                    contour = cvBoundingRect(nextSeq);
-                    maxWidth = contour.width();
-                    maxHeight = contour.height();
-                    maxArea = area;
-                    result = poly;
-                    System.out.println(poly);
+                Loader.sizeof(CvContour.class), CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE, offset);
+        // 輪郭の点をまとめてコピーし、面積や近似はJavaで計算する
+        contourPoints.load(contours);
+
+        boolean trace = LOGGER.isLoggable(System.Logger.Level.DEBUG);
+        // 面積での絞り込みも、Javaでの近似と合わせてAPPROX_POLYに数える
+        long approxStart = System.nanoTime();
+        int largest = contourPoints.largestQuad(300, 0.02);
+        long approxNanos = System.nanoTime() - approxStart;
+        int seen = contourPoints.size();
+        if (trace && largest >= 0) {
+            LOGGER.log(System.Logger.Level.DEBUG, "area: {0} contours: {1}", contourPoints.area(largest), seen);
+        }
+
+        // 選んだ輪郭だけはネイティブで近似し直し、頂点はそちらを使う
+        int[] result = null;
+        int disagreed = 0;
+        approxStart = System.nanoTime();
+        for (int candidate = largest; candidate >= 0 && result == null; ) {
+            CvSeq seq = contourPoints.sequence(candidate);
+            double peri = cvArcLength(seq, CV_WHOLE_SEQ, 1);
+            CvSeq poly = cvApproxPoly(seq, Loader.sizeof(CvContour.class), memory, CV_POLY_APPROX_DP, 0.02 * peri);
+            if (poly.total() == 4) {
+                result = new int[8];
+                try (IntPointer vertices = new IntPointer(8)) {
+                    cvCvtSeqToArray(poly, vertices, CV_WHOLE_SEQ);
+                    vertices.get(result);
                 }
+            } else {
+                // Javaの近似と食い違った輪郭も、四角形にならなかったものとして数え、次に大きい四角形を試す
+                disagreed++;
+                LOGGER.log(System.Logger.Level.DEBUG, "native approximation disagreed: {0} points", poly.total());
+                candidate = contourPoints.nextQuad();
             }
         }
+        approxNanos += System.nanoTime() - approxStart;
+        long rejected = contourPoints.rejectedCount() + disagreed;
+        metrics.recordTime(PipelineMetrics.Stage.CONTOURS, System.nanoTime() - start - approxNanos);
+        metrics.recordTime(PipelineMetrics.Stage.APPROX_POLY, approxNanos);
+        metrics.increment(PipelineMetrics.Counter.CONTOURS_SEEN, seen);
+        metrics.increment(PipelineMetrics.Counter.CONTOURS_REJECTED, rejected);
 
         if (result != null) {
-            for (int i = 0; i < result.total(); i++) {
-                CvPoint v = new CvPoint(cvGetSeqElem(result, i));
-                System.out.println(v);
-                cvDrawCircle(resultImage, v, 5, CvScalar.GREEN, 20, 8, 0);
-            }
-            pointing = resultImage;
+            drawCorners(result, trace);
         }
 
         return result;
     }
 
-    private IplImage transform(IplImage source, CvSeq contour) {
-        IplImage wrap = cvCloneImage(source);
-
-        CvPoint topRight = new CvPoint(cvGetSeqElem(contour, 0));
-        CvPoint topLeft = new CvPoint(cvGetSeqElem(contour, 1));
-        CvPoint bottomLeft = new CvPoint(cvGetSeqElem(contour, 2));
-        CvPoint bottomRight = new CvPoint(cvGetSeqElem(contour, 3));
+    private void drawCorners(int[] corners, boolean trace) {
+        pointingBuffer = reuse(pointingBuffer, resized.width(), resized.height(), resized.depth(), resized.nChannels());
+        IplImage resultImage = pointingBuffer;
+        cvCopy(resized, resultImage);
+        for (int i = 0; i < 4; i++) {
+            if (trace) {
+                LOGGER.log(System.Logger.Level.DEBUG, "corner: ({0}, {1})", corners[i * 2], corners[i * 2 + 1]);
+            }
+            cvDrawCircle(resultImage, cvPoint(corners[i * 2], corners[i * 2 + 1]), 5, CvScalar.GREEN, 20, 8, 0);
+        }
+        pointing = resultImage;
+    }
 
-        int resultWidth = Math.max(topRight.x() - topLeft.x(),
-                bottomRight.x() - bottomLeft.x());
-        int resultHeight = Math.max(bottomRight.y() - topRight.y(),
-                bottomLeft.y() - topLeft.y());
+    /**
+     * @param contour 近似した輪郭の4点。右上、左上、左下、右下の順
+     */
+    IplImage transform(IplImage source, int[] contour) {
+        int topRightX = contour[0], topRightY = contour[1];
+        int topLeftX = contour[2], topLeftY = contour[3];
+        int bottomLeftX = contour[4], bottomLeftY = contour[5];
+        int bottomRightX = contour[6], bottomRightY = contour[7];
+
+        int resultWidth = Math.max(topRightX - topLeftX,
+                bottomRightX - bottomLeftX);
+        int resultHeight = Math.max(bottomRightY - topRightY,
+                bottomLeftY - topLeftY);
         resultWidth = Math.abs(resultWidth);
         resultHeight = Math.abs(resultHeight);
-
-        float[] sourcePoints = {
-                topLeft.x(), topLeft.y(),
-                topRight.x(), topRight.y(),
-                bottomLeft.x(), bottomLeft.y(),
-                bottomRight.x(), bottomRight.y(),
-        };
-        float[] destinationPoints = {
-                0, 0,
-                resultWidth, 0,
-                0, resultHeight,
-                resultWidth, resultHeight,
-        };
-
-        CvMat mat = cvCreateMat(3, 3, CV_32FC1);
-        cvGetPerspectiveTransform(sourcePoints, destinationPoints, mat);
-        IplImage destImage = cvCloneImage(wrap);
-        cvWarpPerspective(wrap, destImage, mat, CV_INTER_LINEAR, CvScalar.ZERO);
-        return cropImage(destImage, 0, 0, resultWidth, resultHeight);
-    }
-
-    private IplImage cropImage(IplImage img, int x, int y, int resultWidth, int resultHeight) {
-        cvSetImageROI(img, cvRect(x, y, resultWidth, resultHeight));
-        IplImage dest = cvCloneImage(img);
-        cvCopy(img, dest);
-        return dest;
+        // 潰れた四角形は見つからなかったことにする
+        if (resultWidth == 0 || resultHeight == 0) {
+            return null;
+        }
+        quad = new Quad(topLeftX, topLeftY, topRightX, topRightY, bottomRightX, bottomRightY, bottomLeftX, bottomLeftY);
+
+        // 出力の大きさの画像に直接補正する。元画像からはみ出す部分は切り捨てる
+        resultBuffer = reuse(resultBuffer, Math.min(resultWidth, source.width()), Math.min(resultHeight, source.height()),
+                source.depth(), source.nChannels());
+        long start = System.nanoTime();
+        try (Mat sourceMat = cvarrToMat(source); Mat dest = cvarrToMat(resultBuffer)) {
+            remapCache.warp(sourceMat, quad, resultWidth, resultHeight, dest);
+        }
+        metrics.lap(PipelineMetrics.Stage.WARP, start);
+        return resultBuffer;
     }
 
+    @Override
     public IplImage getResized() {
         return resized;
     }
 
+    @Override
     public IplImage getResult() {
         return result;
     }
 
+    @Override
+    public Quad getQuad() {
+        return quad;
+    }
+
+    /**
+     * 直前の {@link #processAuto} で選ばれた閾値と四角形の点数。閾値を指定して処理した場合や見つからなかった場合はnull
+     */
+    public ThresholdSweep.Result getSweepResult() {
+        return sweepResult;
+    }
+
+    private void releaseDecoded() {
+        if (decodedHeader != null) {
+            decodedHeader.close();
+            decodedHeader = null;
+        }
+        if (decoded != null) {
+            decoded.close();
+            decoded = null;
+        }
+    }
+
+    /**
+     * 確保したネイティブのバッファを全てプールへ返す
+     */
+    @Override
+    public void close() {
+        releaseDecoded();
+        for (IplImage image : new IplImage[]{resized, gray, edges, contourBuffer, pointingBuffer, resultBuffer}) {
+            pool.release(image);
+        }
+        resized = gray = edges = contourBuffer = pointingBuffer = resultBuffer = null;
+        filter = pointing = result = null;
+        quad = null;
+        if (memory != null) {
+            memory.close();
+            memory = null;
+        }
+        contours.close();
+        contourPoints.close();
+        remapCache.close();
+        offset.close();
+        blurSize.close();
+    }
+
+    @Override
     public List<IplImage> steps() {
         ArrayList<IplImage> images = new ArrayList<>();
         images.add(filter);
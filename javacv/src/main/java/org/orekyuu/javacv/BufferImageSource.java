@@ -0,0 +1,89 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+
+/**
+ * バイト列をimdecodeで読む。direct bufferとメモリマップはネイティブのメモリをそのまま渡し、
+ * ヒープ上のbufferだけはネイティブ側に1回コピーする
+ */
+final class BufferImageSource implements ImageSource {
+
+    /**
+     * アーカイブのエントリのように、バイト列を取り出すのに手間がかかるもの用。ワーカースレッドで初めて呼ばれる
+     */
+    interface Loader {
+        ByteBuffer load() throws IOException;
+    }
+
+    private final String name;
+    private final Object identity;
+    private Loader loader;
+    private ByteBuffer data;
+
+    BufferImageSource(String name, Object identity, ByteBuffer data) {
+        this.name = name;
+        this.identity = identity;
+        this.data = data;
+    }
+
+    BufferImageSource(String name, Object identity, Loader loader) {
+        this.name = name;
+        this.identity = identity;
+        this.loader = loader;
+    }
+
+    /**
+     * 読み出し位置を共有しないよう、毎回複製を返す
+     */
+    ByteBuffer data() {
+        if (data == null) {
+            try {
+                data = loader.load();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loader = null;
+        }
+        return data.duplicate();
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public Object identity() {
+        return identity != null ? identity : this;
+    }
+
+    @Override
+    public Mat decode(int flags) {
+        ByteBuffer buffer = data();
+        if (!buffer.hasRemaining()) {
+            throw new IllegalArgumentException("画像を読み込めません: " + name);
+        }
+        try (BytePointer pointer = new BytePointer(buffer);
+             Mat encoded = new Mat(1, buffer.remaining(), CV_8UC1, pointer)) {
+            Mat image = opencv_imgcodecs.imdecode(encoded, flags);
+            if (image.empty()) {
+                image.close();
+                throw new IllegalArgumentException("画像を読み込めません: " + name);
+            }
+            return image;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
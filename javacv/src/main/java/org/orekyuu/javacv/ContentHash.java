@@ -0,0 +1,82 @@
+package org.orekyuu.javacv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 入力のバイト列のXXH64。メモリマップしたファイルもコピーせずに読む
+ */
+final class ContentHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private ContentHash() {
+    }
+
+    /**
+     * positionからlimitまでのハッシュ。bufferの位置は動かさない
+     */
+    static long xxh64(ByteBuffer input, long seed) {
+        ByteBuffer buffer = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int p = buffer.position();
+        int end = buffer.limit();
+        long hash;
+        if (end - p >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            do {
+                v1 = round(v1, buffer.getLong(p));
+                v2 = round(v2, buffer.getLong(p + 8));
+                v3 = round(v3, buffer.getLong(p + 16));
+                v4 = round(v4, buffer.getLong(p + 24));
+                p += 32;
+            } while (p <= end - 32);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += end - buffer.position();
+
+        for (; p + 8 <= end; p += 8) {
+            hash ^= round(0, buffer.getLong(p));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (p + 4 <= end) {
+            hash ^= Integer.toUnsignedLong(buffer.getInt(p)) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            p += 4;
+        }
+        for (; p < end; p++) {
+            hash ^= Byte.toUnsignedLong(buffer.get(p)) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long hash, long value) {
+        hash ^= round(0, value);
+        return hash * PRIME1 + PRIME4;
+    }
+}
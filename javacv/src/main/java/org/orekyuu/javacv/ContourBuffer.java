@@ -0,0 +1,475 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.opencv_core.CvSeq;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+
+import java.util.Arrays;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_WHOLE_SEQ;
+import static org.bytedeco.opencv.global.opencv_core.cvCvtSeqToArray;
+import static org.bytedeco.opencv.global.opencv_core.vconcat;
+
+/**
+ * 全ての輪郭の点を1つのint配列にまとめて持つ。輪郭ごとにネイティブの関数を何度も呼ぶ代わりに、
+ * 輪郭1つにつき1回だけコピーし、面積や周長、外接矩形、折れ線の近似はJavaで計算する。
+ * 計算はOpenCVの contourArea/arcLength/boundingRect/approxPolyDP と同じ結果になるように書いてある。
+ * 配列は使い回すので、読み込み後にメモリを確保しない
+ */
+final class ContourBuffer implements AutoCloseable {
+
+    /**
+     * x, yの順に並べた全ての輪郭の点
+     */
+    private int[] points = new int[1 << 12];
+    /**
+     * i番目の輪郭は点の番号でoffsets[i]からoffsets[i + 1]まで
+     */
+    private int[] offsets = new int[1 << 8];
+    private CvSeq[] sequences = new CvSeq[0];
+    private int count;
+    private double[] areas = new double[1 << 8];
+    /**
+     * 面積がminAreaより大きい輪郭の番号を、大きいものが先頭に来るヒープにしたもの。candidates件まで使う
+     */
+    private int[] heap = new int[1 << 8];
+    private int rejected;
+    private int candidates;
+    private double epsilonRatio;
+    private int[] approximated = new int[64];
+    private int[] stack = new int[64];
+    private IntPointer scratch;
+    private final Mat joined = new Mat();
+
+    /**
+     * 旧APIの輪郭のリストを読み込む。{@link #sequence(int)} で元の輪郭も引ける
+     */
+    void load(CvSeq first) {
+        clear();
+        if (sequences.length == 0) {
+            sequences = new CvSeq[offsets.length];
+        }
+        for (CvSeq seq = first; seq != null && !seq.isNull(); seq = seq.h_next()) {
+            int total = seq.total();
+            if (scratch == null || scratch.capacity() < total * 2L) {
+                if (scratch != null) {
+                    scratch.close();
+                }
+                scratch = new IntPointer(Math.max(total * 2L, 1 << 12));
+            }
+            cvCvtSeqToArray(seq, scratch, CV_WHOLE_SEQ);
+            if (count >= sequences.length) {
+                sequences = Arrays.copyOf(sequences, sequences.length * 2);
+            }
+            sequences[count] = seq;
+            append(scratch, total);
+        }
+    }
+
+    /**
+     * findContoursが返した輪郭を読み込む。全ての点をvconcatで1つのMatにつなげてから、まとめてコピーする
+     */
+    void load(MatVector contours) {
+        clear();
+        int size = (int) contours.size();
+        if (size == 0) {
+            return;
+        }
+        if (offsets.length < size + 1) {
+            offsets = new int[Math.max(offsets.length * 2, size + 1)];
+        }
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] = offsets[i] + contours.get(i).rows();
+        }
+        int total = offsets[size];
+        if (points.length < total * 2) {
+            points = new int[Math.max(points.length * 2, total * 2)];
+        }
+        vconcat(contours, joined);
+        try (IntPointer data = new IntPointer(joined.data())) {
+            data.get(points, 0, total * 2);
+        }
+        count = size;
+    }
+
+    private void append(IntPointer data, int total) {
+        int start = offsets[count];
+        if (points.length < (start + total) * 2) {
+            points = Arrays.copyOf(points, Math.max(points.length * 2, (start + total) * 2));
+        }
+        if (offsets.length < count + 2) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        data.get(points, start * 2, total * 2);
+        count++;
+        offsets[count] = start + total;
+    }
+
+    private void clear() {
+        Arrays.fill(sequences, 0, Math.min(count, sequences.length), null);
+        count = 0;
+        offsets[0] = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int pointCount(int contour) {
+        return offsets[contour + 1] - offsets[contour];
+    }
+
+    int x(int contour, int point) {
+        return points[(offsets[contour] + point) * 2];
+    }
+
+    int y(int contour, int point) {
+        return points[(offsets[contour] + point) * 2 + 1];
+    }
+
+    /**
+     * 面積がminAreaより大きく、周長のepsilonRatio倍で近似すると4点になる輪郭のうち、一番大きいものの番号。
+     * 輪郭を順に見て大きいものが出るたびに近似し直すのと同じ結果を、大きい順に近似して最初の四角形で止めることで求める
+     *
+     * @return 見つからなければ-1
+     */
+    int largestQuad(double minArea, double epsilonRatio) {
+        if (areas.length < count) {
+            areas = new double[Math.max(areas.length * 2, count)];
+            heap = new int[areas.length];
+        }
+        rejected = 0;
+        candidates = 0;
+        this.epsilonRatio = epsilonRatio;
+        for (int i = 0; i < count; i++) {
+            // 外接矩形の面積は輪郭の面積以上なので、それで足りなければ面積も計算しない
+            double area = boundingArea(i) <= minArea ? 0 : area(i);
+            if (area <= minArea) {
+                rejected++;
+            } else {
+                areas[i] = area;
+                heap[candidates++] = i;
+            }
+        }
+        // 大抵は最初の数個で四角形が見つかるので、全てを並べ替えずにヒープにしておく
+        for (int i = candidates / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        return nextQuad();
+    }
+
+    /**
+     * 直前の {@link #largestQuad} か {@link #nextQuad} が返した輪郭を除いて、次に大きい四角形の番号。
+     * 選んだ輪郭を呼び出し側で使えなかった時に続きから探す
+     *
+     * @return 見つからなければ-1
+     */
+    int nextQuad() {
+        while (candidates > 0) {
+            int largest = heap[0];
+            heap[0] = heap[--candidates];
+            siftDown(0);
+            if (approximate(largest, epsilonRatio * perimeter(largest)) == 4) {
+                return largest;
+            }
+            rejected++;
+        }
+        return -1;
+    }
+
+    /**
+     * 同じ面積なら先に出てきたものを先にする
+     */
+    private boolean before(int a, int b) {
+        return areas[a] > areas[b] || areas[a] == areas[b] && a < b;
+    }
+
+    private void siftDown(int position) {
+        int contour = heap[position];
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= candidates) {
+                break;
+            }
+            if (child + 1 < candidates && before(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!before(heap[child], contour)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = contour;
+    }
+
+    /**
+     * 直前の {@link #largestQuad} と、続けて呼んだ {@link #nextQuad} で、小さすぎるか四角形にならなかった輪郭の数
+     */
+    int rejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * {@link #load(CvSeq)} で読み込んだ場合の元の輪郭
+     */
+    CvSeq sequence(int contour) {
+        return sequences[contour];
+    }
+
+    /**
+     * 向きを問わない面積。contourAreaと同じく、最後の点から順に外積を足していく
+     */
+    double area(int contour) {
+        int from = offsets[contour];
+        int to = offsets[contour + 1];
+        if (to - from < 3) {
+            return 0;
+        }
+        double sum = 0;
+        double prevX = points[(to - 1) * 2];
+        double prevY = points[(to - 1) * 2 + 1];
+        for (int i = from; i < to; i++) {
+            double x = points[i * 2];
+            double y = points[i * 2 + 1];
+            sum += prevX * y - prevY * x;
+            prevX = x;
+            prevY = y;
+        }
+        return Math.abs(sum * 0.5);
+    }
+
+    /**
+     * 閉じた輪郭の周長。arcLengthと同じくfloatで差を取って足していく
+     */
+    double perimeter(int contour) {
+        int from = offsets[contour];
+        int to = offsets[contour + 1];
+        if (to - from < 2) {
+            return 0;
+        }
+        double perimeter = 0;
+        float prevX = points[(to - 1) * 2];
+        float prevY = points[(to - 1) * 2 + 1];
+        for (int i = from; i < to; i++) {
+            float x = points[i * 2];
+            float y = points[i * 2 + 1];
+            float dx = x - prevX;
+            float dy = y - prevY;
+            perimeter += (float) Math.sqrt(dx * dx + dy * dy);
+            prevX = x;
+            prevY = y;
+        }
+        return perimeter;
+    }
+
+    /**
+     * 外接矩形の面積。輪郭の面積はこれを超えないので、計算を省く目安になる
+     */
+    long boundingArea(int contour) {
+        int from = offsets[contour];
+        int to = offsets[contour + 1];
+        if (from == to) {
+            return 0;
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            int x = points[i * 2];
+            int y = points[i * 2 + 1];
+            minX = Math.min(minX, x);
+            maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+        }
+        // boundingRectと同じく、端の画素も含めた幅と高さ
+        return (long) (maxX - minX + 1) * (maxY - minY + 1);
+    }
+
+    /**
+     * 閉じた輪郭をDouglas-Peuckerで近似した頂点の数。頂点は {@link #approximatedX}/{@link #approximatedY} で読む。
+     * OpenCVのapproxPolyDPの閉じた輪郭の場合を、そのままの手順で移したもの
+     */
+    int approximate(int contour, double epsilon) {
+        int base = offsets[contour];
+        int count = offsets[contour + 1] - base;
+        if (count == 0) {
+            return 0;
+        }
+        if (approximated.length < count * 2) {
+            approximated = new int[count * 2];
+        }
+        double eps = epsilon * epsilon;
+        int newCount = 0;
+        int top = 0;
+
+        // 1. 輪郭上でおおよそ一番遠い2点を探す
+        int pos = 0;
+        int rightStart = 0;
+        int startX = 0, startY = 0;
+        boolean leEps = false;
+        for (int iteration = 0; iteration < 3; iteration++) {
+            double maxDist = 0;
+            pos = (pos + rightStart) % count;
+            startX = x(contour, pos);
+            startY = y(contour, pos);
+            if (++pos >= count) {
+                pos = 0;
+            }
+            for (int j = 1; j < count; j++) {
+                double dx = x(contour, pos) - startX;
+                double dy = y(contour, pos) - startY;
+                if (++pos >= count) {
+                    pos = 0;
+                }
+                double dist = dx * dx + dy * dy;
+                if (dist > maxDist) {
+                    maxDist = dist;
+                    rightStart = j;
+                }
+            }
+            leEps = maxDist <= eps;
+        }
+
+        // 2. その2点で分けた2つの区間を積む
+        if (!leEps) {
+            int sliceStart = pos % count;
+            int sliceEnd = (rightStart + sliceStart) % count;
+            top = push(top, sliceEnd, sliceStart);
+            top = push(top, sliceStart, sliceEnd);
+        } else {
+            newCount = write(newCount, startX, startY);
+        }
+
+        // 3. 区間の中で弦から一番遠い点がepsより遠ければ、そこで分ける
+        while (top > 0) {
+            top -= 2;
+            int sliceStart = stack[top];
+            int sliceEnd = stack[top + 1];
+            int endX = x(contour, sliceEnd);
+            int endY = y(contour, sliceEnd);
+            pos = sliceStart;
+            startX = x(contour, pos);
+            startY = y(contour, pos);
+            if (++pos >= count) {
+                pos = 0;
+            }
+            int splitAt = 0;
+            if (pos != sliceEnd) {
+                double maxDist = 0;
+                double dx = endX - startX;
+                double dy = endY - startY;
+                while (pos != sliceEnd) {
+                    int px = x(contour, pos);
+                    int py = y(contour, pos);
+                    if (++pos >= count) {
+                        pos = 0;
+                    }
+                    double dist = Math.abs((py - startY) * dx - (px - startX) * dy);
+                    if (dist > maxDist) {
+                        maxDist = dist;
+                        splitAt = (pos + count - 1) % count;
+                    }
+                }
+                leEps = maxDist * maxDist <= eps * (dx * dx + dy * dy);
+            } else {
+                leEps = true;
+                startX = x(contour, sliceStart);
+                startY = y(contour, sliceStart);
+            }
+            if (leEps) {
+                newCount = write(newCount, startX, startY);
+            } else {
+                top = push(top, splitAt, sliceEnd);
+                top = push(top, sliceStart, splitAt);
+            }
+        }
+
+        // 4. ほぼ直線上に並んだ余分な点を除く
+        count = newCount;
+        pos = count - 1;
+        startX = approximated[pos * 2];
+        startY = approximated[pos * 2 + 1];
+        if (++pos >= count) {
+            pos = 0;
+        }
+        int writePos = pos;
+        int ptX = approximated[pos * 2];
+        int ptY = approximated[pos * 2 + 1];
+        if (++pos >= count) {
+            pos = 0;
+        }
+        for (int i = 0; i < count && newCount > 2; i++) {
+            int endX = approximated[pos * 2];
+            int endY = approximated[pos * 2 + 1];
+            if (++pos >= count) {
+                pos = 0;
+            }
+            double dx = endX - startX;
+            double dy = endY - startY;
+            double dist = Math.abs((ptX - startX) * dy - (ptY - startY) * dx);
+            double successiveInnerProduct = (double) (ptX - startX) * (endX - ptX) + (double) (ptY - startY) * (endY - ptY);
+            if (dist * dist <= 0.5 * eps * (dx * dx + dy * dy) && dx != 0 && dy != 0 && successiveInnerProduct >= 0) {
+                newCount--;
+                startX = endX;
+                startY = endY;
+                approximated[writePos * 2] = endX;
+                approximated[writePos * 2 + 1] = endY;
+                if (++writePos >= count) {
+                    writePos = 0;
+                }
+                ptX = approximated[pos * 2];
+                ptY = approximated[pos * 2 + 1];
+                if (++pos >= count) {
+                    pos = 0;
+                }
+                i++;
+                continue;
+            }
+            startX = ptX;
+            startY = ptY;
+            approximated[writePos * 2] = ptX;
+            approximated[writePos * 2 + 1] = ptY;
+            if (++writePos >= count) {
+                writePos = 0;
+            }
+            ptX = endX;
+            ptY = endY;
+        }
+        return newCount;
+    }
+
+    int approximatedX(int point) {
+        return approximated[point * 2];
+    }
+
+    int approximatedY(int point) {
+        return approximated[point * 2 + 1];
+    }
+
+    private int push(int top, int start, int end) {
+        if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top] = start;
+        stack[top + 1] = end;
+        return top + 2;
+    }
+
+    private int write(int index, int x, int y) {
+        approximated[index * 2] = x;
+        approximated[index * 2 + 1] = y;
+        return index + 1;
+    }
+
+    @Override
+    public void close() {
+        clear();
+        joined.close();
+        if (scratch != null) {
+            scratch.close();
+            scratch = null;
+        }
+    }
+}
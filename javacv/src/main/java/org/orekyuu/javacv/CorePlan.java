@@ -0,0 +1,161 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.global.opencv_core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Javaのワーカー数と、OpenCVが内部で使うスレッド数の組。
+ * OpenCVはリサイズやぼかし、Cannyを自前のスレッドで並列化するので、ワーカーを増やすだけではコアを奪い合って遅くなる。
+ * 両者の積がコア数に収まるように、枚数が多く小さい画像ならワーカーを増やし、大きい画像が少しだけなら内部の並列化に回す。
+ * 大きさは入力の画素数ではなく、OpenCVが並列化する段で扱う画素数で見る。縮小画像だけを使う実装では、入力が大きくても小さい画像になる
+ */
+public final class CorePlan {
+
+    // これより画素数が多ければ、1枚でも内部の並列化が効く
+    static final long LARGE_PIXELS = 4_000_000;
+    // BookFinderとMatBookFinderが検出に使う縮小画像の大きさ
+    private static final int RESIZED_WIDTH = 480;
+    private static final int RESIZED_HEIGHT = 640;
+    // 大きい画像でも、1枚に割り当てるのはこのスレッド数まで。これ以上はワーカーを増やした方が速い
+    private static final int MAX_THREADS_PER_IMAGE = 4;
+    // 大きさを調べるのは先頭からこの枚数まで
+    private static final int SAMPLES = 16;
+
+    private static final System.Logger LOGGER = System.getLogger(CorePlan.class.getName());
+    private static CorePlan pinned;
+
+    private final int cores;
+    private final int workers;
+    private final int openCvThreads;
+
+    private CorePlan(int cores, int workers, int openCvThreads) {
+        this.cores = cores;
+        this.workers = workers;
+        this.openCvThreads = openCvThreads;
+    }
+
+    /**
+     * @param images         処理する枚数。分からなければ {@link Integer#MAX_VALUE}
+     * @param pixelsPerImage 1枚あたりにOpenCVが並列化する段で扱う画素数。{@link #processedPixels} で求める
+     */
+    public static CorePlan forWorkload(int images, long pixelsPerImage) {
+        return forWorkload(images, pixelsPerImage, Runtime.getRuntime().availableProcessors());
+    }
+
+    static CorePlan forWorkload(int images, long pixelsPerImage, int cores) {
+        int perImage = pixelsPerImage >= LARGE_PIXELS ? Math.min(cores, MAX_THREADS_PER_IMAGE) : 1;
+        int workers = Math.max(1, Math.min(images, cores / perImage));
+        // 枚数がコア数より少なければ、余ったコアも内部の並列化に回す
+        return new CorePlan(cores, workers, Math.max(1, cores / workers));
+    }
+
+    /**
+     * ワーカー数を決めてある場合。残りのコアをOpenCVに割り当てる
+     */
+    public static CorePlan withWorkers(int workers) {
+        return withWorkers(workers, Runtime.getRuntime().availableProcessors());
+    }
+
+    static CorePlan withWorkers(int workers, int cores) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        return new CorePlan(cores, workers, Math.max(1, cores / workers));
+    }
+
+    /**
+     * 先頭の数枚をデコードせずにヘッダだけ読み、typeで処理する時の画素数の平均から決める
+     */
+    public static CorePlan forSources(List<? extends ImageSource> sources, FinderType type) {
+        return forSources(sources, type, Runtime.getRuntime().availableProcessors());
+    }
+
+    static CorePlan forSources(List<? extends ImageSource> sources, FinderType type, int cores) {
+        long pixels = 0;
+        int sampled = 0;
+        for (ImageSource source : sources.subList(0, Math.min(SAMPLES, sources.size()))) {
+            try {
+                int[] size = ImageDecoder.readSize(source);
+                if (size != null) {
+                    pixels += processedPixels(type, size[0], size[1]);
+                    sampled++;
+                }
+            } catch (IOException e) {
+                // 読めないものは処理する時に失敗として報告する
+            }
+        }
+        return forWorkload(sources.size(), sampled == 0 ? 0 : pixels / sampled, cores);
+    }
+
+    /**
+     * width x heightの入力をtypeで処理する時に、リサイズやぼかし、Canny、台形補正が扱う画素数。
+     * 元の解像度で補正するのはPYRAMIDだけで、他は縮小デコードした画像を縮小画像にしてから使う
+     */
+    static long processedPixels(FinderType type, int width, int height) {
+        if (type == FinderType.PYRAMID) {
+            return (long) width * height;
+        }
+        int[] fitted = BookFinder.fitSize(width, height, RESIZED_WIDTH, RESIZED_HEIGHT);
+        return (long) fitted[0] * fitted[1];
+    }
+
+    /**
+     * OpenCVのスレッド数をこの組に合わせる。OpenCVのスレッド数はプロセスで1つなので、後から呼んだ組で置き換わる
+     */
+    public CorePlan pin() {
+        synchronized (CorePlan.class) {
+            if (pinned != null && pinned.openCvThreads != openCvThreads) {
+                LOGGER.log(System.Logger.Level.INFO, "OpenCVのスレッド数を{0}から{1}に変更します", pinned.openCvThreads, openCvThreads);
+            }
+            opencv_core.setNumThreads(openCvThreads);
+            pinned = this;
+        }
+        return this;
+    }
+
+    /**
+     * @return まだ {@link #pin()} していなければnull
+     */
+    public static synchronized CorePlan pinned() {
+        return pinned;
+    }
+
+    /**
+     * 今のOpenCVのスレッド数を表す組。後で {@link #pin()} し直せば元に戻せる
+     */
+    static synchronized CorePlan current() {
+        if (pinned != null) {
+            return pinned;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new CorePlan(cores, 1, opencv_core.getNumThreads());
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getOpenCvThreads() {
+        return openCvThreads;
+    }
+
+    /**
+     * 1秒あたりの枚数と、それをコア数で割ったもの
+     */
+    public String throughput(int images, long nanos) {
+        double perSecond = images / (nanos / 1e9);
+        return String.format(Locale.ROOT, "%.1f images/sec, %.2f images/sec/core", perSecond, perSecond / cores);
+    }
+
+    @Override
+    public String toString() {
+        return workers + " workers x " + openCvThreads + " OpenCV threads on " + cores + " cores";
+    }
+}
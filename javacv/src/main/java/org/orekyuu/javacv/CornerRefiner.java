@@ -0,0 +1,109 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.bytedeco.opencv.opencv_core.TermCriteria;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_32FC2;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * 縮小画像で見つけた四隅を、解像度を2倍ずつ上げながらサブピクセル精度で合わせ込む。
+ * 各段では角の周りの小さな範囲だけを切り出して縮小するので、元画像全体のピラミッドは作らない
+ */
+class CornerRefiner implements AutoCloseable {
+
+    /**
+     * cornerSubPixの探索窓の半径(各段のピクセル)
+     */
+    private static final int WINDOW = 5;
+
+    private final Mat scaled = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat corner = new Mat(1, 1, CV_32FC2);
+    private final FloatIndexer cornerIndexer = corner.createIndexer();
+    private final Size patchSize = new Size();
+    private final Size winSize = new Size(WINDOW, WINDOW);
+    private final Size zeroZone = new Size(-1, -1);
+    private final TermCriteria criteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 30, 0.01);
+
+    /**
+     * @param original  元の解像度の画像
+     * @param detected  縮小画像で見つけた四隅
+     * @param scaleX    縮小画像の元画像に対する横方向の倍率(1未満)
+     * @param scaleY    縮小画像の元画像に対する縦方向の倍率(1未満)
+     * @return 元画像の座標系での四隅
+     */
+    Quad refine(Mat original, Quad detected, double scaleX, double scaleY) {
+        float[] points = detected.scale(1 / scaleX, 1 / scaleY).toArray();
+        double scale = Math.min(1.0, Math.max(scaleX, scaleY));
+        while (true) {
+            for (int i = 0; i < 4; i++) {
+                refineAt(original, points, i, scale);
+            }
+            if (scale >= 1.0) {
+                break;
+            }
+            scale = Math.min(1.0, scale * 2);
+        }
+        return Quad.of(points);
+    }
+
+    private void refineAt(Mat original, float[] points, int index, double scale) {
+        float x = points[index * 2];
+        float y = points[index * 2 + 1];
+        // 窓の外側にも少し余裕を持たせて切り出す
+        int half = (int) Math.ceil((WINDOW * 2 + 2) / scale);
+        int left = Math.max(0, Math.round(x) - half);
+        int top = Math.max(0, Math.round(y) - half);
+        int right = Math.min(original.cols(), Math.round(x) + half + 1);
+        int bottom = Math.min(original.rows(), Math.round(y) + half + 1);
+        if (right - left < 2 * WINDOW + 5 || bottom - top < 2 * WINDOW + 5) {
+            return;
+        }
+
+        try (Rect rect = new Rect(left, top, right - left, bottom - top); Mat patch = original.apply(rect)) {
+            Mat source = patch;
+            if (scale < 1.0) {
+                patchSize.width(Math.max(1, (int) Math.round(patch.cols() * scale)))
+                        .height(Math.max(1, (int) Math.round(patch.rows() * scale)));
+                resize(patch, scaled, patchSize, 0, 0, INTER_AREA);
+                source = scaled;
+            }
+            if (source.channels() == 1) {
+                source.copyTo(gray);
+            } else {
+                cvtColor(source, gray, COLOR_BGR2GRAY);
+            }
+        }
+
+        double levelScaleX = (double) gray.cols() / (right - left);
+        double levelScaleY = (double) gray.rows() / (bottom - top);
+        float localX = (float) ((x - left + 0.5) * levelScaleX - 0.5);
+        float localY = (float) ((y - top + 0.5) * levelScaleY - 0.5);
+        cornerIndexer.put(0, 0, 0, localX).put(0, 0, 1, localY);
+        cornerSubPix(gray, corner, winSize, zeroZone, criteria);
+        float refinedX = cornerIndexer.get(0, 0, 0);
+        float refinedY = cornerIndexer.get(0, 0, 1);
+        // 窓の外まで動いた場合は別の角に吸い寄せられているので採用しない
+        if (Math.abs(refinedX - localX) > WINDOW || Math.abs(refinedY - localY) > WINDOW) {
+            return;
+        }
+        points[index * 2] = (float) (left + (refinedX + 0.5) / levelScaleX - 0.5);
+        points[index * 2 + 1] = (float) (top + (refinedY + 0.5) / levelScaleY - 0.5);
+    }
+
+    @Override
+    public void close() {
+        cornerIndexer.release();
+        scaled.close();
+        gray.close();
+        corner.close();
+        patchSize.close();
+        winSize.close();
+        zeroZone.close();
+        criteria.close();
+    }
+}
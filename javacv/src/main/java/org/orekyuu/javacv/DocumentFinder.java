@@ -0,0 +1,59 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 写真の中から書類を探して台形補正する処理。実装は {@link FinderType} から選ぶ
+ */
+public interface DocumentFinder extends AutoCloseable {
+
+    default void process(String path, double threshold, double threshold2) {
+        process(ImageSource.of(Paths.get(path)), threshold, threshold2);
+    }
+
+    void process(ImageSource source, double threshold, double threshold2);
+
+    default void processAuto(String path) {
+        processAuto(ImageSource.of(Paths.get(path)));
+    }
+
+    /**
+     * Cannyの閾値を画像ごとに自動で決めて処理する
+     */
+    void processAuto(ImageSource source);
+
+    /**
+     * 見つかった書類の四隅。{@link #getResized()} の座標系で、見つからなかった場合はnull
+     */
+    Quad getQuad();
+
+    /**
+     * 元の解像度の画像の座標系での四隅。元画像から出力しない実装ではnull
+     */
+    default Quad getSourceQuad() {
+        return null;
+    }
+
+    IplImage getResized();
+
+    IplImage getResult();
+
+    /**
+     * エッジ画像と、四隅を書き込んだ画像
+     */
+    List<IplImage> steps();
+
+    /**
+     * 各段の所要時間の記録先。既定では {@link StageMetrics#shared()}
+     */
+    void setMetrics(PipelineMetrics metrics);
+
+    /**
+     * 確保したネイティブのバッファを解放する。以降getterが返した画像は使えない
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,47 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.nio.file.Path;
+
+/**
+ * ファイルをimreadで読む
+ */
+final class FileImageSource implements ImageSource {
+
+    private final Path path;
+
+    FileImageSource(Path path) {
+        this.path = path;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    @Override
+    public String name() {
+        return path.toString();
+    }
+
+    @Override
+    public Object identity() {
+        return StageCache.inputOf(path.toString());
+    }
+
+    @Override
+    public Mat decode(int flags) {
+        Mat image = opencv_imgcodecs.imread(path.toString(), flags);
+        if (image.empty()) {
+            image.close();
+            throw new IllegalArgumentException("画像を読み込めません: " + path);
+        }
+        return image;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
@@ -0,0 +1,36 @@
+package org.orekyuu.javacv;
+
+public enum FinderType {
+    /**
+     * IplImageとCvSeqを使う旧APIでの実装
+     */
+    LEGACY {
+        @Override
+        public DocumentFinder create(ImagePool pool, StageCache cache) {
+            return new BookFinder(null, pool, cache);
+        }
+    },
+    /**
+     * Matと新しいimgprocの関数だけで組んだ実装
+     */
+    MAT {
+        @Override
+        public DocumentFinder create(ImagePool pool, StageCache cache) {
+            return new MatBookFinder(cache);
+        }
+    },
+    /**
+     * 縮小画像で四隅を見つけてから元の解像度まで合わせ込み、元画像から台形補正する
+     */
+    PYRAMID {
+        @Override
+        public DocumentFinder create(ImagePool pool, StageCache cache) {
+            return new MatBookFinder(cache, true);
+        }
+    };
+
+    /**
+     * @param cache nullならキャッシュしない
+     */
+    public abstract DocumentFinder create(ImagePool pool, StageCache cache);
+}
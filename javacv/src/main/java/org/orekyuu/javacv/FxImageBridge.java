@@ -0,0 +1,122 @@
+package org.orekyuu.javacv;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC4;
+import static org.bytedeco.opencv.global.opencv_core.cvarrToMat;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * OpenCVの画像をエンコードせずにJavaFXのImageへ渡す。
+ * 表示先(スロット)ごとに {@link PixelBuffer} を持ち、サイズが変わらない限り同じ {@link WritableImage} を使い回す。
+ *
+ * <p>{@link #prepare} はバックグラウンドで縮小とBGRAへの変換まで行い、
+ * {@link #publish} はFXスレッドで変換済みの画素をPixelBufferへコピーするだけにする。
+ * prepareした結果をpublishするまで、同じスロットで次のprepareをしてはいけない
+ */
+public class FxImageBridge implements AutoCloseable {
+
+    public static final class Slot {
+        private final String name;
+        private Mat staging;
+        private boolean empty = true;
+        private PixelBuffer<ByteBuffer> pixels;
+        private WritableImage image;
+
+        private Slot(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    /**
+     * @param maxSize 長辺がこれを超える場合は縮小してから渡す。0以下なら縮小しない
+     */
+    public synchronized Slot prepare(String name, IplImage image, int maxSize) {
+        Slot slot = slots.computeIfAbsent(name, Slot::new);
+        if (image == null) {
+            slot.empty = true;
+            return slot;
+        }
+
+        int width = image.width();
+        int height = image.height();
+        double scale = maxSize > 0 ? Math.min(1.0, (double) maxSize / Math.max(width, height)) : 1.0;
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        if (slot.staging == null || slot.staging.cols() != targetWidth || slot.staging.rows() != targetHeight) {
+            if (slot.staging != null) {
+                slot.staging.close();
+            }
+            slot.staging = new Mat(targetHeight, targetWidth, CV_8UC4);
+        }
+
+        try (Mat source = cvarrToMat(image)) {
+            Mat scaled = source;
+            if (scale < 1.0) {
+                scaled = new Mat();
+                try (Size size = new Size(targetWidth, targetHeight)) {
+                    resize(source, scaled, size, 0, 0, INTER_AREA);
+                }
+            }
+            if (scaled.channels() == 1) {
+                cvtColor(scaled, slot.staging, COLOR_GRAY2BGRA);
+            } else if (scaled.channels() == 3) {
+                cvtColor(scaled, slot.staging, COLOR_BGR2BGRA);
+            } else {
+                scaled.copyTo(slot.staging);
+            }
+            if (scaled != source) {
+                scaled.close();
+            }
+        }
+        slot.empty = false;
+        return slot;
+    }
+
+    /**
+     * FXスレッドで呼ぶこと
+     */
+    public synchronized Image publish(Slot slot) {
+        if (slot.empty) {
+            return null;
+        }
+        int width = slot.staging.cols();
+        int height = slot.staging.rows();
+        if (slot.pixels == null || slot.pixels.getWidth() != width || slot.pixels.getHeight() != height) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4);
+            slot.pixels = new PixelBuffer<>(width, height, buffer, PixelFormat.getByteBgraPreInstance());
+            slot.image = new WritableImage(slot.pixels);
+        }
+        ByteBuffer staged = slot.staging.createBuffer();
+        slot.pixels.updateBuffer(pixels -> {
+            ByteBuffer buffer = pixels.getBuffer();
+            buffer.clear();
+            buffer.put(staged.limit(width * height * 4));
+            buffer.rewind();
+            return null;
+        });
+        return slot.image;
+    }
+
+    @Override
+    public synchronized void close() {
+        slots.values().forEach(slot -> {
+            if (slot.staging != null) {
+                slot.staging.close();
+            }
+        });
+        slots.clear();
+    }
+}
@@ -0,0 +1,451 @@
+package org.orekyuu.javacv;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 64bitのハッシュをハミング距離で引く索引。ハッシュを16bitずつ4つに分け、それぞれの値からエントリを引く表を持つ(multi-index hashing)。
+ * 距離r以内のものは、どれか1つのブロックの距離がr/4以内なので、その近くの表だけを見ればよい。
+ * 表はメモリマップしたファイルに置くので、開き直しても作り直さない。
+ * 追加したものはログに書いて、ある程度溜まったら表を書き直す
+ */
+public final class HashIndex implements AutoCloseable {
+
+    /**
+     * 見つかったエントリ
+     */
+    public static final class Match {
+        private final long id;
+        private final long hash;
+        private final int distance;
+
+        Match(long id, long hash, int distance) {
+            this.id = id;
+            this.hash = hash;
+            this.distance = distance;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x (distance %d)", id, distance);
+        }
+    }
+
+    private static final int MAGIC = 0x48494458;
+    private static final int LOG_MAGIC = 0x48494c47;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int LOG_HEADER = 16;
+    private static final int LOG_RECORD = 16;
+    private static final int BLOCKS = 4;
+    private static final int BLOCK_BITS = 16;
+    private static final int BUCKETS = 1 << BLOCK_BITS;
+    // 1ブロックでこれより遠くまで探すなら、全件を比べた方が速い
+    private static final int MAX_BLOCK_RADIUS = 2;
+    // ログに溜めるのは、少なくともこの件数まで
+    private static final int MIN_PENDING = 1 << 16;
+
+    private final Path baseFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final FileChannel log;
+    private Segment base;
+    private long[] pendingHashes = new long[1024];
+    private long[] pendingIds = new long[1024];
+    private int pending;
+
+    private HashIndex(Path baseFile, Segment base, FileChannel log) {
+        this.baseFile = baseFile;
+        this.base = base;
+        this.log = log;
+    }
+
+    /**
+     * ディレクトリになければ空の索引を作る
+     */
+    public static HashIndex open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path baseFile = directory.resolve("hashes.idx");
+        Segment base = Files.exists(baseFile) ? Segment.map(baseFile) : Segment.EMPTY;
+        FileChannel log = FileChannel.open(directory.resolve("hashes.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        HashIndex index = new HashIndex(baseFile, base, log);
+        try {
+            index.replay();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        return index;
+    }
+
+    /**
+     * 前回の追加分をログから読む。表を書き直した後のログでなければ、中身は既に表に入っているので捨てる
+     */
+    private void replay() throws IOException {
+        long size = log.size();
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        if (size < LOG_HEADER || log.read(header, 0) < LOG_HEADER
+                || header.getInt(0) != LOG_MAGIC || header.getLong(8) != base.generation) {
+            resetLog();
+            return;
+        }
+        long records = (size - LOG_HEADER) / LOG_RECORD;
+        ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(records * LOG_RECORD)).order(ByteOrder.LITTLE_ENDIAN);
+        while (data.hasRemaining() && log.read(data, LOG_HEADER + data.position()) >= 0) {
+            // 読み切るまで
+        }
+        data.flip();
+        while (data.remaining() >= LOG_RECORD) {
+            append(data.getLong(), data.getLong());
+        }
+        // 書きかけで終わった最後の1件は捨てる
+        log.truncate(LOG_HEADER + records * LOG_RECORD);
+        log.position(LOG_HEADER + records * LOG_RECORD);
+    }
+
+    private void resetLog() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOG_MAGIC).putInt(VERSION).putLong(base.generation).flip();
+        log.truncate(0);
+        log.write(header, 0);
+        log.force(true);
+        log.position(LOG_HEADER);
+    }
+
+    private void append(long hash, long id) {
+        if (pending == pendingHashes.length) {
+            pendingHashes = Arrays.copyOf(pendingHashes, pending * 2);
+            pendingIds = Arrays.copyOf(pendingIds, pending * 2);
+        }
+        pendingHashes[pending] = hash;
+        pendingIds[pending] = id;
+        pending++;
+    }
+
+    public void add(long hash, long id) throws IOException {
+        lock.writeLock().lock();
+        try {
+            addLocked(hash, id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * maxDistance以内に既にあればそれを返し、なければ追加してnullを返す。
+     * 同じページを複数のワーカーが同時に処理しても、どちらかだけが追加される。
+     * 同じIDのものは前回までに追加した自分自身なので、近いものとしては返さず、追加もし直さない
+     */
+    public Match addIfAbsent(long hash, long id, int maxDistance) throws IOException {
+        lock.writeLock().lock();
+        try {
+            boolean indexed = false;
+            for (Match match : searchLocked(hash, maxDistance)) {
+                if (match.id != id) {
+                    return match;
+                }
+                indexed = true;
+            }
+            if (!indexed) {
+                addLocked(hash, id);
+            }
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addLocked(long hash, long id) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(LOG_RECORD).order(ByteOrder.LITTLE_ENDIAN);
+        record.putLong(hash).putLong(id).flip();
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+        append(hash, id);
+        if (pending >= Math.max(MIN_PENDING, base.count / 64)) {
+            compactLocked();
+        }
+    }
+
+    /**
+     * maxDistance以内のものを近い順に返す
+     */
+    public List<Match> search(long hash, int maxDistance) {
+        lock.readLock().lock();
+        try {
+            return searchLocked(hash, maxDistance);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return maxDistance以内になければnull
+     */
+    public Match nearest(long hash, int maxDistance) {
+        List<Match> found = search(hash, maxDistance);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private List<Match> searchLocked(long hash, int maxDistance) {
+        List<Match> found = new ArrayList<>();
+        base.search(hash, maxDistance, found);
+        for (int i = 0; i < pending; i++) {
+            int distance = Long.bitCount(pendingHashes[i] ^ hash);
+            if (distance <= maxDistance) {
+                found.add(new Match(pendingIds[i], pendingHashes[i], distance));
+            }
+        }
+        found.sort(Comparator.comparingInt(Match::getDistance));
+        return found;
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return base.count + pending;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * ログに溜まっている分も含めて表を書き直す
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            compactLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        Path temp = baseFile.resolveSibling(baseFile.getFileName() + ".tmp");
+        Segment.write(temp, base.generation + 1, base, pendingHashes, pendingIds, pending);
+        // 置き換えてからログを空にするまでの間に落ちても、ログの世代が古いので次に開いた時に捨てられる
+        Files.move(temp, baseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        base = Segment.map(baseFile);
+        pending = 0;
+        resetLog();
+    }
+
+    /**
+     * ログをディスクに書いてから閉じる。マップした表はGCされるまで残る
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            log.force(true);
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 書き直すまで変わらない表。ファイルの中身は、ヘッダ、ハッシュ、ID、ブロックごとの(バケットの開始位置、エントリ番号)
+     */
+    private static final class Segment {
+        static final Segment EMPTY = new Segment(0, 0, null, null, null, null);
+
+        final long generation;
+        final int count;
+        final LongBuffer hashes;
+        final LongBuffer ids;
+        final IntBuffer[] offsets;
+        final IntBuffer[] postings;
+
+        private Segment(long generation, int count, LongBuffer hashes, LongBuffer ids, IntBuffer[] offsets, IntBuffer[] postings) {
+            this.generation = generation;
+            this.count = count;
+            this.hashes = hashes;
+            this.ids = ids;
+            this.offsets = offsets;
+            this.postings = postings;
+        }
+
+        static Segment map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("索引の形式が違います: " + file);
+                }
+                long generation = header.getLong(8);
+                int count = header.getInt(16);
+                if (channel.size() != fileSize(count)) {
+                    throw new IOException("索引が途中で切れています: " + file);
+                }
+                long position = HEADER;
+                LongBuffer hashes = map(channel, position, count * 8L).asLongBuffer();
+                position += count * 8L;
+                LongBuffer ids = map(channel, position, count * 8L).asLongBuffer();
+                position += count * 8L;
+                IntBuffer[] offsets = new IntBuffer[BLOCKS];
+                IntBuffer[] postings = new IntBuffer[BLOCKS];
+                for (int block = 0; block < BLOCKS; block++) {
+                    offsets[block] = map(channel, position, (BUCKETS + 1) * 4L).asIntBuffer();
+                    position += (BUCKETS + 1) * 4L;
+                    postings[block] = map(channel, position, count * 4L).asIntBuffer();
+                    position += count * 4L;
+                }
+                return new Segment(generation, count, hashes, ids, offsets, postings);
+            }
+        }
+
+        private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static long fileSize(long count) {
+            return HEADER + count * 16 + BLOCKS * ((BUCKETS + 1) * 4L + count * 4);
+        }
+
+        /**
+         * baseの全件と追加分から新しい表を書く。バケットごとの件数を数えてから、エントリ番号を詰めていく
+         */
+        static void write(Path file, long generation, Segment base, long[] hashes, long[] ids, int added) throws IOException {
+            int count = Math.addExact(base.count, added);
+            List<MappedByteBuffer> mapped = new ArrayList<>();
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"); FileChannel channel = raf.getChannel()) {
+                raf.setLength(fileSize(count));
+                ByteBuffer header = writable(channel, 0, HEADER, mapped);
+                header.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, generation).putInt(16, count);
+
+                long position = HEADER;
+                LongBuffer newHashes = writable(channel, position, count * 8L, mapped).asLongBuffer();
+                position += count * 8L;
+                LongBuffer newIds = writable(channel, position, count * 8L, mapped).asLongBuffer();
+                position += count * 8L;
+                for (int i = 0; i < base.count; i++) {
+                    newHashes.put(i, base.hashes.get(i));
+                    newIds.put(i, base.ids.get(i));
+                }
+                for (int i = 0; i < added; i++) {
+                    newHashes.put(base.count + i, hashes[i]);
+                    newIds.put(base.count + i, ids[i]);
+                }
+
+                int[] starts = new int[BUCKETS + 1];
+                for (int block = 0; block < BLOCKS; block++) {
+                    Arrays.fill(starts, 0);
+                    for (int i = 0; i < count; i++) {
+                        starts[key(newHashes.get(i), block) + 1]++;
+                    }
+                    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                        starts[bucket + 1] += starts[bucket];
+                    }
+                    IntBuffer offsets = writable(channel, position, (BUCKETS + 1) * 4L, mapped).asIntBuffer();
+                    offsets.put(starts);
+                    position += (BUCKETS + 1) * 4L;
+                    IntBuffer postings = writable(channel, position, count * 4L, mapped).asIntBuffer();
+                    position += count * 4L;
+                    for (int i = 0; i < count; i++) {
+                        postings.put(starts[key(newHashes.get(i), block)]++, i);
+                    }
+                }
+                for (MappedByteBuffer buffer : mapped) {
+                    buffer.force();
+                }
+            }
+        }
+
+        private static ByteBuffer writable(FileChannel channel, long position, long size, List<MappedByteBuffer> mapped)
+                throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            mapped.add(buffer);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static int key(long hash, int block) {
+            return (int) (hash >>> (block * BLOCK_BITS)) & (BUCKETS - 1);
+        }
+
+        void search(long hash, int maxDistance, List<Match> found) {
+            if (count == 0) {
+                return;
+            }
+            int blockRadius = maxDistance / BLOCKS;
+            if (blockRadius > MAX_BLOCK_RADIUS) {
+                for (int i = 0; i < count; i++) {
+                    collect(i, hash, maxDistance, found);
+                }
+                return;
+            }
+            for (int block = 0; block < BLOCKS; block++) {
+                probe(block, key(hash, block), 0, blockRadius, hash, maxDistance, found);
+            }
+        }
+
+        /**
+         * keyからfromBit以降のビットをradius個まで反転させたバケットを全て見る
+         */
+        private void probe(int block, int key, int fromBit, int radius, long hash, int maxDistance, List<Match> found) {
+            int start = offsets[block].get(key);
+            int end = offsets[block].get(key + 1);
+            for (int p = start; p < end; p++) {
+                int entry = postings[block].get(p);
+                // 前のブロックでも見つかるものは、そちらで数える
+                if (firstNearBlock(hashes.get(entry), hash, maxDistance / BLOCKS) == block) {
+                    collect(entry, hash, maxDistance, found);
+                }
+            }
+            if (radius == 0) {
+                return;
+            }
+            for (int bit = fromBit; bit < BLOCK_BITS; bit++) {
+                probe(block, key ^ (1 << bit), bit + 1, radius - 1, hash, maxDistance, found);
+            }
+        }
+
+        private static int firstNearBlock(long a, long b, int blockRadius) {
+            for (int block = 0; block < BLOCKS; block++) {
+                if (Integer.bitCount(key(a, block) ^ key(b, block)) <= blockRadius) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private void collect(int entry, long hash, int maxDistance, List<Match> found) {
+            long candidate = hashes.get(entry);
+            int distance = Long.bitCount(candidate ^ hash);
+            if (distance <= maxDistance) {
+                found.add(new Match(ids.get(entry), candidate, distance));
+            }
+        }
+    }
+}
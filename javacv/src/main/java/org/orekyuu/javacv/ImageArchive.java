@@ -0,0 +1,343 @@
+package org.orekyuu.javacv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * zipかtarの中の画像を、展開せずに {@link ImageSource} として順に返す。
+ * 無圧縮のエントリはアーカイブの該当部分をメモリマップし、deflateのエントリはデコードする時にメモリ上へ展開する。
+ * エントリはヘッダを読み進めながら1つずつ返すので、全体を先に読まない。
+ * 返したエントリをデコードし終わるまでアーカイブを閉じないこと
+ */
+public final class ImageArchive implements Iterable<ImageSource>, AutoCloseable {
+
+    private static final int ZIP_END = 0x06054b50;
+    private static final int ZIP_CENTRAL = 0x02014b50;
+    private static final int ZIP_LOCAL = 0x04034b50;
+    private static final int TAR_BLOCK = 512;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean zip;
+    private final Object identity;
+
+    private ImageArchive(Path path, FileChannel channel, boolean zip) {
+        this.path = path;
+        this.channel = channel;
+        this.zip = zip;
+        this.identity = StageCache.inputOf(path.toString());
+    }
+
+    /**
+     * 拡張子がzipかtarのファイル
+     */
+    public static boolean isArchive(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar");
+    }
+
+    /**
+     * @throws IOException 開けない場合
+     * @throws IllegalArgumentException zipかtar以外の場合
+     */
+    public static ImageArchive open(Path path) throws IOException {
+        if (!isArchive(path)) {
+            throw new IllegalArgumentException("zipかtarを指定してください: " + path);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new ImageArchive(path, channel, path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".zip"));
+    }
+
+    /**
+     * 画像の拡張子を持つエントリだけを返す。呼ぶたびに先頭から読み直す
+     */
+    @Override
+    public Iterator<ImageSource> iterator() {
+        try {
+            return zip ? new ZipEntries() : new TarEntries();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Stream<ImageSource> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private ImageSource entry(String name, BufferImageSource.Loader loader) {
+        return new BufferImageSource(path + "/" + name, List.of(identity, name), loader);
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("アーカイブが途中で終わっています: " + path);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private MappedByteBuffer map(long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * 1件ずつ先読みするイテレータ。nextEntryは次の画像がなければnullを返す
+     */
+    private abstract static class Entries implements Iterator<ImageSource> {
+        private ImageSource next;
+        private boolean done;
+
+        abstract ImageSource nextEntry() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = nextEntry();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public ImageSource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ImageSource result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    /**
+     * セントラルディレクトリをたどる。ZIP64には対応しない
+     */
+    private final class ZipEntries extends Entries {
+        private final ByteBuffer directory;
+
+        ZipEntries() throws IOException {
+            long size = channel.size();
+            int tail = (int) Math.min(size, 0xFFFF + 22);
+            ByteBuffer end = read(size - tail, tail);
+            int found = -1;
+            for (int i = tail - 22; i >= 0; i--) {
+                if (end.getInt(i) == ZIP_END) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found < 0) {
+                throw new ZipException("zipの終端が見つかりません: " + path);
+            }
+            long directorySize = Integer.toUnsignedLong(end.getInt(found + 12));
+            long directoryOffset = Integer.toUnsignedLong(end.getInt(found + 16));
+            if (directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64には対応していません: " + path);
+            }
+            directory = map(directoryOffset, directorySize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        ImageSource nextEntry() throws IOException {
+            while (directory.remaining() >= 46) {
+                int header = directory.position();
+                if (directory.getInt(header) != ZIP_CENTRAL) {
+                    throw new ZipException("セントラルディレクトリが壊れています: " + path);
+                }
+                int flags = Short.toUnsignedInt(directory.getShort(header + 8));
+                int method = Short.toUnsignedInt(directory.getShort(header + 10));
+                long compressed = Integer.toUnsignedLong(directory.getInt(header + 20));
+                long size = Integer.toUnsignedLong(directory.getInt(header + 24));
+                int nameLength = Short.toUnsignedInt(directory.getShort(header + 28));
+                int extraLength = Short.toUnsignedInt(directory.getShort(header + 30));
+                int commentLength = Short.toUnsignedInt(directory.getShort(header + 32));
+                long local = Integer.toUnsignedLong(directory.getInt(header + 42));
+                byte[] nameBytes = new byte[nameLength];
+                directory.position(header + 46);
+                directory.get(nameBytes);
+                directory.position(header + 46 + nameLength + extraLength + commentLength);
+
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                // 暗号化されたものと、画像ではないものは飛ばす
+                if ((flags & 1) != 0 || name.endsWith("/") || !BatchScanner.isImage(name)) {
+                    continue;
+                }
+                if (compressed == 0xFFFFFFFFL || size == 0xFFFFFFFFL || local == 0xFFFFFFFFL) {
+                    throw new ZipException("ZIP64には対応していません: " + path);
+                }
+                if (method != 0 && method != 8) {
+                    throw new ZipException("対応していない圧縮方式です: " + method + " " + name);
+                }
+                return entry(name, () -> {
+                    ByteBuffer localHeader = read(local, 30);
+                    if (localHeader.getInt(0) != ZIP_LOCAL) {
+                        throw new ZipException("ローカルヘッダが壊れています: " + name);
+                    }
+                    long data = local + 30 + Short.toUnsignedInt(localHeader.getShort(26))
+                            + Short.toUnsignedInt(localHeader.getShort(28));
+                    MappedByteBuffer stored = map(data, compressed);
+                    return method == 0 ? stored : inflate(stored, size, name);
+                });
+            }
+            return null;
+        }
+    }
+
+    private static ByteBuffer inflate(ByteBuffer compressed, long size, String name) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new ZipException("エントリが大きすぎます: " + name);
+        }
+        ByteBuffer inflated = ByteBuffer.allocateDirect((int) size);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            while (!inflater.finished() && inflated.hasRemaining()) {
+                if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("エントリが途中で終わっています: " + name);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("エントリが壊れています: " + name + " " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return inflated.flip();
+    }
+
+    /**
+     * 512バイトのヘッダを順にたどる。GNUの長い名前とpaxのpathにも対応する
+     */
+    private final class TarEntries extends Entries {
+        private long position;
+        private String longName;
+
+        @Override
+        ImageSource nextEntry() throws IOException {
+            long size = channel.size();
+            while (position + TAR_BLOCK <= size) {
+                ByteBuffer header = read(position, TAR_BLOCK);
+                if (isZero(header)) {
+                    return null;
+                }
+                long length = octal(header, 124, 12);
+                char type = (char) header.get(156);
+                long data = position + TAR_BLOCK;
+                position = data + (length + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+
+                if (type == 'L') {
+                    longName = string(read(data, (int) length), 0, (int) length);
+                    continue;
+                }
+                if (type == 'x') {
+                    String paxPath = paxPath(read(data, (int) length));
+                    if (paxPath != null) {
+                        longName = paxPath;
+                    }
+                    continue;
+                }
+                String name = longName != null ? longName : name(header);
+                longName = null;
+                if ((type != '0' && type != '\0' && type != '7') || length == 0 || !BatchScanner.isImage(name)) {
+                    continue;
+                }
+                return entry(name, () -> map(data, length));
+            }
+            return null;
+        }
+
+        private String name(ByteBuffer header) {
+            String name = string(header, 0, 100);
+            // ustarでは前半がprefixに入る
+            if (string(header, 257, 5).equals("ustar")) {
+                String prefix = string(header, 345, 155);
+                if (!prefix.isEmpty()) {
+                    return prefix + "/" + name;
+                }
+            }
+            return name;
+        }
+    }
+
+    private static boolean isZero(ByteBuffer block) {
+        for (int i = 0; i < block.limit(); i++) {
+            if (block.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - offset];
+        buffer.duplicate().position(offset).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long octal(ByteBuffer header, int offset, int length) throws IOException {
+        if ((header.get(offset) & 0x80) != 0) {
+            throw new IOException("8GB以上のエントリには対応していません");
+        }
+        String value = string(header, offset, length).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+    }
+
+    /**
+     * "長さ 鍵=値\n" の並びからpathを探す。長さはバイト数
+     */
+    private static String paxPath(ByteBuffer records) {
+        int offset = 0;
+        while (offset < records.limit()) {
+            int space = offset;
+            while (space < records.limit() && records.get(space) != ' ') {
+                space++;
+            }
+            if (space >= records.limit()) {
+                break;
+            }
+            int length = Integer.parseInt(string(records, offset, space - offset));
+            if (length <= 0) {
+                break;
+            }
+            String record = string(records, space + 1, Math.min(records.limit(), offset + length - 1) - space - 1);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,219 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.bytedeco.opencv.global.opencv_imgcodecs.*;
+
+/**
+ * 縮小して使うだけの大きな画像を、コーデックの縮小デコードで読む。
+ * 先にヘッダだけを読んで大きさを調べ、縮小しても目的の大きさを下回らない範囲で1/2, 1/4, 1/8のどれかで読む。
+ * JPEGではDCTの段階で縮小されるので、全画素を展開しない
+ */
+final class ImageDecoder {
+
+    private static final int[] SCALES = {8, 4, 2};
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * maxwidth x maxheightに収まるよう縮小する前提で読む。縮小して読めない場合は元の大きさで読む
+     *
+     * @throws IllegalArgumentException 読めない場合
+     */
+    static Mat read(String path, int maxwidth, int maxheight) {
+        return read(ImageSource.of(Paths.get(path)), maxwidth, maxheight);
+    }
+
+    static Mat read(ImageSource source, int maxwidth, int maxheight) {
+        int[] size = null;
+        try {
+            size = readSize(source);
+        } catch (IOException e) {
+            // ヘッダが読めなくてもデコーダに任せる
+        }
+        int scale = size == null ? 1 : scaleFor(size[0], size[1], maxwidth, maxheight);
+        return source.decode(flagsFor(scale));
+    }
+
+    /**
+     * fitSizeで縮めた大きさを下回らない範囲で、一番大きい縮小率
+     */
+    static int scaleFor(int width, int height, int maxwidth, int maxheight) {
+        int[] fitted = BookFinder.fitSize(width, height, maxwidth, maxheight);
+        for (int scale : SCALES) {
+            // OpenCVは縮小後の大きさを切り上げる
+            if ((width + scale - 1) / scale >= fitted[0] && (height + scale - 1) / scale >= fitted[1]) {
+                return scale;
+            }
+        }
+        return 1;
+    }
+
+    static int flagsFor(int scale) {
+        switch (scale) {
+            case 8:
+                return IMREAD_REDUCED_COLOR_8;
+            case 4:
+                return IMREAD_REDUCED_COLOR_4;
+            case 2:
+                return IMREAD_REDUCED_COLOR_2;
+            default:
+                return IMREAD_COLOR;
+        }
+    }
+
+    /**
+     * JPEGとPNGのヘッダから、表示される向きでの幅と高さを読む。JPEGはExifの向きも見る
+     *
+     * @return 対応していない形式ならnull
+     */
+    static int[] readSize(Path path) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            return readSize(in);
+        }
+    }
+
+    /**
+     * このパッケージの実装だけ、デコードせずにヘッダを読む
+     */
+    static int[] readSize(ImageSource source) throws IOException {
+        if (source instanceof FileImageSource) {
+            return readSize(((FileImageSource) source).path());
+        }
+        if (source instanceof BufferImageSource) {
+            return readSize(new BufferInputStream(((BufferImageSource) source).data()));
+        }
+        return null;
+    }
+
+    private static int[] readSize(InputStream stream) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(stream);
+            int first = in.readUnsignedShort();
+            if (first == 0xFFD8) {
+                return readJpegSize(in);
+            }
+            if (first == 0x8950 && in.readUnsignedShort() == 0x4E47) {
+                // 署名の残り4バイトとIHDRの長さ、種類を読み飛ばす
+                skip(in, 12);
+                return new int[]{in.readInt(), in.readInt()};
+            }
+            return null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int[] readJpegSize(DataInputStream in) throws IOException {
+        int orientation = 1;
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                return null;
+            }
+            while (marker == 0xFF) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                return null;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (marker == 0xE1) {
+                byte[] segment = in.readNBytes(length);
+                orientation = exifOrientation(segment, orientation);
+            } else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                in.readUnsignedByte();
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                // 5から8は90度回っている
+                return orientation >= 5 && orientation <= 8 ? new int[]{height, width} : new int[]{width, height};
+            } else {
+                skip(in, length);
+            }
+        }
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * APP1のExifのIFD0からOrientationを探す
+     */
+    private static int exifOrientation(byte[] segment, int fallback) {
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f') {
+            return fallback;
+        }
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 6, segment.length - 6).slice();
+        tiff.order(tiff.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        int ifd = tiff.getInt(4);
+        if (ifd < 0 || ifd + 2 > tiff.limit()) {
+            return fallback;
+        }
+        int entries = Short.toUnsignedInt(tiff.getShort(ifd));
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > tiff.limit()) {
+                break;
+            }
+            if (Short.toUnsignedInt(tiff.getShort(entry)) == 0x0112) {
+                return Short.toUnsignedInt(tiff.getShort(entry + 8));
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * メモリ上のバイト列をコピーせずにヘッダだけ読む
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.opencv.global.opencv_core.cvCreateImage;
+import static org.bytedeco.opencv.global.opencv_core.cvReleaseImage;
+import static org.bytedeco.opencv.global.opencv_core.cvResetImageROI;
+import static org.bytedeco.opencv.global.opencv_core.cvSize;
+
+/**
+ * サイズ、深度、チャンネル数ごとに {@link IplImage} を使い回すプール。
+ * cvCreateImageで作った画像はGCでは解放されないので、借りたものは必ず {@link #release(IplImage)} で返すこと。
+ * 補正後の画像のようにページごとにサイズが変わるものは同じキーで借りられることがないので、
+ * 待たせている画像の合計が上限を超えたら、最後に使われたのが古いキーから解放する
+ */
+public class ImagePool implements AutoCloseable {
+
+    static final long DEFAULT_MAX_IDLE_BYTES = 256L << 20;
+
+    private static final ImagePool SHARED = new ImagePool(8);
+
+    private final int maxIdlePerKey;
+    private final long maxIdleBytes;
+    // 使った順に並べる
+    private final LinkedHashMap<Key, ArrayDeque<IplImage>> idle = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private long idleBytes;
+    private boolean closed;
+
+    public ImagePool(int maxIdlePerKey) {
+        this(maxIdlePerKey, DEFAULT_MAX_IDLE_BYTES);
+    }
+
+    /**
+     * @param maxIdleBytes 全てのキーを合わせて、返されたまま待たせておく画像の合計バイト数
+     */
+    public ImagePool(int maxIdlePerKey, long maxIdleBytes) {
+        this.maxIdlePerKey = maxIdlePerKey;
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    public static ImagePool shared() {
+        return SHARED;
+    }
+
+    public IplImage acquire(int width, int height, int depth, int channels) {
+        Key key = new Key(width, height, depth, channels);
+        synchronized (this) {
+            ArrayDeque<IplImage> images = idle.get(key);
+            if (images != null) {
+                IplImage image = images.pop();
+                if (images.isEmpty()) {
+                    idle.remove(key);
+                }
+                idleBytes -= image.imageSize();
+                reused.incrementAndGet();
+                return image;
+            }
+        }
+        created.incrementAndGet();
+        return cvCreateImage(cvSize(width, height), depth, channels);
+    }
+
+    public void release(IplImage image) {
+        if (image == null) {
+            return;
+        }
+        // ROIが残っていると次に借りた側で事故になる
+        cvResetImageROI(image);
+        Key key = new Key(image.width(), image.height(), image.depth(), image.nChannels());
+        List<IplImage> evicted = new ArrayList<>();
+        synchronized (this) {
+            ArrayDeque<IplImage> images = idle.get(key);
+            if (closed || image.imageSize() > maxIdleBytes || (images != null && images.size() >= maxIdlePerKey)) {
+                evicted.add(image);
+            } else {
+                if (images == null) {
+                    images = new ArrayDeque<>();
+                    idle.put(key, images);
+                }
+                images.push(image);
+                idleBytes += image.imageSize();
+                evictOverLimit(evicted);
+            }
+        }
+        // 解放はロックの外で行う
+        evicted.forEach(evictedImage -> cvReleaseImage(evictedImage));
+    }
+
+    private void evictOverLimit(List<IplImage> evicted) {
+        Iterator<ArrayDeque<IplImage>> eldest = idle.values().iterator();
+        while (idleBytes > maxIdleBytes) {
+            ArrayDeque<IplImage> images = eldest.next();
+            IplImage image = images.removeLast();
+            idleBytes -= image.imageSize();
+            evicted.add(image);
+            if (images.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * これまでにcvCreateImageした枚数
+     */
+    public long createdCount() {
+        return created.get();
+    }
+
+    public long reusedCount() {
+        return reused.get();
+    }
+
+    public synchronized int idleCount() {
+        return idle.values().stream().mapToInt(ArrayDeque::size).sum();
+    }
+
+    /**
+     * 返されたまま待たせている画像の合計バイト数
+     */
+    public synchronized long idleBytes() {
+        return idleBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        idle.values().forEach(images -> images.forEach(image -> cvReleaseImage(image)));
+        idle.clear();
+        idleBytes = 0;
+    }
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final int depth;
+        final int channels;
+
+        Key(int width, int height, int depth, int channels) {
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.channels = channels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && depth == key.depth && channels == key.channels;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(width, height, depth, channels);
+        }
+    }
+}
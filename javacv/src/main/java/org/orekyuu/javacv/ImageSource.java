@@ -0,0 +1,62 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * デコードする前の画像。ファイルのほか、メモリ上のバイト列やメモリマップしたファイルの一部、
+ * {@link ImageArchive} の中のエントリから、一時ファイルを作らずに読む
+ */
+public interface ImageSource {
+
+    /**
+     * 結果やエラーメッセージに出す名前
+     */
+    String name();
+
+    /**
+     * {@link StageCache} のキーに使う識別子。同じ内容なら等しい値を返す
+     */
+    Object identity();
+
+    /**
+     * imreadと同じflagsでデコードする
+     *
+     * @throws IllegalArgumentException 画像として読めない場合
+     */
+    Mat decode(int flags);
+
+    static ImageSource of(Path path) {
+        return new FileImageSource(path);
+    }
+
+    /**
+     * bufferのpositionからlimitまでを画像のバイト列として読む。direct bufferはコピーせずにデコードする。
+     * 識別子は返したインスタンスそのものなので、キャッシュは同じインスタンスを渡し直した時だけ効く
+     */
+    static ImageSource of(String name, ByteBuffer buffer) {
+        return new BufferImageSource(name, null, buffer.slice());
+    }
+
+    /**
+     * ファイル全体をメモリマップして読む。マップはチャネルを閉じた後も有効
+     */
+    static ImageSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BufferImageSource(path.toString(), StageCache.inputOf(path.toString()),
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * channelのpositionからsizeバイトをメモリマップして読む
+     */
+    static ImageSource map(FileChannel channel, long position, long size, String name) throws IOException {
+        return new BufferImageSource(name, null, channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+}
@@ -0,0 +1,46 @@
+package org.orekyuu.javacv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 操作してから画面に反映されるまでの時間を集計する
+ */
+public class LatencyCounter {
+
+    private long count;
+    private long lastNanos;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        count++;
+        lastNanos = nanos;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized long lastMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastNanos);
+    }
+
+    public synchronized long averageMillis() {
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / count);
+    }
+
+    public synchronized long maxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+    }
+
+    public synchronized void reset() {
+        count = lastNanos = totalNanos = maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("latency last %dms avg %dms max %dms (n=%d)", lastMillis(), averageMillis(), maxMillis(), count);
+    }
+}
@@ -0,0 +1,149 @@
+package org.orekyuu.javacv;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 重い再計算をバックグラウンドの1スレッドで行う。
+ * 計算中に届いたリクエストは最新のものだけを残して捨て、古くなった計算結果は公開しない。
+ * 公開が終わるまで次の計算は始めないので、計算結果が持つバッファを公開側が読んでいる間に上書きすることはない
+ */
+public class LatestWinsScheduler<T, R> implements AutoCloseable {
+
+    public interface Task<T, R> {
+        /**
+         * supersededがtrueを返したら、より新しいリクエストが来ているので途中で諦めて良い。nullを返すと公開しない
+         */
+        R compute(T request, BooleanSupplier superseded) throws Exception;
+    }
+
+    private static final class Request<T> {
+        final T value;
+        final long generation;
+        final long requestedAt;
+
+        Request(T value, long generation, long requestedAt) {
+            this.value = value;
+            this.generation = generation;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    private final Task<T, R> task;
+    private final Executor publishExecutor;
+    private final Consumer<R> publisher;
+    private final Consumer<Throwable> errorHandler;
+    private final LatencyCounter latency = new LatencyCounter();
+    private final Thread worker;
+    private volatile Runnable onPublished = () -> {};
+
+    private Request<T> pending;
+    private long generation;
+    private long discarded;
+    private boolean closed;
+
+    /**
+     * @param publishExecutor 結果を公開するスレッド。JavaFXなら {@code Platform::runLater}
+     */
+    public LatestWinsScheduler(String name, Task<T, R> task, Executor publishExecutor,
+                               Consumer<R> publisher, Consumer<Throwable> errorHandler) {
+        this.task = task;
+        this.publishExecutor = publishExecutor;
+        this.publisher = publisher;
+        this.errorHandler = errorHandler;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public synchronized void request(T value) {
+        if (pending != null) {
+            discarded++;
+        }
+        pending = new Request<>(value, ++generation, System.nanoTime());
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            Request<T> request;
+            synchronized (this) {
+                while (pending == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                request = pending;
+                pending = null;
+            }
+
+            BooleanSupplier superseded = () -> isSuperseded(request.generation);
+            try {
+                R result = task.compute(request.value, superseded);
+                if (result == null || superseded.getAsBoolean()) {
+                    countDiscarded();
+                    continue;
+                }
+                CountDownLatch published = new CountDownLatch(1);
+                publishExecutor.execute(() -> {
+                    try {
+                        if (superseded.getAsBoolean()) {
+                            countDiscarded();
+                            return;
+                        }
+                        publisher.accept(result);
+                        latency.record(System.nanoTime() - request.requestedAt);
+                        onPublished.run();
+                    } finally {
+                        published.countDown();
+                    }
+                });
+                published.await();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                publishExecutor.execute(() -> errorHandler.accept(e));
+            }
+        }
+    }
+
+    private synchronized boolean isSuperseded(long generation) {
+        return closed || this.generation != generation;
+    }
+
+    private synchronized void countDiscarded() {
+        discarded++;
+    }
+
+    /**
+     * 結果を公開した直後に公開スレッドで呼ばれる
+     */
+    public void setOnPublished(Runnable onPublished) {
+        this.onPublished = onPublished;
+    }
+
+    public LatencyCounter latency() {
+        return latency;
+    }
+
+    /**
+     * 計算せずに捨てたリクエストと、公開せずに捨てた結果の合計
+     */
+    public synchronized long discardedCount() {
+        return discarded;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+        worker.interrupt();
+    }
+}
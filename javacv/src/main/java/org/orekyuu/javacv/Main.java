@@ -1,10 +1,14 @@
 package org.orekyuu.javacv;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -14,18 +18,16 @@ import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
-import org.bytedeco.javacv.Frame;
-import org.bytedeco.javacv.OpenCVFrameConverter;
-import org.bytedeco.opencv.global.opencv_imgcodecs;
-import org.bytedeco.opencv.opencv_core.IplImage;
-import org.bytedeco.opencv.opencv_core.Mat;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
 
 public class Main extends Application {
 
+    private static final int PREVIEW_SIZE = 300;
+
     public static void main(String[] args) {
         launch(Main.class, args);
     }
@@ -36,9 +38,45 @@ public class Main extends Application {
     ImageView originalView;
     Slider value1;
     Slider value2;
+    CheckBox autoThreshold;
+    Label latencyLabel;
+    ChoiceBox<FinderType> finderType;
+    StageCache cache = new StageCache(ImagePool.shared(), 8);
+    LatestWinsScheduler<Request, Preview> scheduler;
+    FxImageBridge bridge = new FxImageBridge();
+
+    static class Request {
+        final File file;
+        final FinderType type;
+        final double threshold;
+        final double threshold2;
+        final boolean auto;
+
+        Request(File file, FinderType type, double threshold, double threshold2, boolean auto) {
+            this.file = file;
+            this.type = type;
+            this.threshold = threshold;
+            this.threshold2 = threshold2;
+            this.auto = auto;
+        }
+    }
+
+    static class Preview {
+        final FxImageBridge.Slot original;
+        final FxImageBridge.Slot result;
+        final List<FxImageBridge.Slot> steps;
+
+        Preview(FxImageBridge.Slot original, FxImageBridge.Slot result, List<FxImageBridge.Slot> steps) {
+            this.original = original;
+            this.result = result;
+            this.steps = steps;
+        }
+    }
 
     @Override
     public void start(Stage primaryStage) throws Exception {
+        scheduler = new LatestWinsScheduler<>("book-finder-preview", this::render, Platform::runLater,
+                this::show, Throwable::printStackTrace);
         BorderPane border = new BorderPane();
 
         Button selectImage = new Button("画像を選択");
@@ -48,20 +86,36 @@ public class Main extends Application {
         value1.valueProperty().addListener((observable, oldValue, newValue) -> onChanged());
         value2.valueProperty().addListener((observable, oldValue, newValue) -> onChanged());
 
-        VBox toolBox = new VBox(selectImage, value1, value2);
+        finderType = new ChoiceBox<>();
+        finderType.getItems().addAll(FinderType.values());
+        finderType.setValue(FinderType.LEGACY);
+        finderType.valueProperty().addListener((observable, oldValue, newValue) -> {
+            cache.invalidateAll();
+            onChanged();
+        });
+
+        autoThreshold = new CheckBox("閾値を自動で決める");
+        autoThreshold.selectedProperty().addListener((observable, oldValue, newValue) -> onChanged());
+        value1.disableProperty().bind(autoThreshold.selectedProperty());
+        value2.disableProperty().bind(value1.disableProperty());
+
+        latencyLabel = new Label();
+        scheduler.setOnPublished(() -> latencyLabel.setText(scheduler.latency().toString()));
+
+        VBox toolBox = new VBox(selectImage, finderType, autoThreshold, value1, value2, latencyLabel);
         toolBox.setAlignment(Pos.CENTER);
         border.setBottom(toolBox);
 
         originalView = new ImageView();
-        originalView.setFitWidth(300);
-        originalView.setFitHeight(300);
+        originalView.setFitWidth(PREVIEW_SIZE);
+        originalView.setFitHeight(PREVIEW_SIZE);
         originalView.setPreserveRatio(true);
         border.setTop(originalView);
 
         for (int i = 0; i < BookFinder.STEPS; i++) {
             ImageView view = new ImageView();
-            view.setFitHeight(300);
-            view.setFitWidth(300);
+            view.setFitHeight(PREVIEW_SIZE);
+            view.setFitWidth(PREVIEW_SIZE);
             view.setPreserveRatio(true);
             steps.add(view);
         }
@@ -78,6 +132,8 @@ public class Main extends Application {
             var chooser = new FileChooser();
             chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Image Files", "*.jpeg", "*.jpg", "*.png"));
             file = chooser.showOpenDialog(primaryStage);
+            cache.invalidateAll();
+            scheduler.latency().reset();
 
             onChanged();
 
@@ -90,33 +146,48 @@ public class Main extends Application {
         });
     }
 
-
+    @Override
+    public void stop() {
+        scheduler.close();
+        bridge.close();
+    }
 
     private void onChanged() {
-        BookFinder finder = new BookFinder(file.getAbsolutePath());
-        finder.process(value1.getValue(), value2.getValue());
-        originalView.setImage(mat2Image(finder.getResized(), file));
-        resultImage.setValue(mat2Image(finder.getResult(), file));
-        for (int i = 0; i < BookFinder.STEPS; i++) {
-            Image image = mat2Image(finder.steps().get(i), file);
-            steps.get(i).setImage(image);
+        if (file == null) {
+            return;
         }
+        scheduler.request(new Request(file, finderType.getValue(), value1.getValue(), value2.getValue(),
+                autoThreshold.isSelected()));
     }
 
-    private Image mat2Image(IplImage img, File file) {
-        if (img == null) {
-            return null;
+    /**
+     * バックグラウンドのスレッドで呼ばれる
+     */
+    private Preview render(Request request, BooleanSupplier superseded) {
+        File file = request.file;
+        try (DocumentFinder finder = request.type.create(ImagePool.shared(), cache)) {
+            if (request.auto) {
+                finder.processAuto(file.getAbsolutePath());
+            } else {
+                finder.process(file.getAbsolutePath(), request.threshold, request.threshold2);
+            }
+            if (superseded.getAsBoolean()) {
+                return null;
+            }
+            List<FxImageBridge.Slot> images = new ArrayList<>();
+            for (int i = 0; i < BookFinder.STEPS; i++) {
+                images.add(bridge.prepare("step" + i, finder.steps().get(i), PREVIEW_SIZE));
+            }
+            return new Preview(bridge.prepare("original", finder.getResized(), PREVIEW_SIZE),
+                    bridge.prepare("result", finder.getResult(), 0), images);
         }
+    }
 
-        String[] split = file.getName().split("\\.");
-        String ext = split[split.length - 1];
-
-        OpenCVFrameConverter.ToMat converter2Mat = new OpenCVFrameConverter.ToMat();
-        Frame frame = converter2Mat.convert(img);
-        Mat mat = converter2Mat.convert(frame);
-
-        byte[] buff = new byte[mat.createBuffer().capacity()];
-        opencv_imgcodecs.imencode("." + ext, mat, buff);
-        return new Image(new ByteArrayInputStream(buff));
+    private void show(Preview preview) {
+        originalView.setImage(bridge.publish(preview.original));
+        resultImage.setValue(bridge.publish(preview.result));
+        for (int i = 0; i < BookFinder.STEPS; i++) {
+            steps.get(i).setImage(bridge.publish(preview.steps.get(i)));
+        }
     }
 }
@@ -0,0 +1,468 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * {@link BookFinder} と同じ処理を {@link Mat} だけで行う実装。
+ * IplImage/Frame/Matの変換やCvSeqを挟まず、バッファは全てインスタンスごとに使い回す。
+ *
+ * <p>fullResolutionを指定すると、縮小画像で見つけた四隅を {@link CornerRefiner} で元の解像度まで合わせ込み、
+ * 元画像の書類の部分だけを台形補正して出力する
+ */
+public class MatBookFinder implements DocumentFinder {
+
+    final int maxheight = 640;
+    final int maxwidth = 480;
+    private final StageCache cache;
+    private final boolean fullResolution;
+
+    private Mat decoded = new Mat();
+    private Mat source;
+    private ImageSource sourceInput;
+    private CornerRefiner refiner;
+    private final Mat resized = new Mat();
+    private final Mat gray = new Mat();
+    private final Mat edges = new Mat();
+    private final Mat pointing = new Mat();
+    private final Mat result = new Mat();
+    private final MatVector contours = new MatVector();
+    private final ContourBuffer contourPoints = new ContourBuffer();
+    private final RemapCache remapCache = new RemapCache();
+    private final Mat approx = new Mat();
+    private final Mat best = new Mat();
+    private final Mat kernel = new Mat();
+    private final Mat sourcePoints = new Mat(4, 1, CV_32FC2);
+    private final Mat destinationPoints = new Mat(4, 1, CV_32FC2);
+    private final FloatIndexer sourceIndexer = sourcePoints.createIndexer();
+    private final FloatIndexer destinationIndexer = destinationPoints.createIndexer();
+    private final Size resizedSize = new Size();
+    private final Size resultSize = new Size();
+    private final Size blurSize = new Size(5, 5);
+    private final Point center = new Point();
+    private final Point contourOffset = new Point();
+    private final Scalar green = new Scalar(0, 255, 0, 0);
+
+    private final IplImage[] views = new IplImage[4];
+    private PipelineMetrics metrics = StageMetrics.shared();
+    private boolean found;
+    private Quad quad;
+    private Quad sourceQuad;
+    private ThresholdSweep sweep;
+    private ThresholdSweep.Result sweepResult;
+
+    public MatBookFinder() {
+        this(null);
+    }
+
+    public MatBookFinder(StageCache cache) {
+        this(cache, false);
+    }
+
+    public MatBookFinder(StageCache cache, boolean fullResolution) {
+        this.cache = cache;
+        this.fullResolution = fullResolution;
+    }
+
+    @Override
+    public void process(ImageSource source, double threshold, double threshold2) {
+        load(source);
+        detect(threshold, threshold2, null);
+    }
+
+    /**
+     * Cannyの閾値を {@link ThresholdSweep} で探して処理する
+     */
+    @Override
+    public void processAuto(ImageSource source) {
+        load(source);
+        detectAuto();
+    }
+
+    /**
+     * デコード済みの画像を、Cannyの閾値を探しながら処理する
+     */
+    public void processAuto(Mat image) {
+        prepare(image);
+        detectAuto();
+    }
+
+    private void load(ImageSource input) {
+        Object identity = cache == null ? null : input.identity();
+        StageCache.Key resizedKey = identity == null ? null
+                : StageCache.key(identity, StageCache.Stage.RESIZED, maxwidth, maxheight);
+        StageCache.Key smoothedKey = identity == null ? null
+                : StageCache.key(identity, StageCache.Stage.SMOOTHED, maxwidth, maxheight, blurSize.width());
+
+        // 元の解像度の画像は、書類が見つかって台形補正する時に読む
+        source = null;
+        sourceInput = fullResolution ? input : null;
+        if (!restore(resizedKey, resized)) {
+            Mat image = decode(input, true);
+            int[] size = BookFinder.fitSize(image.cols(), image.rows(), maxwidth, maxheight);
+            long start = System.nanoTime();
+            resize(image, resized, resizedSize.width(size[0]).height(size[1]));
+            metrics.lap(PipelineMetrics.Stage.RESIZE, start);
+            store(resizedKey, resized);
+        }
+        if (!restore(smoothedKey, gray)) {
+            smooth(resized, gray);
+            store(smoothedKey, gray);
+        }
+    }
+
+    /**
+     * @param reduced 縮小画像を作るためだけに読むなら、{@link ImageDecoder} で縮小デコードする
+     */
+    private Mat decode(ImageSource input, boolean reduced) {
+        decoded.close();
+        long start = System.nanoTime();
+        decoded = reduced ? ImageDecoder.read(input, maxwidth, maxheight) : input.decode(opencv_imgcodecs.IMREAD_COLOR);
+        metrics.lap(PipelineMetrics.Stage.DECODE, start);
+        return decoded;
+    }
+
+    private Mat original() {
+        if (source == null && sourceInput != null) {
+            source = decode(sourceInput, false);
+        }
+        return source;
+    }
+
+    /**
+     * 動画のフレームなど、デコード済みの画像を処理する
+     */
+    public void process(Mat image, double threshold, double threshold2) {
+        prepare(image);
+        detect(threshold, threshold2, null);
+    }
+
+    /**
+     * 縮小とぼかしまでを行う。続けて {@link #detect} を範囲を変えながら何度呼んでも良い
+     */
+    void prepare(Mat image) {
+        source = image;
+        sourceInput = null;
+        int[] size = BookFinder.fitSize(image.cols(), image.rows(), maxwidth, maxheight);
+        long start = System.nanoTime();
+        resize(image, resized, resizedSize.width(size[0]).height(size[1]));
+        metrics.lap(PipelineMetrics.Stage.RESIZE, start);
+        smooth(resized, gray);
+    }
+
+    /**
+     * Canny以降を行う。roiを渡すと、縮小後の画像のその範囲でだけ輪郭を探す
+     */
+    void detect(double threshold, double threshold2, Rect roi) {
+        if (roi == null) {
+            long start = System.nanoTime();
+            Canny(gray, edges, threshold, threshold2);
+            metrics.lap(PipelineMetrics.Stage.CANNY, start);
+            found = findLargestSquare(edges, contourOffset.x(0).y(0));
+        } else {
+            edges.create(gray.rows(), gray.cols(), CV_8UC1);
+            edges.put(Scalar.ZERO);
+            try (Mat grayRegion = gray.apply(roi); Mat edgesRegion = edges.apply(roi)) {
+                long start = System.nanoTime();
+                Canny(grayRegion, edgesRegion, threshold, threshold2);
+                metrics.lap(PipelineMetrics.Stage.CANNY, start);
+                found = findLargestSquare(edgesRegion, contourOffset.x(roi.x()).y(roi.y()));
+            }
+        }
+        sweepResult = null;
+        finish();
+    }
+
+    private void detectAuto() {
+        if (sweep == null) {
+            sweep = new ThresholdSweep();
+        }
+        // 閾値探しは輪郭の抽出と四角形の選択も含めてCANNYに数える
+        long start = System.nanoTime();
+        sweepResult = sweep.sweep(gray);
+        metrics.lap(PipelineMetrics.Stage.CANNY, start);
+        found = sweepResult != null;
+        if (found) {
+            // プレビュー用のエッジ画像は選んだ閾値で作り直す
+            Canny(gray, edges, sweepResult.getThreshold(), sweepResult.getThreshold2());
+            int[] points = sweepResult.points();
+            best.create(4, 1, CV_32SC2);
+            IntIndexer indexer = best.createIndexer();
+            for (int i = 0; i < 4; i++) {
+                indexer.put(i, 0, 0, points[i * 2]);
+                indexer.put(i, 0, 1, points[i * 2 + 1]);
+            }
+            indexer.release();
+        } else {
+            edges.create(gray.rows(), gray.cols(), CV_8UC1);
+            edges.put(Scalar.ZERO);
+        }
+        finish();
+    }
+
+    private void finish() {
+        quad = null;
+        sourceQuad = null;
+        if (found) {
+            drawCorners();
+            long start = System.nanoTime();
+            Mat original = fullResolution ? original() : null;
+            found = original != null ? transformFullResolution(original) : transform(resized);
+            metrics.lap(PipelineMetrics.Stage.WARP, start);
+            if (!found) {
+                // 潰れた四角形は見つからなかったことにする
+                quad = null;
+                sourceQuad = null;
+            }
+        }
+        metrics.increment(found ? PipelineMetrics.Counter.DOCUMENTS_FOUND : PipelineMetrics.Counter.DOCUMENTS_MISSED, 1);
+    }
+
+    @Override
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void smooth(Mat image, Mat dest) {
+        long start = System.nanoTime();
+        if (image.channels() == 1) {
+            image.copyTo(dest);
+        } else {
+            cvtColor(image, dest, COLOR_BGR2GRAY);
+        }
+        GaussianBlur(dest, dest, blurSize, 0, 0, BORDER_DEFAULT);
+        start = metrics.lap(PipelineMetrics.Stage.GRAY_BLUR, start);
+        erode(dest, dest, kernel);
+        dilate(dest, dest, kernel);
+        metrics.lap(PipelineMetrics.Stage.ERODE_DILATE, start);
+    }
+
+    private boolean findLargestSquare(Mat image, Point offset) {
+        long start = System.nanoTime();
+        findContours(image, contours, RETR_LIST, CHAIN_APPROX_SIMPLE, offset);
+        // 輪郭の点をまとめてコピーし、面積や近似はJavaで計算する
+        contourPoints.load(contours);
+
+        // 面積での絞り込みも、Javaでの近似と合わせてAPPROX_POLYに数える
+        long approxStart = System.nanoTime();
+        int largest = contourPoints.largestQuad(300, 0.02);
+        long approxNanos = System.nanoTime() - approxStart;
+        int size = contourPoints.size();
+
+        // 選んだ輪郭だけはネイティブで近似し直し、頂点はそちらを使う
+        boolean result = false;
+        int disagreed = 0;
+        approxStart = System.nanoTime();
+        for (int candidate = largest; candidate >= 0 && !result; ) {
+            Mat contour = contours.get(candidate);
+            approxPolyDP(contour, approx, 0.02 * arcLength(contour, true), true);
+            if (approx.rows() == 4) {
+                approx.copyTo(best);
+                result = true;
+            } else {
+                // Javaの近似と食い違った輪郭も、四角形にならなかったものとして数え、次に大きい四角形を試す
+                disagreed++;
+                candidate = contourPoints.nextQuad();
+            }
+        }
+        approxNanos += System.nanoTime() - approxStart;
+        long rejected = contourPoints.rejectedCount() + disagreed;
+        metrics.recordTime(PipelineMetrics.Stage.CONTOURS, System.nanoTime() - start - approxNanos);
+        metrics.recordTime(PipelineMetrics.Stage.APPROX_POLY, approxNanos);
+        metrics.increment(PipelineMetrics.Counter.CONTOURS_SEEN, size);
+        metrics.increment(PipelineMetrics.Counter.CONTOURS_REJECTED, rejected);
+        return result;
+    }
+
+    private void drawCorners() {
+        resized.copyTo(pointing);
+        IntIndexer indexer = best.createIndexer();
+        for (int i = 0; i < 4; i++) {
+            center.x(indexer.get(i, 0, 0)).y(indexer.get(i, 0, 1));
+            circle(pointing, center, 5, green, 20, LINE_8, 0);
+        }
+        indexer.release();
+    }
+
+    private void readQuad() {
+        IntIndexer indexer = best.createIndexer();
+        quad = new Quad(indexer.get(1, 0, 0), indexer.get(1, 0, 1), indexer.get(0, 0, 0), indexer.get(0, 0, 1),
+                indexer.get(3, 0, 0), indexer.get(3, 0, 1), indexer.get(2, 0, 0), indexer.get(2, 0, 1));
+        indexer.release();
+    }
+
+    private boolean transformFullResolution(Mat original) {
+        readQuad();
+        if (refiner == null) {
+            refiner = new CornerRefiner();
+        }
+        sourceQuad = refiner.refine(original, quad,
+                (double) resized.cols() / original.cols(), (double) resized.rows() / original.rows());
+
+        int resultWidth = (int) Math.round(Math.max(
+                distance(sourceQuad, Quad.TOP_LEFT, Quad.TOP_RIGHT), distance(sourceQuad, Quad.BOTTOM_LEFT, Quad.BOTTOM_RIGHT)));
+        int resultHeight = (int) Math.round(Math.max(
+                distance(sourceQuad, Quad.TOP_LEFT, Quad.BOTTOM_LEFT), distance(sourceQuad, Quad.TOP_RIGHT, Quad.BOTTOM_RIGHT)));
+        if (resultWidth == 0 || resultHeight == 0) {
+            return false;
+        }
+
+        sourceIndexer.put(0, sourceQuad.x(Quad.TOP_LEFT)).put(1, sourceQuad.y(Quad.TOP_LEFT))
+                .put(2, sourceQuad.x(Quad.TOP_RIGHT)).put(3, sourceQuad.y(Quad.TOP_RIGHT))
+                .put(4, sourceQuad.x(Quad.BOTTOM_LEFT)).put(5, sourceQuad.y(Quad.BOTTOM_LEFT))
+                .put(6, sourceQuad.x(Quad.BOTTOM_RIGHT)).put(7, sourceQuad.y(Quad.BOTTOM_RIGHT));
+        destinationIndexer.put(0, 0).put(1, 0)
+                .put(2, resultWidth).put(3, 0)
+                .put(4, 0).put(5, resultHeight)
+                .put(6, resultWidth).put(7, resultHeight);
+
+        // 出力サイズだけを計算するので、元画像のうち読まれるのは書類の部分だけ
+        resultSize.width(resultWidth).height(resultHeight);
+        try (Mat perspective = getPerspectiveTransform(sourcePoints, destinationPoints)) {
+            warpPerspective(original, result, perspective, resultSize, INTER_LINEAR, BORDER_CONSTANT, Scalar.ZERO);
+        }
+        return true;
+    }
+
+    private static double distance(Quad quad, int from, int to) {
+        return Math.hypot(quad.x(to) - quad.x(from), quad.y(to) - quad.y(from));
+    }
+
+    private boolean transform(Mat source) {
+        IntIndexer indexer = best.createIndexer();
+        int topRightX = indexer.get(0, 0, 0), topRightY = indexer.get(0, 0, 1);
+        int topLeftX = indexer.get(1, 0, 0), topLeftY = indexer.get(1, 0, 1);
+        int bottomLeftX = indexer.get(2, 0, 0), bottomLeftY = indexer.get(2, 0, 1);
+        int bottomRightX = indexer.get(3, 0, 0), bottomRightY = indexer.get(3, 0, 1);
+        indexer.release();
+        quad = new Quad(topLeftX, topLeftY, topRightX, topRightY, bottomRightX, bottomRightY, bottomLeftX, bottomLeftY);
+
+        int resultWidth = Math.abs(Math.max(topRightX - topLeftX, bottomRightX - bottomLeftX));
+        int resultHeight = Math.abs(Math.max(bottomRightY - topRightY, bottomLeftY - topLeftY));
+        if (resultWidth == 0 || resultHeight == 0) {
+            return false;
+        }
+
+        // 旧実装と同じく、元画像からはみ出す部分は切り捨てる
+        result.create(Math.min(resultHeight, source.rows()), Math.min(resultWidth, source.cols()), source.type());
+        remapCache.warp(source, quad, resultWidth, resultHeight, result);
+        return true;
+    }
+
+    private boolean restore(StageCache.Key key, Mat dest) {
+        if (key == null) {
+            return false;
+        }
+        Boolean hit = cache.read(key, cached -> {
+            try (Mat mat = cvarrToMat(cached)) {
+                mat.copyTo(dest);
+            }
+            return true;
+        });
+        return hit != null;
+    }
+
+    private void store(StageCache.Key key, Mat mat) {
+        if (key != null) {
+            try (IplImage header = cvIplImage(mat)) {
+                cache.put(key, header);
+            }
+        }
+    }
+
+    /**
+     * MatをIplImageとして見せる。バッファが作り直されていなければヘッダを使い回す
+     */
+    private IplImage view(int slot, Mat mat) {
+        if (mat.empty()) {
+            return null;
+        }
+        IplImage view = views[slot];
+        if (view == null || !view.imageData().equals(mat.data())
+                || view.width() != mat.cols() || view.height() != mat.rows()) {
+            if (view != null) {
+                view.close();
+            }
+            view = cvIplImage(mat);
+            views[slot] = view;
+        }
+        return view;
+    }
+
+    /**
+     * 直前の {@link #processAuto} で選ばれた閾値と四角形の点数。閾値を指定して処理した場合や見つからなかった場合はnull
+     */
+    public ThresholdSweep.Result getSweepResult() {
+        return sweepResult;
+    }
+
+    public Mat getResizedMat() {
+        return resized;
+    }
+
+    public Mat getResultMat() {
+        return found ? result : null;
+    }
+
+    @Override
+    public Quad getQuad() {
+        return quad;
+    }
+
+    @Override
+    public Quad getSourceQuad() {
+        return sourceQuad;
+    }
+
+    @Override
+    public IplImage getResized() {
+        return view(0, resized);
+    }
+
+    @Override
+    public IplImage getResult() {
+        return found ? view(1, result) : null;
+    }
+
+    @Override
+    public List<IplImage> steps() {
+        ArrayList<IplImage> images = new ArrayList<>();
+        images.add(view(2, edges));
+        images.add(quad != null ? view(3, pointing) : null);
+        return images;
+    }
+
+    @Override
+    public void close() {
+        for (IplImage view : views) {
+            if (view != null) {
+                view.close();
+            }
+        }
+        sourceIndexer.release();
+        destinationIndexer.release();
+        for (Pointer pointer : new Pointer[]{decoded, resized, gray, edges, pointing, result, contours, approx, best,
+                kernel, sourcePoints, destinationPoints, resizedSize, resultSize, blurSize, center, contourOffset, green}) {
+            pointer.close();
+        }
+        contourPoints.close();
+        remapCache.close();
+        if (refiner != null) {
+            refiner.close();
+            refiner = null;
+        }
+        source = null;
+        quad = null;
+        sourceQuad = null;
+        found = false;
+    }
+}
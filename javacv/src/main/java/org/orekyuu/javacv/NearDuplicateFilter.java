@@ -0,0 +1,58 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 撮り直した同じページは、前回までの分も含めて最初の1枚だけを次に渡す。
+ * {@link ResultCache} から返した結果も、残してある補正後の画像で同じように比べる
+ */
+final class NearDuplicateFilter implements BatchScanner.ResultHandler {
+
+    private final HashIndex index;
+    private final PathIds paths;
+    private final int maxDistance;
+    private final BatchScanner.ResultHandler next;
+    private final AtomicLong duplicates = new AtomicLong();
+
+    NearDuplicateFilter(HashIndex index, PathIds paths, int maxDistance, BatchScanner.ResultHandler next) {
+        this.index = index;
+        this.paths = paths;
+        this.maxDistance = maxDistance;
+        this.next = next;
+    }
+
+    @Override
+    public void handle(ScanResult result, DocumentFinder finder) throws Exception {
+        if (finder != null && finder.getResult() != null && isDuplicate(result, PerceptualHash.of(finder.getResult()))) {
+            return;
+        }
+        next.handle(result, finder);
+    }
+
+    @Override
+    public void handleCached(ScanResult result, ResultCache.Entry entry) throws Exception {
+        try (Mat image = entry.decodeImage()) {
+            if (image != null && !image.empty() && isDuplicate(result, PerceptualHash.of(image))) {
+                return;
+            }
+        }
+        next.handleCached(result, entry);
+    }
+
+    private boolean isDuplicate(ScanResult result, long hash) throws IOException {
+        HashIndex.Match match = index.addIfAbsent(hash, paths.add(result.getPath()), maxDistance);
+        if (match == null) {
+            return false;
+        }
+        duplicates.incrementAndGet();
+        System.out.printf("%s: near duplicate of %s (distance %d)%n", result.getPath(), paths.describe(match.getId()), match.getDistance());
+        return true;
+    }
+
+    long duplicateCount() {
+        return duplicates.get();
+    }
+}
@@ -0,0 +1,401 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bytedeco.opencv.global.opencv_core.cvarrToMat;
+
+/**
+ * 補正後の画像のエンコードと書き込みを、検出とは別のスレッドで行う。
+ * 結果はコピーして上限付きの待ち行列に積むので、検出のワーカーが止まるのは待ち行列が一杯の時だけ。
+ * fsyncはエンコード用のスレッドごとに数件ずつまとめて行い、書いたファイルが全てディスクに載ってからFutureを完了させる
+ */
+public class OutputWriter implements AutoCloseable {
+
+    public enum Format {
+        /**
+         * 品質は圧縮レベル(0-9)
+         */
+        PNG(".png", opencv_imgcodecs.IMWRITE_PNG_COMPRESSION),
+        JPEG(".jpg", opencv_imgcodecs.IMWRITE_JPEG_QUALITY),
+        WEBP(".webp", opencv_imgcodecs.IMWRITE_WEBP_QUALITY);
+
+        private final String extension;
+        private final int qualityFlag;
+
+        Format(String extension, int qualityFlag) {
+            this.extension = extension;
+            this.qualityFlag = qualityFlag;
+        }
+
+        public String extension() {
+            return extension;
+        }
+
+        /**
+         * imencodeに渡すフラグと値の組。qualityが負なら空
+         */
+        int[] params(int quality) {
+            return quality < 0 ? new int[0] : new int[]{qualityFlag, quality};
+        }
+    }
+
+    // 後続が来なければ、この時間でまとめるのを諦めてfsyncする
+    private static final long SYNC_DELAY_MILLIS = 100;
+    private static final Task END = new Task(null, null, null);
+
+    private final Path directory;
+    private final Format format;
+    private final int quality;
+    private final int syncEvery;
+    private final int encoders;
+    private final BlockingQueue<Task> queue;
+    private final ExecutorService executor;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    private final Map<Path, Throwable> failures = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param quality   負なら形式の既定値
+     * @param capacity  書き込み待ちにしておける件数。一杯なら {@link #submit} がブロックする
+     * @param syncEvery この件数ごとにfsyncする。0ならfsyncせず、書き込んだ時点でFutureを完了させる
+     */
+    public OutputWriter(Path directory, Format format, int quality, int encoders, int capacity, int syncEvery)
+            throws IOException {
+        if (encoders <= 0 || capacity <= 0 || syncEvery < 0) {
+            throw new IllegalArgumentException("encoders and capacity must be positive and syncEvery must not be negative");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.format = format;
+        this.quality = quality;
+        this.syncEvery = syncEvery;
+        this.encoders = encoders;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.executor = Executors.newFixedThreadPool(encoders, threadFactory());
+        for (int i = 0; i < encoders; i++) {
+            executor.execute(this::run);
+        }
+    }
+
+    private static ThreadFactory threadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "output-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Task {
+        final Mat image;
+        final byte[] encoded;
+        final Path path;
+        final CompletableFuture<Path> done = new CompletableFuture<>();
+
+        /**
+         * imageかencodedのどちらか一方を渡す
+         */
+        Task(Mat image, byte[] encoded, Path path) {
+            this.image = image;
+            this.encoded = encoded;
+            this.path = path;
+        }
+    }
+
+    /**
+     * finderのバッファは使い回されるので、コピーしてから積む
+     *
+     * @param name 拡張子を除いたファイル名
+     * @return 書き込み(syncEveryが正ならfsyncも)が終わると完了する
+     */
+    public CompletableFuture<Path> submit(String name, IplImage image) throws InterruptedException {
+        try (Mat mat = cvarrToMat(image)) {
+            return submit(name, mat);
+        }
+    }
+
+    public CompletableFuture<Path> submit(String name, Mat image) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("OutputWriter is closed");
+        }
+        return enqueue(new Task(image.clone(), null, directory.resolve(name + format.extension)));
+    }
+
+    /**
+     * この形式でエンコード済みのバイト列を、エンコードし直さずに書く
+     */
+    public CompletableFuture<Path> submit(String name, byte[] encoded) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("OutputWriter is closed");
+        }
+        return enqueue(new Task(null, encoded, directory.resolve(name + format.extension)));
+    }
+
+    private CompletableFuture<Path> enqueue(Task task) throws InterruptedException {
+        try {
+            if (!queue.offer(task)) {
+                long start = System.nanoTime();
+                queue.put(task);
+                blockedNanos.addAndGet(System.nanoTime() - start);
+            }
+        } catch (InterruptedException e) {
+            if (task.image != null) {
+                task.image.close();
+            }
+            throw e;
+        }
+        return task.done;
+    }
+
+    /**
+     * {@link BatchScanner} の結果を入力のファイル名で書き出す。書き出せなかったものは {@link #getFailures()} に残る。
+     * {@link ResultCache} から返したものは、キャッシュに残した画像をそのまま書くので、キャッシュは {@link #cache} で作ること
+     */
+    public BatchScanner.ResultHandler handler() {
+        return new BatchScanner.ResultHandler() {
+            @Override
+            public void handle(ScanResult result, DocumentFinder finder) throws InterruptedException {
+                if (finder != null && finder.getResult() != null) {
+                    track(result, submit(uniqueName(result.getPath()), finder.getResult()));
+                }
+            }
+
+            @Override
+            public void handleCached(ScanResult result, ResultCache.Entry entry) throws InterruptedException {
+                if (entry.getImage() != null) {
+                    track(result, submit(uniqueName(result.getPath()), entry.getImage()));
+                } else if (result.getResultWidth() > 0) {
+                    throw new IllegalStateException("キャッシュに補正後の画像が残っていません: " + result.getPath());
+                }
+            }
+        };
+    }
+
+    /**
+     * 書き出しと同じ形式と品質で、補正後の画像も残すキャッシュ。{@link #handler()} はキャッシュから返した結果もこの画像で書き出す
+     */
+    public ResultCache cache(Path directory, long maxBytes) throws IOException {
+        return new ResultCache(directory, maxBytes, format.extension, format.params(quality));
+    }
+
+    private void track(ScanResult result, CompletableFuture<Path> written) {
+        written.whenComplete((path, error) -> {
+            if (error != null) {
+                failures.put(result.getPath(), error);
+            }
+        });
+    }
+
+    /**
+     * 入力のファイル名から拡張子を除いたもの。別のディレクトリやアーカイブにある同じ名前の入力や、
+     * 拡張子だけが違う入力を上書きしないよう、使った名前なら後から来た方に "-2", "-3" と番号を付ける
+     */
+    String uniqueName(Path path) {
+        String base = baseName(path);
+        String name = base;
+        // 大文字と小文字を区別しないファイルシステムでもぶつからないようにする
+        for (int i = 2; !names.add(name.toLowerCase(Locale.ROOT)); i++) {
+            name = base + "-" + i;
+        }
+        return name;
+    }
+
+    private static String baseName(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private void run() {
+        List<Task> unsynced = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        try (IntPointer params = quality < 0 ? new IntPointer() : new IntPointer(format.qualityFlag, quality)) {
+            while (true) {
+                Task task = queue.poll(SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                if (task == null || task == END) {
+                    sync(unsynced, channels);
+                    if (task == END) {
+                        return;
+                    }
+                    continue;
+                }
+                FileChannel channel = write(task, params);
+                if (channel == null) {
+                    continue;
+                }
+                if (syncEvery == 0) {
+                    close(channel);
+                    task.done.complete(task.path);
+                    continue;
+                }
+                unsynced.add(task);
+                channels.add(channel);
+                if (unsynced.size() >= syncEvery) {
+                    sync(unsynced, channels);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sync(unsynced, channels);
+        }
+    }
+
+    /**
+     * エンコードしてチャネルに書く。fsyncするまでチャネルは開いたままにする
+     */
+    private FileChannel write(Task task, IntPointer params) {
+        try (Mat image = task.image; BytePointer encoded = new BytePointer()) {
+            ByteBuffer data;
+            if (image == null) {
+                data = ByteBuffer.wrap(task.encoded);
+            } else {
+                if (!opencv_imgcodecs.imencode(format.extension, image, encoded, params)) {
+                    throw new IOException("エンコードできません: " + task.path);
+                }
+                // エンコード結果をJavaのヒープにコピーせずに書く
+                data = encoded.asByteBuffer();
+            }
+            FileChannel channel = FileChannel.open(task.path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+            written.incrementAndGet();
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            task.done.completeExceptionally(e);
+            return null;
+        }
+    }
+
+    private void sync(List<Task> unsynced, List<FileChannel> channels) {
+        if (unsynced.isEmpty()) {
+            return;
+        }
+        IOException[] failures = new IOException[unsynced.size()];
+        for (int i = 0; i < unsynced.size(); i++) {
+            FileChannel channel = channels.get(i);
+            try {
+                channel.force(true);
+            } catch (IOException e) {
+                failures[i] = e;
+            } finally {
+                close(channel);
+            }
+        }
+        syncDirectory();
+        syncs.incrementAndGet();
+        for (int i = 0; i < unsynced.size(); i++) {
+            Task task = unsynced.get(i);
+            if (failures[i] == null) {
+                task.done.complete(task.path);
+            } else {
+                task.done.completeExceptionally(failures[i]);
+            }
+        }
+        unsynced.clear();
+        channels.clear();
+    }
+
+    /**
+     * 新しく作ったファイルのディレクトリエントリも残す。ディレクトリを開けないOSでは何もしない
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windowsではディレクトリをfsyncできない
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 書き込みの結果は既にFutureに反映している
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long writtenCount() {
+        return written.get();
+    }
+
+    public long syncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * {@link #handler()} で積んだもののうち、エンコードや書き込み、fsyncに失敗した入力と原因。
+     * 全て出揃うのは {@link #close()} の後
+     */
+    public Map<Path, Throwable> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * 待ち行列が一杯で {@link #submit} がブロックした時間の合計
+     */
+    public long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * 積まれているものを全て書き、fsyncしてから終わる。submitと同時に呼ばないこと
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // 待ち行列の後ろに積むので、先に積まれたものは全て書かれる
+            for (int i = 0; i < encoders; i++) {
+                queue.put(END);
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
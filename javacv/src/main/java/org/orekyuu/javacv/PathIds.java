@@ -0,0 +1,307 @@
+package org.orekyuu.javacv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link HashIndex} に入れたIDから元のパスを引く表。IDはパスのハッシュなので、それだけでは元に戻せない。
+ * パスはpaths.datに追記していき、IDからその位置を引く表はIDの順に並べてpaths.idxに置き、メモリマップして二分探索する。
+ * ヒープに持つのは表に入っていない追加分の位置だけで、ある程度溜まったら表を書き直す
+ */
+final class PathIds implements AutoCloseable {
+
+    private static final int MAGIC = 0x50494458;
+    private static final int DATA_MAGIC = 0x50494454;
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int DATA_HEADER = 8;
+    // ID、パスのバイト数、パス
+    private static final int RECORD_HEADER = 12;
+    // ヒープに溜めるのは、少なくともこの件数まで
+    private static final int MIN_PENDING = 1 << 16;
+
+    private final Path tableFile;
+    private final FileChannel data;
+    private Table table;
+    private long dataSize;
+    // 表に入っていないIDと、paths.datでの位置
+    private final Map<Long, Long> pending = new HashMap<>();
+
+    private PathIds(Path tableFile, Table table, FileChannel data) {
+        this.tableFile = tableFile;
+        this.table = table;
+        this.data = data;
+    }
+
+    /**
+     * ディレクトリになければ空の表を作る
+     */
+    static PathIds open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path tableFile = directory.resolve("paths.idx");
+        Table table = Files.exists(tableFile) ? Table.map(tableFile) : Table.EMPTY;
+        FileChannel data = FileChannel.open(directory.resolve("paths.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PathIds ids = new PathIds(tableFile, table, data);
+        try {
+            ids.replay();
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+        return ids;
+    }
+
+    /**
+     * 表を書いた後に追記した分の位置を読む。書きかけで終わった最後の1件は捨てる
+     */
+    private void replay() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.size() < DATA_HEADER) {
+            if (table.count > 0) {
+                throw new IOException("paths.datがありません: " + tableFile);
+            }
+            header.putInt(DATA_MAGIC).putInt(VERSION).flip();
+            data.truncate(0);
+            data.write(header, 0);
+            dataSize = DATA_HEADER;
+            return;
+        }
+        data.read(header, 0);
+        if (header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("paths.datの形式が違います: " + tableFile);
+        }
+        long size = data.size();
+        long position = Math.max(DATA_HEADER, table.covered);
+        if (position > size) {
+            throw new IOException("paths.datが途中で切れています: " + tableFile);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + RECORD_HEADER <= size) {
+            record.clear();
+            readFully(record, position);
+            int length = record.getInt(8);
+            long end = position + RECORD_HEADER + length;
+            if (length < 0 || end > size) {
+                break;
+            }
+            pending.put(record.getLong(0), position);
+            position = end;
+        }
+        data.truncate(position);
+        dataSize = position;
+    }
+
+    static long id(Path path) {
+        return ContentHash.xxh64(ByteBuffer.wrap(path.toString().getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    /**
+     * 初めてのパスなら表に足してからIDを返す
+     */
+    synchronized long add(Path path) throws IOException {
+        long id = id(path);
+        if (pending.containsKey(id) || table.find(id) >= 0) {
+            return id;
+        }
+        byte[] bytes = path.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putLong(id).putInt(bytes.length).put(bytes).flip();
+        long offset = dataSize;
+        while (record.hasRemaining()) {
+            dataSize += data.write(record, dataSize);
+        }
+        pending.put(id, offset);
+        if (pending.size() >= Math.max(MIN_PENDING, table.count / 64)) {
+            compact();
+        }
+        return id;
+    }
+
+    /**
+     * @return 表になければnull
+     */
+    synchronized Path get(long id) throws IOException {
+        Long offset = pending.get(id);
+        if (offset == null) {
+            int index = table.find(id);
+            if (index < 0) {
+                return null;
+            }
+            offset = table.offsets.get(index);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, offset);
+        ByteBuffer path = ByteBuffer.allocate(header.getInt(8));
+        readFully(path, offset + RECORD_HEADER);
+        return Paths.get(new String(path.array(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 見つからなければIDを16進で返す
+     */
+    String describe(long id) throws IOException {
+        Path path = get(id);
+        return path == null ? String.format("%016x", id) : path.toString();
+    }
+
+    /**
+     * ヒープに溜まっている分も含めて表を書き直す
+     */
+    synchronized void compact() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long[] ids = new long[pending.size()];
+        int i = 0;
+        for (long id : pending.keySet()) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        long[] offsets = new long[ids.length];
+        for (i = 0; i < ids.length; i++) {
+            offsets[i] = pending.get(ids[i]);
+        }
+        // 表を置き換える前に、表が指す位置まで書いておく
+        data.force(true);
+        Path temp = tableFile.resolveSibling(tableFile.getFileName() + ".tmp");
+        Table.write(temp, table, ids, offsets, dataSize);
+        Files.move(temp, tableFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = Table.map(tableFile);
+        pending.clear();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("paths.datが途中で切れています");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * 追記した分をディスクに書いてから閉じる。マップした表はGCされるまで残る
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        data.force(true);
+        data.close();
+    }
+
+    /**
+     * 書き直すまで変わらない表。ファイルの中身は、ヘッダ、IDの昇順に並べたID、それぞれのpaths.datでの位置
+     */
+    private static final class Table {
+        static final Table EMPTY = new Table(0, 0, null, null);
+
+        final int count;
+        // paths.datのこの位置までを表に入れた
+        final long covered;
+        final LongBuffer ids;
+        final LongBuffer offsets;
+
+        private Table(int count, long covered, LongBuffer ids, LongBuffer offsets) {
+            this.count = count;
+            this.covered = covered;
+            this.ids = ids;
+            this.offsets = offsets;
+        }
+
+        static Table map(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("表の形式が違います: " + file);
+                }
+                int count = header.getInt(8);
+                long covered = header.getLong(16);
+                if (channel.size() != HEADER + count * 16L) {
+                    throw new IOException("表が途中で切れています: " + file);
+                }
+                LongBuffer ids = map(channel, HEADER, count * 8L).asLongBuffer();
+                LongBuffer offsets = map(channel, HEADER + count * 8L, count * 8L).asLongBuffer();
+                return new Table(count, covered, ids, offsets);
+            }
+        }
+
+        private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * baseの全件と、IDの順に並べた追加分を合わせて書く
+         */
+        static void write(Path file, Table base, long[] ids, long[] offsets, long covered) throws IOException {
+            int count = Math.addExact(base.count, ids.length);
+            List<MappedByteBuffer> mapped = new ArrayList<>();
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw"); FileChannel channel = raf.getChannel()) {
+                raf.setLength(HEADER + count * 16L);
+                ByteBuffer header = writable(channel, 0, HEADER, mapped);
+                header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, count).putLong(16, covered);
+                LongBuffer newIds = writable(channel, HEADER, count * 8L, mapped).asLongBuffer();
+                LongBuffer newOffsets = writable(channel, HEADER + count * 8L, count * 8L, mapped).asLongBuffer();
+                int b = 0;
+                int a = 0;
+                for (int i = 0; i < count; i++) {
+                    if (a == ids.length || b < base.count && base.ids.get(b) < ids[a]) {
+                        newIds.put(i, base.ids.get(b));
+                        newOffsets.put(i, base.offsets.get(b));
+                        b++;
+                    } else {
+                        newIds.put(i, ids[a]);
+                        newOffsets.put(i, offsets[a]);
+                        a++;
+                    }
+                }
+                for (MappedByteBuffer buffer : mapped) {
+                    buffer.force();
+                }
+            }
+        }
+
+        private static ByteBuffer writable(FileChannel channel, long position, long size, List<MappedByteBuffer> mapped)
+                throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            mapped.add(buffer);
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * @return なければ負の値
+         */
+        int find(long id) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = ids.get(middle);
+                if (value < id) {
+                    low = middle + 1;
+                } else if (value > id) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.Arrays;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_32F;
+import static org.bytedeco.opencv.global.opencv_core.cvarrToMat;
+import static org.bytedeco.opencv.global.opencv_core.dct;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGR2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.COLOR_BGRA2GRAY;
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.cvtColor;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * 補正後の画像の64bitの知覚ハッシュ(pHash)。32x32に縮めてDCTし、低い周波数の8x8が中央値より大きいかをビットにする。
+ * 少し違う角度で撮り直した同じページなら、ハミング距離は数ビットに収まる
+ */
+public final class PerceptualHash {
+
+    private static final int SIZE = 32;
+    private static final int LOW = 8;
+
+    private PerceptualHash() {
+    }
+
+    public static long of(IplImage image) {
+        try (Mat mat = cvarrToMat(image)) {
+            return of(mat);
+        }
+    }
+
+    public static long of(Mat image) {
+        try (Mat gray = new Mat(); Mat small = new Mat(); Mat floats = new Mat(); Mat frequencies = new Mat();
+             Size size = new Size(SIZE, SIZE)) {
+            if (image.channels() == 3) {
+                cvtColor(image, gray, COLOR_BGR2GRAY);
+            } else if (image.channels() == 4) {
+                cvtColor(image, gray, COLOR_BGRA2GRAY);
+            } else {
+                image.copyTo(gray);
+            }
+            resize(gray, small, size, 0, 0, INTER_AREA);
+            small.convertTo(floats, CV_32F);
+            dct(floats, frequencies);
+
+            float[] low = new float[LOW * LOW];
+            try (FloatIndexer indexer = frequencies.createIndexer()) {
+                for (int y = 0; y < LOW; y++) {
+                    for (int x = 0; x < LOW; x++) {
+                        low[y * LOW + x] = indexer.get(y, x);
+                    }
+                }
+            }
+            // 直流成分は明るさだけで決まるので、中央値には含めない
+            float[] sorted = Arrays.copyOfRange(low, 1, low.length);
+            Arrays.sort(sorted);
+            float median = sorted[sorted.length / 2];
+            long hash = 0;
+            for (int i = 0; i < low.length; i++) {
+                if (low[i] > median) {
+                    hash |= 1L << i;
+                }
+            }
+            return hash;
+        }
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
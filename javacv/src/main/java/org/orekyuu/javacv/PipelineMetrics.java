@@ -0,0 +1,52 @@
+package org.orekyuu.javacv;
+
+/**
+ * パイプラインの各段の所要時間と、輪郭の数などを受け取る。
+ * 既定では {@link StageMetrics#shared()} に集計され、JMXから見える
+ */
+public interface PipelineMetrics {
+
+    enum Stage {
+        DECODE,
+        RESIZE,
+        GRAY_BLUR,
+        ERODE_DILATE,
+        CANNY,
+        CONTOURS,
+        APPROX_POLY,
+        WARP,
+    }
+
+    enum Counter {
+        CONTOURS_SEEN,
+        /**
+         * 面積が小さすぎるか、四角形にならなかった輪郭。大きい順に近似するので、見つかった四角形より小さいものは数えない
+         */
+        CONTOURS_REJECTED,
+        DOCUMENTS_FOUND,
+        DOCUMENTS_MISSED,
+    }
+
+    PipelineMetrics NONE = new PipelineMetrics() {
+        @Override
+        public void recordTime(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void increment(Counter counter, long delta) {
+        }
+    };
+
+    void recordTime(Stage stage, long nanos);
+
+    void increment(Counter counter, long delta);
+
+    /**
+     * startからの経過時間をstageとして記録し、現在時刻を返す。続けて次の段の計測に使える
+     */
+    default long lap(Stage stage, long start) {
+        long now = System.nanoTime();
+        recordTime(stage, now - start);
+        return now;
+    }
+}
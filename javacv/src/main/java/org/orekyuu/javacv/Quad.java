@@ -0,0 +1,75 @@
+package org.orekyuu.javacv;
+
+import java.util.Arrays;
+
+/**
+ * 書類の四隅。左上、右上、右下、左下の順で持つ
+ */
+public final class Quad {
+
+    public static final int TOP_LEFT = 0;
+    public static final int TOP_RIGHT = 1;
+    public static final int BOTTOM_RIGHT = 2;
+    public static final int BOTTOM_LEFT = 3;
+
+    private final float[] points;
+
+    public Quad(float topLeftX, float topLeftY, float topRightX, float topRightY,
+                float bottomRightX, float bottomRightY, float bottomLeftX, float bottomLeftY) {
+        this(new float[]{
+                topLeftX, topLeftY,
+                topRightX, topRightY,
+                bottomRightX, bottomRightY,
+                bottomLeftX, bottomLeftY,
+        });
+    }
+
+    private Quad(float[] points) {
+        this.points = points;
+    }
+
+    public static Quad of(float[] points) {
+        if (points.length != 8) {
+            throw new IllegalArgumentException("4点分の座標が必要です: " + points.length);
+        }
+        return new Quad(points.clone());
+    }
+
+    public float x(int corner) {
+        return points[corner * 2];
+    }
+
+    public float y(int corner) {
+        return points[corner * 2 + 1];
+    }
+
+    public Quad scale(double sx, double sy) {
+        float[] scaled = new float[8];
+        for (int i = 0; i < 4; i++) {
+            scaled[i * 2] = (float) (points[i * 2] * sx);
+            scaled[i * 2 + 1] = (float) (points[i * 2 + 1] * sy);
+        }
+        return new Quad(scaled);
+    }
+
+    public float[] toArray() {
+        return points.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(points, ((Quad) o).points);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(points);
+    }
+
+    @Override
+    public String toString() {
+        return "Quad" + Arrays.toString(points);
+    }
+}
@@ -0,0 +1,72 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Rect;
+
+/**
+ * 直前のフレームで見つかった四隅から、次のフレームで探す範囲を決める
+ */
+public class QuadTracker {
+
+    private final double margin;
+    private final int maxMisses;
+    private Quad last;
+    private int misses;
+
+    /**
+     * @param margin    探す範囲を前回の四隅の外接矩形からどれだけ広げるか(外接矩形の長辺に対する割合)
+     * @param maxMisses 何フレーム続けて見失ったら前回の位置を忘れるか
+     */
+    public QuadTracker(double margin, int maxMisses) {
+        this.margin = margin;
+        this.maxMisses = maxMisses;
+    }
+
+    public QuadTracker() {
+        this(0.15, 5);
+    }
+
+    /**
+     * 追跡中でなければnull
+     */
+    public Rect searchArea(int width, int height) {
+        if (last == null) {
+            return null;
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            minX = Math.min(minX, last.x(i));
+            minY = Math.min(minY, last.y(i));
+            maxX = Math.max(maxX, last.x(i));
+            maxY = Math.max(maxY, last.y(i));
+        }
+        double grow = Math.max(maxX - minX, maxY - minY) * margin;
+        int x = Math.max(0, (int) Math.floor(minX - grow));
+        int y = Math.max(0, (int) Math.floor(minY - grow));
+        int right = Math.min(width, (int) Math.ceil(maxX + grow) + 1);
+        int bottom = Math.min(height, (int) Math.ceil(maxY + grow) + 1);
+        if (right <= x || bottom <= y) {
+            return null;
+        }
+        return new Rect(x, y, right - x, bottom - y);
+    }
+
+    public void found(Quad quad) {
+        last = quad;
+        misses = 0;
+    }
+
+    public void missed() {
+        if (++misses >= maxMisses) {
+            last = null;
+        }
+    }
+
+    public boolean isTracking() {
+        return last != null;
+    }
+
+    public void reset() {
+        last = null;
+        misses = 0;
+    }
+}
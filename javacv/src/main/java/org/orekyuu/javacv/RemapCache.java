@@ -0,0 +1,193 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * 台形補正の座標表を四隅ごとに覚えておき、同じ四隅が続く間はremapだけで補正する。
+ * 書画カメラや動画の連続したフレームのように、書類の位置が変わらない入力向け。
+ * 四隅はstep画素単位に丸めてから比べる。表を作る方が1回の補正より重いので、2回目に見た四隅から表を作る。
+ * スレッドセーフではないので、ファインダーごとに持つ
+ */
+public class RemapCache implements AutoCloseable {
+
+    private final int maxEntries;
+    private final int step;
+    private final LinkedHashMap<Key, Maps> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Boolean> seen = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > maxEntries * 4;
+        }
+    };
+    private final Mat sourcePoints = new Mat(4, 1, CV_32FC2);
+    private final Mat destinationPoints = new Mat(4, 1, CV_32FC2);
+    private long hits;
+    private long misses;
+
+    public RemapCache() {
+        this(4, 1);
+    }
+
+    /**
+     * @param step 四隅を丸める単位。1なら整数の座標が一致した時だけ使い回す
+     */
+    public RemapCache(int maxEntries, int step) {
+        if (maxEntries <= 0 || step <= 0) {
+            throw new IllegalArgumentException("maxEntriesとstepは正の数にしてください");
+        }
+        this.maxEntries = maxEntries;
+        this.step = step;
+    }
+
+    /**
+     * sourceの中のquadをwidth x heightの長方形に引き伸ばし、destの大きさの分だけ書き込む。
+     * destは呼び出し側で確保しておく。元画像の外は黒で埋める
+     */
+    public void warp(Mat source, Quad quad, int width, int height, Mat dest) {
+        Key key = key(quad, width, height, dest.cols(), dest.rows());
+        Maps maps = entries.get(key);
+        if (maps != null) {
+            hits++;
+            remap(source, dest, maps.map1, maps.map2, INTER_LINEAR, BORDER_CONSTANT, Scalar.ZERO);
+            return;
+        }
+        misses++;
+        try (Mat perspective = perspective(key)) {
+            if (seen.remove(key) == null) {
+                seen.put(key, Boolean.TRUE);
+                try (Size size = new Size(dest.cols(), dest.rows())) {
+                    warpPerspective(source, dest, perspective, size, INTER_LINEAR | WARP_INVERSE_MAP,
+                            BORDER_CONSTANT, Scalar.ZERO);
+                }
+                return;
+            }
+            maps = build(perspective, dest.cols(), dest.rows());
+        }
+        entries.put(key, maps);
+        evict();
+        remap(source, dest, maps.map1, maps.map2, INTER_LINEAR, BORDER_CONSTANT, Scalar.ZERO);
+    }
+
+    private Key key(Quad quad, int width, int height, int outputWidth, int outputHeight) {
+        int[] values = new int[12];
+        for (int i = 0; i < 4; i++) {
+            values[i * 2] = Math.round(quad.x(i) / step);
+            values[i * 2 + 1] = Math.round(quad.y(i) / step);
+        }
+        values[8] = width;
+        values[9] = height;
+        values[10] = outputWidth;
+        values[11] = outputHeight;
+        return new Key(values);
+    }
+
+    /**
+     * 出力の座標から元画像の座標への変換。丸めた四隅から求めるので、表を作った時と使い回す時で同じになる
+     */
+    private Mat perspective(Key key) {
+        int[] values = key.values;
+        int width = values[8];
+        int height = values[9];
+        FloatIndexer source = sourcePoints.createIndexer();
+        FloatIndexer destination = destinationPoints.createIndexer();
+        float[] corners = {0, 0, width, 0, width, height, 0, height};
+        for (int i = 0; i < 8; i++) {
+            source.put(i, (float) values[i] * step);
+            destination.put(i, corners[i]);
+        }
+        source.release();
+        destination.release();
+        return getPerspectiveTransform(destinationPoints, sourcePoints);
+    }
+
+    private static Maps build(Mat perspective, int cols, int rows) {
+        try (Mat grid = new Mat(rows, cols, CV_32FC2); Mat mapped = new Mat(); Mat none = new Mat()) {
+            FloatBuffer buffer = grid.createBuffer();
+            float[] row = new float[cols * 2];
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < cols; x++) {
+                    row[x * 2] = x;
+                    row[x * 2 + 1] = y;
+                }
+                buffer.put(row);
+            }
+            perspectiveTransform(grid, mapped, perspective);
+            // 固定小数点の表にしておくと、remapで補間の係数を計算し直さない
+            Maps maps = new Maps();
+            convertMaps(mapped, none, maps.map1, maps.map2, CV_16SC2, false);
+            return maps;
+        }
+    }
+
+    private void evict() {
+        Iterator<Maps> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next().close();
+            iterator.remove();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long hitCount() {
+        return hits;
+    }
+
+    public long missCount() {
+        return misses;
+    }
+
+    @Override
+    public void close() {
+        entries.values().forEach(Maps::close);
+        entries.clear();
+        seen.clear();
+        sourcePoints.close();
+        destinationPoints.close();
+    }
+
+    private static final class Maps implements AutoCloseable {
+        final Mat map1 = new Mat();
+        final Mat map2 = new Mat();
+
+        @Override
+        public void close() {
+            map1.close();
+            map2.close();
+        }
+    }
+
+    private static final class Key {
+        final int[] values;
+
+        Key(int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Arrays.equals(values, ((Key) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
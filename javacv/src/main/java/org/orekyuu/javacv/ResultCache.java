@@ -0,0 +1,381 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_core.cvarrToMat;
+
+/**
+ * 検出結果をディスクに残し、同じ内容の画像が再び来た時にデコードも検出もせずに返す。
+ * キーは入力のバイト列のハッシュと長さ、実装の種類、Cannyの閾値。
+ * エントリは1件1ファイルで、一時ファイルに書いてから置き換えるので、複数のワーカーから同時に使っても壊れない。
+ * 合計の大きさが上限を超えたら、使われていない順に消す。使った順はファイルの更新日時に残し、次に開いた時に引き継ぐ
+ */
+public class ResultCache {
+
+    private static final int MAGIC = 0x42465243;
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String imageExtension;
+    private final int[] imageParams;
+    private final String suffix;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * 形式や品質が違えば残す画像も違うので、別のエントリとして扱う
+     *
+     * @param imageExtension 補正後の画像も残す場合のエンコード形式(".png"や".jpg")。nullなら四隅だけを残す
+     * @param imageParams    imencodeに渡すフラグと値の組
+     */
+    public ResultCache(Path directory, long maxBytes, String imageExtension, int... imageParams) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.imageExtension = imageExtension;
+        this.imageParams = imageParams.clone();
+        StringBuilder suffix = new StringBuilder();
+        if (imageExtension != null) {
+            suffix.append(imageExtension);
+            for (int param : imageParams) {
+                suffix.append('-').append(param);
+            }
+        }
+        this.suffix = suffix.toString();
+        Files.createDirectories(directory);
+        load();
+    }
+
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, null);
+    }
+
+    /**
+     * 前回までのエントリを古い順に読み込む。書きかけの一時ファイルは消す
+     */
+    private void load() throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory, 2)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                Files.deleteIfExists(file);
+            }
+        }
+        files.removeIf(file -> file.getFileName().toString().endsWith(TEMP_SUFFIX));
+        files.sort(Comparator.comparing(ResultCache::lastModified));
+        synchronized (this) {
+            for (Path file : files) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                bytes += size;
+            }
+            evict();
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 1件分の結果
+     */
+    public static final class Entry {
+        private final Quad quad;
+        private final int resultWidth;
+        private final int resultHeight;
+        private final byte[] image;
+
+        Entry(Quad quad, int resultWidth, int resultHeight, byte[] image) {
+            this.quad = quad;
+            this.resultWidth = resultWidth;
+            this.resultHeight = resultHeight;
+            this.image = image;
+        }
+
+        /**
+         * 書類が見つからなかった場合はnull
+         */
+        public Quad getQuad() {
+            return quad;
+        }
+
+        public int getResultWidth() {
+            return resultWidth;
+        }
+
+        public int getResultHeight() {
+            return resultHeight;
+        }
+
+        /**
+         * エンコードした補正後の画像。残していなければnull
+         */
+        public byte[] getImage() {
+            return image;
+        }
+
+        /**
+         * 補正後の画像をデコードする。残していなければnull
+         */
+        public Mat decodeImage() {
+            if (image == null) {
+                return null;
+            }
+            try (BytePointer pointer = new BytePointer(image); Mat encoded = new Mat(1, image.length, CV_8UC1, pointer)) {
+                return opencv_imgcodecs.imdecode(encoded, opencv_imgcodecs.IMREAD_COLOR);
+            }
+        }
+    }
+
+    /**
+     * 入力の内容と処理の条件からキーを作る。内容を読めない {@link ImageSource} ならnull
+     *
+     * @param variant 実装の種類など、結果が変わる条件
+     */
+    public static String key(ImageSource source, String variant, double threshold, double threshold2) {
+        ByteBuffer contents = contents(source);
+        if (contents == null) {
+            return null;
+        }
+        long hash = ContentHash.xxh64(contents, 0);
+        return String.format("%016x-%x-%s-%s-%s", hash, contents.remaining(), variant,
+                thresholdName(threshold), thresholdName(threshold2));
+    }
+
+    private static String thresholdName(double threshold) {
+        return Double.isNaN(threshold) ? "auto" : Double.toString(threshold);
+    }
+
+    private static ByteBuffer contents(ImageSource source) {
+        if (source instanceof BufferImageSource) {
+            return ((BufferImageSource) source).data();
+        }
+        if (source instanceof FileImageSource) {
+            try (FileChannel channel = FileChannel.open(((FileImageSource) source).path(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return なければnull
+     */
+    public Entry get(String key) {
+        key += suffix;
+        synchronized (this) {
+            if (!entries.containsKey(key)) {
+                misses++;
+                return null;
+            }
+        }
+        Path file = fileOf(key);
+        Entry entry;
+        try {
+            entry = read(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            forget(key);
+            synchronized (this) {
+                misses++;
+            }
+            return null;
+        } catch (IOException e) {
+            // 壊れたエントリは消して、計算し直させる
+            synchronized (this) {
+                forget(key);
+                delete(file);
+                misses++;
+            }
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // 読んだ後に追い出されて更新日時を変えられなくても、読めた結果は返す
+        }
+        synchronized (this) {
+            entries.get(key);
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * finderの直近の結果を残す
+     */
+    public void put(String key, DocumentFinder finder) {
+        IplImage result = finder.getResult();
+        byte[] image = null;
+        if (imageExtension != null && result != null) {
+            try (Mat mat = cvarrToMat(result); BytePointer encoded = new BytePointer();
+                 IntPointer params = new IntPointer(imageParams.length)) {
+                params.put(imageParams);
+                opencv_imgcodecs.imencode(imageExtension, mat, encoded, params);
+                image = new byte[(int) encoded.limit()];
+                encoded.get(image);
+            }
+        }
+        put(key, new Entry(finder.getQuad(), result == null ? 0 : result.width(), result == null ? 0 : result.height(), image));
+    }
+
+    public void put(String key, Entry entry) {
+        key += suffix;
+        Path file = fileOf(key);
+        byte[] data = write(entry);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), key, TEMP_SUFFIX);
+            try {
+                Files.write(temp, data);
+                // 置き換えと索引の更新の間に、別のスレッドが同じキーを追い出さないようにする
+                synchronized (this) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Long old = entries.put(key, (long) data.length);
+                    if (old != null) {
+                        bytes -= old;
+                    }
+                    bytes += data.length;
+                    evict();
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.getValue();
+            delete(fileOf(eldest.getKey()));
+        }
+    }
+
+    private synchronized void forget(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            bytes -= size;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // 次に開いた時に読めなければまた消す
+        }
+    }
+
+    /**
+     * 1つのディレクトリにファイルが溜まりすぎないよう、ハッシュの先頭2文字で分ける
+     */
+    private Path fileOf(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static byte[] write(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(entry.quad != null);
+            if (entry.quad != null) {
+                for (float value : entry.quad.toArray()) {
+                    out.writeFloat(value);
+                }
+            }
+            out.writeInt(entry.resultWidth);
+            out.writeInt(entry.resultHeight);
+            out.writeInt(entry.image == null ? -1 : entry.image.length);
+            if (entry.image != null) {
+                out.write(entry.image);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Entry read(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("キャッシュの形式が違います");
+            }
+            Quad quad = null;
+            if (in.readBoolean()) {
+                float[] points = new float[8];
+                for (int i = 0; i < points.length; i++) {
+                    points[i] = in.readFloat();
+                }
+                quad = Quad.of(points);
+            }
+            int resultWidth = in.readInt();
+            int resultHeight = in.readInt();
+            int imageLength = in.readInt();
+            byte[] image = imageLength < 0 ? null : in.readNBytes(imageLength);
+            if (image != null && image.length != imageLength) {
+                throw new IOException("キャッシュが途中で切れています");
+            }
+            return new Entry(quad, resultWidth, resultHeight, image);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+}
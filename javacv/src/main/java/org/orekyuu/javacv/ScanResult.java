@@ -0,0 +1,97 @@
+package org.orekyuu.javacv;
+
+import java.nio.file.Path;
+
+/**
+ * バッチ処理での1ファイル分の結果
+ */
+public final class ScanResult {
+
+    private final Path path;
+    private final Quad quad;
+    private final int resultWidth;
+    private final int resultHeight;
+    private final Throwable error;
+    private final long elapsedNanos;
+    private final boolean cached;
+
+    private ScanResult(Path path, Quad quad, int resultWidth, int resultHeight, Throwable error, long elapsedNanos,
+                       boolean cached) {
+        this.path = path;
+        this.quad = quad;
+        this.resultWidth = resultWidth;
+        this.resultHeight = resultHeight;
+        this.error = error;
+        this.elapsedNanos = elapsedNanos;
+        this.cached = cached;
+    }
+
+    static ScanResult success(Path path, Quad quad, int resultWidth, int resultHeight, long elapsedNanos) {
+        return new ScanResult(path, quad, resultWidth, resultHeight, null, elapsedNanos, false);
+    }
+
+    static ScanResult cached(Path path, ResultCache.Entry entry, long elapsedNanos) {
+        return new ScanResult(path, entry.getQuad(), entry.getResultWidth(), entry.getResultHeight(), null, elapsedNanos, true);
+    }
+
+    static ScanResult failure(Path path, Throwable error, long elapsedNanos) {
+        return new ScanResult(path, null, 0, 0, error, elapsedNanos, false);
+    }
+
+    /**
+     * 検出の後で失敗した場合に、検出の結果はそのままで失敗したことにする
+     */
+    ScanResult withError(Throwable error) {
+        return new ScanResult(path, quad, resultWidth, resultHeight, error, elapsedNanos, cached);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * 書類が見つからなかった場合や失敗した場合はnull
+     */
+    public Quad getQuad() {
+        return quad;
+    }
+
+    public int getResultWidth() {
+        return resultWidth;
+    }
+
+    public int getResultHeight() {
+        return resultHeight;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public boolean isFound() {
+        return quad != null;
+    }
+
+    /**
+     * {@link ResultCache} から返したもの。デコードも検出もしていない
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    @Override
+    public String toString() {
+        if (!isSuccess()) {
+            return path + ": failed " + error;
+        }
+        return path + ": " + (isFound() ? quad + " " + resultWidth + "x" + resultHeight : "not found") + (cached ? " (cached)" : "");
+    }
+}
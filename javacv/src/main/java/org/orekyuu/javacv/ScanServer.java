@@ -0,0 +1,449 @@
+package org.orekyuu.javacv;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.bytedeco.opencv.opencv_core.Mat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bytedeco.opencv.global.opencv_core.cvarrToMat;
+
+/**
+ * 画像をアップロードすると、台形補正した書類と四隅を返すヘッドレスのサーバー。
+ * 通信はI/O用のスレッドで行い、OpenCVの処理はコア数分のワーカーだけで行う。
+ * ワーカーの待ち行列が一杯なら429を返す。アップロードを読み終わってから受け付け、応答も組み立て終わってから書くので、
+ * 遅いクライアントがワーカーを占有することはない
+ *
+ * <pre>
+ * POST /scan?threshold=100&amp;threshold2=100&amp;format=png  本文は画像。補正後の画像を返し、四隅はX-Document-Quadヘッダに入れる
+ * POST /scan?threshold=auto&amp;output=json                   四隅と大きさだけをJSONで返す
+ * GET  /health                                             ウォームアップ中は503を返す
+ * </pre>
+ */
+public class ScanServer implements AutoCloseable {
+
+    private static final System.Logger LOGGER = System.getLogger(ScanServer.class.getName());
+
+    private final HttpServer server;
+    private final FinderType type;
+    private final int maxUploadBytes;
+    private final ExecutorService io;
+    private final ThreadPoolExecutor workers;
+    private final Queue<DocumentFinder> finders = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<DocumentFinder> workerFinder;
+    private volatile CompletableFuture<Warmup.Report> warmup = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param queueDepth 実行中のものとは別に、ワーカーを待たせておける件数。超えた分は429を返す
+     */
+    public ScanServer(InetSocketAddress address, FinderType type, int workers, int queueDepth, int maxUploadBytes)
+            throws IOException {
+        if (workers <= 0 || queueDepth < 0) {
+            throw new IllegalArgumentException("workers must be positive and queueDepth must not be negative");
+        }
+        // 上限より1バイト多く読んで超えたかを見るので、その分の余裕がいる
+        if (maxUploadBytes <= 0 || maxUploadBytes == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxUploadBytes must be between 1 and " + (Integer.MAX_VALUE - 1));
+        }
+        this.type = type;
+        this.maxUploadBytes = maxUploadBytes;
+        this.workerFinder = ThreadLocal.withInitial(() -> {
+            DocumentFinder finder = type.create(ImagePool.shared(), null);
+            finders.add(finder);
+            return finder;
+        });
+        // 全員が処理中で待ち行列も一杯なら、submitがRejectedExecutionExceptionを投げる
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                queueDepth == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueDepth),
+                threadFactory("scan-worker"));
+        // 遅いアップロードやダウンロードを待つのはI/O用のスレッドだけ
+        this.io = Executors.newFixedThreadPool(workers * 8, threadFactory("scan-http"));
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(io);
+        server.createContext("/scan", this::handleScan);
+        server.createContext("/health", this::handleHealth);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * 別のスレッドでネイティブライブラリの読み込みと合成画像の処理を済ませる。終わるまで/healthは503を返すので、
+     * ロードバランサーは温まったインスタンスにだけ流す
+     */
+    public CompletableFuture<Warmup.Report> warmUp(Path nativeCache) {
+        return watchWarmup(Warmup.inBackground(nativeCache, type));
+    }
+
+    CompletableFuture<Warmup.Report> watchWarmup(CompletableFuture<Warmup.Report> report) {
+        warmup = report;
+        return report;
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        if (warmup.isCompletedExceptionally()) {
+            // 失敗したまま流されないよう、原因を添えて503のままにする
+            Throwable cause = warmup.handle((report, e) -> e).join();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            respond(exchange, 503, "text/plain", ("warm-up failed: " + cause).getBytes(StandardCharsets.UTF_8));
+        } else if (warmup.isDone()) {
+            respond(exchange, 200, "text/plain", "ok".getBytes(StandardCharsets.UTF_8));
+        } else {
+            respond(exchange, 503, "text/plain", "warming up".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * テストで待ち行列を埋めるために使う
+     */
+    ThreadPoolExecutor workers() {
+        return workers;
+    }
+
+    private void handleScan(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                respond(exchange, 405, "text/plain", "POSTで画像を送ってください".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            Request request;
+            try {
+                request = new Request(query);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            long length;
+            try {
+                length = contentLength(exchange);
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, "text/plain", "Content-Lengthが不正です".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            byte[] body = length > maxUploadBytes ? null : readBody(exchange);
+            if (body == null) {
+                respond(exchange, 413, "text/plain", ("画像は" + maxUploadBytes + "バイトまでです").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            Future<Response> future;
+            try {
+                future = workers.submit(() -> scan(body, request));
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 429, "text/plain", "混み合っています".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            Response response;
+            try {
+                response = future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "text/plain", new byte[0]);
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                int status = cause instanceof IllegalArgumentException ? 400 : 500;
+                if (status == 500) {
+                    LOGGER.log(System.Logger.Level.WARNING, "scan failed", cause);
+                }
+                respond(exchange, status, "text/plain", String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (response.quad != null) {
+                exchange.getResponseHeaders().set("X-Document-Quad", quadHeader(response.quad));
+            }
+            respond(exchange, response.status, response.contentType, response.body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * ワーカーのスレッドで呼ばれる。応答の本文まで作ってから返す
+     */
+    private Response scan(byte[] body, Request request) {
+        DocumentFinder finder = workerFinder.get();
+        ImageSource source = ImageSource.of("upload", ByteBuffer.wrap(body));
+        if (request.auto) {
+            finder.processAuto(source);
+        } else {
+            finder.process(source, request.threshold, request.threshold2);
+        }
+        IplImage result = finder.getResult();
+        if (result == null) {
+            return new Response(422, "application/json", null,
+                    "{\"found\":false}".getBytes(StandardCharsets.UTF_8));
+        }
+        Quad quad = sourceQuad(finder, source);
+        if (request.json) {
+            String json = String.format(Locale.ROOT, "{\"found\":true,\"width\":%d,\"height\":%d,\"corners\":%s}",
+                    result.width(), result.height(), quadJson(quad));
+            return new Response(200, "application/json", quad, json.getBytes(StandardCharsets.UTF_8));
+        }
+        try (Mat mat = cvarrToMat(result); BytePointer encoded = new BytePointer()) {
+            opencv_imgcodecs.imencode("." + request.format, mat, encoded);
+            byte[] image = new byte[(int) encoded.limit()];
+            encoded.get(image);
+            return new Response(200, request.format.equals("png") ? "image/png" : "image/jpeg", quad, image);
+        }
+    }
+
+    /**
+     * 送られてきた画像の座標系での四隅。元画像から補正しない実装では縮小画像の四隅を拡大する
+     */
+    private static Quad sourceQuad(DocumentFinder finder, ImageSource source) {
+        if (finder.getSourceQuad() != null) {
+            return finder.getSourceQuad();
+        }
+        Quad quad = finder.getQuad();
+        IplImage resized = finder.getResized();
+        int[] size = null;
+        try {
+            size = ImageDecoder.readSize(source);
+        } catch (IOException e) {
+            // 大きさが分からなければ縮小画像の座標のまま返す
+        }
+        if (size == null) {
+            return quad;
+        }
+        return quad.scale((double) size[0] / resized.width(), (double) size[1] / resized.height());
+    }
+
+    private static String quadHeader(Quad quad) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                builder.append(';');
+            }
+            builder.append(String.format(Locale.ROOT, "%.1f,%.1f", quad.x(i), quad.y(i)));
+        }
+        return builder.toString();
+    }
+
+    private static String quadJson(Quad quad) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(String.format(Locale.ROOT, "[%.1f,%.1f]", quad.x(i), quad.y(i)));
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * @return ヘッダがなければ-1
+     * @throws NumberFormatException 数でないか負の値のとき
+     */
+    private static long contentLength(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        long value = Long.parseLong(length.trim());
+        if (value < 0) {
+            throw new NumberFormatException("negative Content-Length: " + length);
+        }
+        return value;
+    }
+
+    /**
+     * @return 上限を超えたらnull
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(maxUploadBytes + 1);
+            return body.length > maxUploadBytes ? null : body;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) {
+            return query;
+        }
+        for (String pair : raw.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private final class Request {
+        final boolean auto;
+        final double threshold;
+        final double threshold2;
+        final boolean json;
+        final String format;
+
+        Request(Map<String, String> query) {
+            String threshold = query.getOrDefault("threshold", "100");
+            auto = threshold.equals("auto");
+            try {
+                this.threshold = auto ? Double.NaN : Double.parseDouble(threshold);
+                this.threshold2 = auto ? Double.NaN : Double.parseDouble(query.getOrDefault("threshold2", threshold));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("閾値が数値ではありません: " + e.getMessage());
+            }
+            json = query.getOrDefault("output", "image").equals("json");
+            format = query.getOrDefault("format", "png").toLowerCase(Locale.ROOT);
+            if (!format.equals("png") && !format.equals("jpg")) {
+                throw new IllegalArgumentException("formatはpngかjpgです: " + format);
+            }
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final String contentType;
+        final Quad quad;
+        final byte[] body;
+
+        Response(int status, String contentType, Quad quad, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.quad = quad;
+            this.body = body;
+        }
+    }
+
+    /**
+     * 受け付け済みのものを処理し終えてから止める
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        workers.shutdown();
+        io.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DocumentFinder finder;
+        while ((finder = finders.poll()) != null) {
+            finder.close();
+        }
+    }
+
+    /**
+     * --max-upload のMBをバイトにする。intに収まらない値は受け付けない
+     */
+    static int uploadBytes(int megabytes) {
+        long bytes = (long) megabytes << 20;
+        if (megabytes <= 0 || bytes >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("--max-upload は1から" + ((Integer.MAX_VALUE - 1) >> 20) + "までです: " + megabytes);
+        }
+        return (int) bytes;
+    }
+
+    /**
+     * 使い方: ScanServer [--port 8080] [--workers n] [--queue n] [--finder legacy|mat|pyramid] [--max-upload MB]
+     * [--native-cache ディレクトリ] [--no-warmup]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int queue = workers * 2;
+        int maxUpload = 32;
+        FinderType type = FinderType.MAT;
+        Path nativeCache = null;
+        boolean warmUp = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--queue":
+                    queue = Integer.parseInt(args[++i]);
+                    break;
+                case "--finder":
+                    type = FinderType.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                    break;
+                case "--max-upload":
+                    maxUpload = Integer.parseInt(args[++i]);
+                    break;
+                case "--native-cache":
+                    nativeCache = Paths.get(args[++i]);
+                    break;
+                case "--no-warmup":
+                    warmUp = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("不明な引数です: " + args[i]);
+            }
+        }
+        // 小さな画像が次々に来るので、ワーカーごとにOpenCVが余ったコアだけを使うようにする
+        CorePlan.withWorkers(workers).pin();
+        ScanServer server = new ScanServer(new InetSocketAddress(port), type, workers, queue, uploadBytes(maxUpload));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        server.start();
+        System.out.println("listening on " + server.getAddress() + " (" + type + ", " + workers + " workers)");
+        if (warmUp) {
+            server.warmUp(nativeCache).thenAccept(report -> System.out.println("warmed up: " + report));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import static org.bytedeco.opencv.global.opencv_core.cvCopy;
+
+/**
+ * パイプラインの途中結果をメモ化する。
+ * キーは入力画像の識別子と、その段階までに使ったパラメータ。古いものから件数とバイト数の上限で追い出す。
+ * 画像は出し入れのたびにコピーするので、呼び出し側のバッファとキャッシュの寿命は独立している
+ */
+public class StageCache implements AutoCloseable {
+
+    public enum Stage {
+        /**
+         * デコードしてプレビューサイズに縮小した画像
+         */
+        RESIZED,
+        /**
+         * グレースケール化、ぼかし、収縮、膨張まで済ませた画像。Cannyの閾値には依存しない
+         */
+        SMOOTHED,
+    }
+
+    private final ImagePool pool;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, IplImage> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public StageCache(ImagePool pool, int maxEntries, long maxBytes) {
+        this.pool = pool;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public StageCache(ImagePool pool, int maxEntries) {
+        this(pool, maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * ファイルの入力識別子。同じパスでも更新されていれば別物として扱う
+     */
+    public static Object inputOf(String path) {
+        Path file = Paths.get(path).toAbsolutePath();
+        try {
+            return List.of(file, Files.getLastModifiedTime(file), Files.size(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static Key key(Object input, Stage stage, Object... params) {
+        return new Key(input, stage, List.of(params));
+    }
+
+    /**
+     * ヒットした場合はキャッシュ中の画像を渡してreaderを呼ぶ。渡した画像はreaderの中でだけ有効。ミスした場合はnull
+     */
+    public synchronized <T> T read(Key key, Function<IplImage, T> reader) {
+        IplImage image = entries.get(key);
+        if (image == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return reader.apply(image);
+    }
+
+    public synchronized void put(Key key, IplImage image) {
+        IplImage copy = pool.acquire(image.width(), image.height(), image.depth(), image.nChannels());
+        cvCopy(image, copy);
+        IplImage old = entries.put(key, copy);
+        if (old != null) {
+            bytes -= old.imageSize();
+            pool.release(old);
+        }
+        bytes += copy.imageSize();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, IplImage>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            IplImage image = iterator.next().getValue();
+            iterator.remove();
+            bytes -= image.imageSize();
+            pool.release(image);
+        }
+    }
+
+    /**
+     * 指定した入力に関するエントリを全て捨てる
+     */
+    public synchronized void invalidate(Object input) {
+        entries.entrySet().removeIf(entry -> {
+            if (!entry.getKey().input.equals(input)) {
+                return false;
+            }
+            bytes -= entry.getValue().imageSize();
+            pool.release(entry.getValue());
+            return true;
+        });
+    }
+
+    public synchronized void invalidateAll() {
+        entries.values().forEach(pool::release);
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    @Override
+    public void close() {
+        invalidateAll();
+    }
+
+    public static final class Key {
+        final Object input;
+        final Stage stage;
+        final List<Object> params;
+
+        private Key(Object input, Stage stage, List<Object> params) {
+            this.input = Objects.requireNonNull(input);
+            this.stage = stage;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return input.equals(key.input) && stage == key.stage && params.equals(key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(input, stage, params);
+        }
+
+        @Override
+        public String toString() {
+            return stage + params.toString() + " of " + input;
+        }
+    }
+}
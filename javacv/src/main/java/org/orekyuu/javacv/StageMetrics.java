@@ -0,0 +1,182 @@
+package org.orekyuu.javacv;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * {@link PipelineMetrics} の標準の実装。段ごとの回数、合計、最大と、2の冪で区切ったヒストグラムを持つ。
+ * 複数のワーカーから同時に書き込まれても競合しにくいよう、LongAdderで数える
+ */
+public class StageMetrics implements PipelineMetrics, StageMetricsMXBean {
+
+    static final int BUCKETS = 32;
+
+    private static final StageMetrics SHARED = new StageMetrics();
+
+    static {
+        SHARED.register("shared");
+    }
+
+    private static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        long percentileMicros(double percentile) {
+            long count = this.count.sum();
+            if (count == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMicros(max.get());
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+    }
+
+    private final Map<Stage, Timer> timers = new EnumMap<>(Stage.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+
+    public StageMetrics() {
+        for (Stage stage : Stage.values()) {
+            timers.put(stage, new Timer());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    public static StageMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * {@code org.orekyuu.javacv:type=StageMetrics,name=...} としてプラットフォームのMBeanサーバーに登録する
+     */
+    public void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("org.orekyuu.javacv:type=StageMetrics,name=" + name);
+            var server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void recordTime(Stage stage, long nanos) {
+        timers.get(stage).record(nanos);
+    }
+
+    @Override
+    public void increment(Counter counter, long delta) {
+        counters.get(counter).add(delta);
+    }
+
+    public long count(Stage stage) {
+        return timers.get(stage).count.sum();
+    }
+
+    public long totalNanos(Stage stage) {
+        return timers.get(stage).total.sum();
+    }
+
+    public long count(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    private Map<String, Long> perStage(ToLongFunction<Timer> value) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        timers.forEach((stage, timer) -> map.put(stage.name(), value.applyAsLong(timer)));
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return perStage(timer -> timer.count.sum());
+    }
+
+    @Override
+    public Map<String, Long> getMeanMicros() {
+        return perStage(timer -> {
+            long count = timer.count.sum();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(timer.total.sum() / count);
+        });
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return perStage(timer -> timer.percentileMicros(0.99));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return perStage(timer -> TimeUnit.NANOSECONDS.toMicros(timer.max.get()));
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        counters.forEach((counter, adder) -> map.put(counter.name(), adder.sum()));
+        return map;
+    }
+
+    @Override
+    public long[] histogram(String stage) {
+        AtomicLongArray buckets = timers.get(Stage.valueOf(stage)).buckets;
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+
+    @Override
+    public void reset() {
+        timers.values().forEach(Timer::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        getMeanMicros().forEach((stage, mean) -> builder.append(String.format("%-13s n=%-8d mean=%dus p99<=%dus%n",
+                stage, count(Stage.valueOf(stage)), mean, getP99Micros().get(stage))));
+        builder.append(getCounters());
+        return builder.toString();
+    }
+}
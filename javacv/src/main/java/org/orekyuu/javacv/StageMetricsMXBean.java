@@ -0,0 +1,23 @@
+package org.orekyuu.javacv;
+
+import java.util.Map;
+
+public interface StageMetricsMXBean {
+
+    Map<String, Long> getCounts();
+
+    Map<String, Long> getMeanMicros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    Map<String, Long> getCounters();
+
+    /**
+     * i番目の要素は、所要時間が [2^(i-1), 2^i) マイクロ秒だった回数
+     */
+    long[] histogram(String stage);
+
+    void reset();
+}
@@ -0,0 +1,280 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Rect;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.opencv.global.opencv_imgproc.resize;
+
+/**
+ * 動画ファイルやカメラから連続してフレームを読み、書類を探し続ける。
+ * フレームの読み込みと縮小は専用のスレッドで、検出は呼び出し元のスレッドで並行して行う。
+ * 前のフレームで見つかった四隅の周りだけを探し、見失ったときだけ全体を探し直す
+ */
+public class StreamScanner implements AutoCloseable {
+
+    public enum Search {
+        /**
+         * 前のフレームの周りで見つかった
+         */
+        TRACKED,
+        /**
+         * フレーム全体を探して見つかった
+         */
+        FULL,
+        /**
+         * 見つからなかった
+         */
+        LOST,
+    }
+
+    public static final class FrameResult {
+        private final long frameNumber;
+        private final long timestamp;
+        private final Quad quad;
+        private final Search search;
+
+        FrameResult(long frameNumber, long timestamp, Quad quad, Search search) {
+            this.frameNumber = frameNumber;
+            this.timestamp = timestamp;
+            this.quad = quad;
+            this.search = search;
+        }
+
+        public long getFrameNumber() {
+            return frameNumber;
+        }
+
+        /**
+         * マイクロ秒
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 縮小後の画像の座標系。見つからなかった場合はnull
+         */
+        public Quad getQuad() {
+            return quad;
+        }
+
+        public Search getSearch() {
+            return search;
+        }
+    }
+
+    /**
+     * 検出したスレッドで呼ばれる。finderの画像は次のフレームで上書きされる
+     */
+    public interface FrameListener {
+        void onFrame(FrameResult result, MatBookFinder finder) throws Exception;
+    }
+
+    public static final class Stats {
+        public final long frames;
+        public final long tracked;
+        public final long fullSearches;
+        public final long lost;
+        public final long elapsedNanos;
+
+        Stats(long frames, long tracked, long fullSearches, long lost, long elapsedNanos) {
+            this.frames = frames;
+            this.tracked = tracked;
+            this.fullSearches = fullSearches;
+            this.lost = lost;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double framesPerSecond() {
+            return elapsedNanos == 0 ? 0 : frames * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d frames (%d tracked, %d full searches, %d lost), %.1f fps",
+                    frames, tracked, fullSearches, lost, framesPerSecond());
+        }
+    }
+
+    private static final class Grabbed {
+        final Mat image = new Mat();
+        long frameNumber;
+        long timestamp;
+    }
+
+    private static final Grabbed END = new Grabbed();
+    private static final int BUFFERS = 3;
+
+    private final FrameGrabber grabber;
+    private final double threshold;
+    private final double threshold2;
+    private final MatBookFinder finder = new MatBookFinder();
+    private final QuadTracker tracker = new QuadTracker();
+    private final BlockingQueue<Grabbed> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<Grabbed> ready = new ArrayBlockingQueue<>(BUFFERS + 1);
+    private final AtomicReference<Exception> grabError = new AtomicReference<>();
+    private volatile boolean running;
+
+    public StreamScanner(FrameGrabber grabber, double threshold, double threshold2) {
+        this.grabber = grabber;
+        this.threshold = threshold;
+        this.threshold2 = threshold2;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Grabbed());
+        }
+    }
+
+    /**
+     * 数字ならカメラのデバイス番号、それ以外は動画ファイルのパスかURLとして開く
+     */
+    public static StreamScanner open(String source, double threshold, double threshold2) {
+        FrameGrabber grabber = source.matches("\\d+")
+                ? new OpenCVFrameGrabber(Integer.parseInt(source))
+                : new FFmpegFrameGrabber(source);
+        return new StreamScanner(grabber, threshold, threshold2);
+    }
+
+    /**
+     * ストリームが終わるか {@link #stop()} されるまでブロックする
+     */
+    public Stats run(FrameListener listener) throws Exception {
+        running = true;
+        grabber.start();
+        Thread grabThread = new Thread(this::grabLoop, "stream-grabber");
+        grabThread.setDaemon(true);
+        grabThread.start();
+
+        long frames = 0, tracked = 0, fullSearches = 0, lost = 0;
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Grabbed grabbed = ready.take();
+                if (grabbed == END) {
+                    break;
+                }
+                Search search = detect(grabbed.image);
+                frames++;
+                if (search == Search.TRACKED) {
+                    tracked++;
+                } else if (search == Search.FULL) {
+                    fullSearches++;
+                } else {
+                    lost++;
+                }
+                FrameResult result = new FrameResult(grabbed.frameNumber, grabbed.timestamp, finder.getQuad(), search);
+                free.put(grabbed);
+                listener.onFrame(result, finder);
+            }
+        } finally {
+            running = false;
+            grabThread.interrupt();
+            grabThread.join();
+            grabber.stop();
+        }
+        if (grabError.get() != null) {
+            throw grabError.get();
+        }
+        return new Stats(frames, tracked, fullSearches, lost, System.nanoTime() - start);
+    }
+
+    private Search detect(Mat image) {
+        finder.prepare(image);
+        Mat resized = finder.getResizedMat();
+        Rect area = tracker.searchArea(resized.cols(), resized.rows());
+        if (area != null) {
+            try (area) {
+                finder.detect(threshold, threshold2, area);
+            }
+            if (finder.getQuad() != null) {
+                tracker.found(finder.getQuad());
+                return Search.TRACKED;
+            }
+        }
+        finder.detect(threshold, threshold2, null);
+        if (finder.getQuad() != null) {
+            tracker.found(finder.getQuad());
+            return Search.FULL;
+        }
+        tracker.missed();
+        return Search.LOST;
+    }
+
+    private void grabLoop() {
+        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        try (Size size = new Size()) {
+            while (running) {
+                Frame frame = grabber.grab();
+                if (frame == null) {
+                    break;
+                }
+                if (frame.image == null) {
+                    continue;
+                }
+                Grabbed grabbed = free.take();
+                Mat image = converter.convert(frame);
+                // 検出は縮小した画像でしか行わないので、フルサイズのフレームはここで手放す
+                int[] fit = BookFinder.fitSize(image.cols(), image.rows(), finder.maxwidth, finder.maxheight);
+                resize(image, grabbed.image, size.width(fit[0]).height(fit[1]), 0, 0, INTER_AREA);
+                grabbed.frameNumber = grabber.getFrameNumber();
+                grabbed.timestamp = grabber.getTimestamp();
+                ready.put(grabbed);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Exception e) {
+            grabError.set(e);
+        }
+        try {
+            ready.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void close() throws FrameGrabber.Exception {
+        stop();
+        // 検出されずに残ったフレームも手放す
+        List<Grabbed> left = new ArrayList<>(free);
+        ready.drainTo(left);
+        free.clear();
+        try {
+            grabber.release();
+        } finally {
+            finder.close();
+            left.stream().filter(grabbed -> grabbed != END).forEach(grabbed -> grabbed.image.close());
+        }
+    }
+
+    /**
+     * 使い方: StreamScanner (動画ファイル|URL|カメラ番号) [t1 t2]
+     */
+    public static void main(String[] args) throws Exception {
+        double threshold = args.length > 2 ? Double.parseDouble(args[1]) : 100;
+        double threshold2 = args.length > 2 ? Double.parseDouble(args[2]) : 100;
+        try (StreamScanner scanner = open(args[0], threshold, threshold2)) {
+            Stats stats = scanner.run((result, finder) -> {
+                if (result.getFrameNumber() % 30 == 0) {
+                    System.out.println(result.getFrameNumber() + " " + result.getSearch() + " " + result.getQuad());
+                }
+            });
+            System.out.println(stats);
+        }
+    }
+}
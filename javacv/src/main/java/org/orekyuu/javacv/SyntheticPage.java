@@ -0,0 +1,143 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.util.Random;
+
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * ベンチマークやウォームアップ用に、正解の四隅が分かっている書類の写真を作る。
+ * 同じseedと大きさからは常に同じ画像ができる
+ */
+public final class SyntheticPage implements AutoCloseable {
+
+    private final Mat image;
+    private final Quad corners;
+
+    private SyntheticPage(Mat image, Quad corners) {
+        this.image = image;
+        this.corners = corners;
+    }
+
+    /**
+     * 机の上の雑多な線や模様の中に、少し傾いて遠近の付いた書類を置き、全体にノイズを乗せる
+     */
+    public static SyntheticPage generate(long seed, int width, int height) {
+        Random random = new Random(seed);
+        Mat image = new Mat(height, width, CV_8UC3, gray(60 + random.nextInt(30)));
+        int unit = Math.max(1, Math.min(width, height) / 200);
+
+        // 背景の雑多なもの。コントラストは低めで、書類より小さくしておく
+        for (int i = 0; i < 40; i++) {
+            try (Point from = randomPoint(random, width, height); Point to = randomPoint(random, width, height);
+                 Scalar color = gray(40 + random.nextInt(70))) {
+                line(image, from, to, color, unit, LINE_AA, 0);
+            }
+        }
+        for (int i = 0; i < 15; i++) {
+            int size = (int) (Math.min(width, height) * (0.02 + random.nextDouble() * 0.08));
+            try (Point center = randomPoint(random, width, height); Scalar color = gray(30 + random.nextInt(90))) {
+                circle(image, center, size, color, unit, LINE_AA, 0);
+            }
+        }
+
+        // 画像の40-70%くらいを占める長方形の四隅を、それぞれランダムにずらして遠近を付ける
+        double pageWidth = width * (0.4 + random.nextDouble() * 0.3);
+        double pageHeight = height * (0.4 + random.nextDouble() * 0.3);
+        double centerX = width / 2.0 + (random.nextDouble() - 0.5) * (width - pageWidth) * 0.6;
+        double centerY = height / 2.0 + (random.nextDouble() - 0.5) * (height - pageHeight) * 0.6;
+        double angle = Math.toRadians((random.nextDouble() - 0.5) * 16);
+        double[][] base = {
+                {-pageWidth / 2, -pageHeight / 2},
+                {pageWidth / 2, -pageHeight / 2},
+                {pageWidth / 2, pageHeight / 2},
+                {-pageWidth / 2, pageHeight / 2},
+        };
+        float[] points = new float[8];
+        for (int i = 0; i < 4; i++) {
+            double x = base[i][0] + (random.nextDouble() - 0.5) * pageWidth * 0.12;
+            double y = base[i][1] + (random.nextDouble() - 0.5) * pageHeight * 0.12;
+            points[i * 2] = (float) (centerX + x * Math.cos(angle) - y * Math.sin(angle));
+            points[i * 2 + 1] = (float) (centerY + x * Math.sin(angle) + y * Math.cos(angle));
+        }
+        Quad corners = Quad.of(points);
+
+        try (Mat polygon = new Mat(4, 1, CV_32SC2); Scalar paper = gray(215 + random.nextInt(30))) {
+            IntIndexer indexer = polygon.createIndexer();
+            for (int i = 0; i < 4; i++) {
+                indexer.put(i, 0, 0, Math.round(points[i * 2]));
+                indexer.put(i, 0, 1, Math.round(points[i * 2 + 1]));
+            }
+            indexer.release();
+            fillConvexPoly(image, polygon, paper, LINE_AA, 0);
+        }
+
+        // 書類の中の文字の代わり
+        int lines = 12 + random.nextInt(12);
+        for (int i = 0; i < lines; i++) {
+            double t = (i + 1.0) / (lines + 1);
+            double start = 0.1 + random.nextDouble() * 0.1;
+            double end = 0.6 + random.nextDouble() * 0.3;
+            try (Point from = pointOnPage(corners, start, t); Point to = pointOnPage(corners, end, t);
+                 Scalar ink = gray(40 + random.nextInt(60))) {
+                line(image, from, to, ink, unit, LINE_AA, 0);
+            }
+        }
+
+        addNoise(image, seed, 6 + random.nextInt(6));
+        return new SyntheticPage(image, corners);
+    }
+
+    private static void addNoise(Mat image, long seed, double stddev) {
+        setRNGSeed((int) seed);
+        try (Mat noise = new Mat(image.rows(), image.cols(), CV_16SC3);
+             Mat mean = new Mat(1, 1, CV_64F, new Scalar(0));
+             Mat deviation = new Mat(1, 1, CV_64F, new Scalar(stddev));
+             Mat wide = new Mat()) {
+            randn(noise, mean, deviation);
+            image.convertTo(wide, CV_16SC3);
+            add(wide, noise, wide);
+            wide.convertTo(image, CV_8UC3);
+        }
+    }
+
+    private static Point pointOnPage(Quad quad, double u, double v) {
+        double topX = quad.x(Quad.TOP_LEFT) + (quad.x(Quad.TOP_RIGHT) - quad.x(Quad.TOP_LEFT)) * u;
+        double topY = quad.y(Quad.TOP_LEFT) + (quad.y(Quad.TOP_RIGHT) - quad.y(Quad.TOP_LEFT)) * u;
+        double bottomX = quad.x(Quad.BOTTOM_LEFT) + (quad.x(Quad.BOTTOM_RIGHT) - quad.x(Quad.BOTTOM_LEFT)) * u;
+        double bottomY = quad.y(Quad.BOTTOM_LEFT) + (quad.y(Quad.BOTTOM_RIGHT) - quad.y(Quad.BOTTOM_LEFT)) * u;
+        return new Point((int) Math.round(topX + (bottomX - topX) * v), (int) Math.round(topY + (bottomY - topY) * v));
+    }
+
+    private static Point randomPoint(Random random, int width, int height) {
+        return new Point(random.nextInt(width), random.nextInt(height));
+    }
+
+    private static Scalar gray(int value) {
+        return new Scalar(value, value, value, 0);
+    }
+
+    /**
+     * BGRの8bit画像
+     */
+    public Mat image() {
+        return image;
+    }
+
+    /**
+     * 正解の四隅。{@link #image()} の座標系
+     */
+    public Quad corners() {
+        return corners;
+    }
+
+    @Override
+    public void close() {
+        image.close();
+    }
+}
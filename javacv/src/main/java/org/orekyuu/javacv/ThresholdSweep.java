@@ -0,0 +1,284 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.javacpp.indexer.UByteIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.MatVector;
+import org.bytedeco.opencv.opencv_core.Size;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+/**
+ * ぼかしまで済んだ画像に対してCannyの閾値の組を並列に試し、一番書類らしい四角形を選ぶ。
+ * 最初の組だけ呼び出したスレッドで試し、十分それらしければ他の組は試さない
+ */
+public class ThresholdSweep {
+
+    /**
+     * 先頭の組を最初に試す
+     */
+    static final double[][] DEFAULT_GRID = {
+            {50, 150},
+            {25, 25}, {25, 50}, {25, 75},
+            {50, 50}, {50, 100},
+            {75, 75}, {75, 150}, {75, 225},
+            {100, 100}, {100, 200}, {100, 300},
+            {150, 150}, {150, 300},
+            {200, 200}, {200, 400},
+    };
+
+    /**
+     * 辺の半分以上がエッジの上にない四角形は、たまたまできた形とみなして候補にしない
+     */
+    private static final double MIN_SUPPORT = 0.5;
+
+    private final ForkJoinPool pool;
+    private final double[][] grid;
+
+    public ThresholdSweep() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ThresholdSweep(ForkJoinPool pool) {
+        this(pool, DEFAULT_GRID);
+    }
+
+    ThresholdSweep(ForkJoinPool pool, double[][] grid) {
+        this.pool = pool;
+        this.grid = grid;
+    }
+
+    /**
+     * 試した組の中で一番点数の高い四角形
+     */
+    public static final class Result {
+        private final int[] points;
+        private final double threshold;
+        private final double threshold2;
+        private final double area;
+        private final double convexity;
+        private final double support;
+        private int tried;
+
+        Result(int[] points, double threshold, double threshold2, double area, double convexity, double support) {
+            this.points = points;
+            this.threshold = threshold;
+            this.threshold2 = threshold2;
+            this.area = area;
+            this.convexity = convexity;
+            this.support = support;
+        }
+
+        /**
+         * approxPolyDPが返した順の4点(x, y)
+         */
+        int[] points() {
+            return points;
+        }
+
+        public double getThreshold() {
+            return threshold;
+        }
+
+        public double getThreshold2() {
+            return threshold2;
+        }
+
+        /**
+         * 画像全体に対する面積の割合、輪郭とその凸包の面積比、辺のうちエッジの上にある割合を掛けたもの
+         */
+        public double score() {
+            return area * convexity * support * support;
+        }
+
+        /**
+         * 辺がほぼ全てエッジの上にあり、歪みがなく、小さすぎない
+         */
+        public boolean isConfident() {
+            return support >= 0.9 && convexity >= 0.9 && area >= 0.1;
+        }
+
+        /**
+         * 実際にCannyを掛けた組の数
+         */
+        public int getTried() {
+            return tried;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("threshold=%.0f/%.0f area=%.2f convexity=%.2f support=%.2f tried=%d",
+                    threshold, threshold2, area, convexity, support, tried);
+        }
+    }
+
+    /**
+     * @param smoothed グレースケールでぼかし済みの画像。並列に読むだけで書き換えない
+     * @return 四角形が1つも見つからなければnull
+     */
+    public Result sweep(Mat smoothed) {
+        try (Mat support = supportMap(smoothed)) {
+            Result first = evaluate(smoothed, support, grid[0][0], grid[0][1]);
+            if ((first != null && first.isConfident()) || grid.length == 1) {
+                return tried(first, 1);
+            }
+
+            AtomicReference<Result> best = new AtomicReference<>(first);
+            AtomicBoolean confident = new AtomicBoolean();
+            AtomicInteger tried = new AtomicInteger(1);
+            pool.invoke(new Sweep(smoothed, support, 1, grid.length, best, confident, tried));
+            return tried(best.get(), tried.get());
+        }
+    }
+
+    private static Result tried(Result result, int tried) {
+        if (result != null) {
+            result.tried = tried;
+        }
+        return result;
+    }
+
+    private class Sweep extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Mat smoothed;
+        private final Mat support;
+        private final int from;
+        private final int to;
+        private final AtomicReference<Result> best;
+        private final AtomicBoolean confident;
+        private final AtomicInteger tried;
+
+        Sweep(Mat smoothed, Mat support, int from, int to, AtomicReference<Result> best, AtomicBoolean confident,
+              AtomicInteger tried) {
+            this.smoothed = smoothed;
+            this.support = support;
+            this.from = from;
+            this.to = to;
+            this.best = best;
+            this.confident = confident;
+            this.tried = tried;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Sweep(smoothed, support, from, middle, best, confident, tried),
+                        new Sweep(smoothed, support, middle, to, best, confident, tried));
+                return;
+            }
+            // 他の組で十分な四角形が見つかっていれば、Cannyを掛けずに終える
+            if (confident.get()) {
+                return;
+            }
+            tried.incrementAndGet();
+            Result result = evaluate(smoothed, support, grid[from][0], grid[from][1]);
+            if (result == null) {
+                return;
+            }
+            best.accumulateAndGet(result, (a, b) -> a == null || b.score() > a.score() ? b : a);
+            if (result.isConfident()) {
+                confident.set(true);
+            }
+        }
+    }
+
+    /**
+     * 3x3の範囲での明るさの差を大津の方法で二値化し、差の大きい画素を1にした画像。
+     * 閾値の組ごとのエッジ画像とは別に、辺の裏付けを数えるのに使う
+     */
+    private static Mat supportMap(Mat smoothed) {
+        Mat support = new Mat();
+        try (Size size = new Size(3, 3); Mat kernel = getStructuringElement(MORPH_RECT, size)) {
+            morphologyEx(smoothed, support, MORPH_GRADIENT, kernel);
+        }
+        threshold(support, support, 0, 1, THRESH_BINARY | THRESH_OTSU);
+        return support;
+    }
+
+    private static Result evaluate(Mat smoothed, Mat support, double threshold, double threshold2) {
+        try (Mat edges = new Mat(); MatVector contours = new MatVector(); Mat approx = new Mat(); Mat hull = new Mat()) {
+            Canny(smoothed, edges, threshold, threshold2);
+            findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+
+            double imageArea = (double) smoothed.cols() * smoothed.rows();
+            Result best = null;
+            for (long i = 0; i < contours.size(); i++) {
+                Mat contour = contours.get(i);
+                double area = contourArea(contour);
+                if (area <= 300) {
+                    continue;
+                }
+                approxPolyDP(contour, approx, 0.02 * arcLength(contour, true), true);
+                if (approx.rows() != 4 || !isContourConvex(approx)) {
+                    continue;
+                }
+                double quadArea = contourArea(approx);
+                // 画像の縁をなぞっただけのものは除く
+                if (quadArea >= imageArea * 0.98) {
+                    continue;
+                }
+                convexHull(contour, hull);
+                double hullArea = contourArea(hull);
+                double convexity = hullArea == 0 ? 0 : area / hullArea;
+
+                int[] points = new int[8];
+                IntIndexer indexer = approx.createIndexer();
+                for (int p = 0; p < 4; p++) {
+                    points[p * 2] = indexer.get(p, 0, 0);
+                    points[p * 2 + 1] = indexer.get(p, 0, 1);
+                }
+                indexer.release();
+
+                double edgeSupport = edgeSupport(support, points);
+                if (edgeSupport < MIN_SUPPORT) {
+                    continue;
+                }
+                Result candidate = new Result(points, threshold, threshold2, quadArea / imageArea, convexity, edgeSupport);
+                if (best == null || candidate.score() > best.score()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * 四角形の辺を1画素ずつたどり、エッジの上にある点の割合を返す
+     */
+    static double edgeSupport(Mat support, int[] points) {
+        UByteIndexer indexer = support.createIndexer();
+        try {
+            int width = support.cols();
+            int height = support.rows();
+            long hits = 0;
+            long samples = 0;
+            for (int side = 0; side < 4; side++) {
+                int x0 = points[side * 2], y0 = points[side * 2 + 1];
+                int x1 = points[(side + 1) % 4 * 2], y1 = points[(side + 1) % 4 * 2 + 1];
+                int steps = Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0));
+                for (int s = 0; s < steps; s++) {
+                    int x = x0 + Math.round((float) (x1 - x0) * s / steps);
+                    int y = y0 + Math.round((float) (y1 - y0) * s / steps);
+                    if (x < 0 || y < 0 || x >= width || y >= height) {
+                        continue;
+                    }
+                    samples++;
+                    if (indexer.get(y, x) != 0) {
+                        hits++;
+                    }
+                }
+            }
+            return samples == 0 ? 0 : (double) hits / samples;
+        } finally {
+            indexer.release();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgcodecs;
+import org.bytedeco.opencv.global.opencv_imgproc;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 起動直後の1枚目が遅くならないよう、ネイティブライブラリを読み込み、合成画像で全ての段を一通り動かしておく。
+ * 読み込むのは検出に使うOpenCVのモジュールだけで、javacv-platformに含まれる他のライブラリには触れない
+ */
+public final class Warmup {
+
+    private static final String CACHE_DIR_PROPERTY = "org.bytedeco.javacpp.cachedir";
+    // 変換表のキャッシュが当たるところまで動かすには、同じ画像を3回処理する
+    private static final int ITERATIONS = 3;
+
+    private Warmup() {
+    }
+
+    /**
+     * かかった時間。どれもナノ秒
+     */
+    public static final class Report {
+        private final long nativeLoadNanos;
+        private final long firstResultNanos;
+        private final long warmResultNanos;
+        private final long uptimeNanos;
+
+        Report(long nativeLoadNanos, long firstResultNanos, long warmResultNanos, long uptimeNanos) {
+            this.nativeLoadNanos = nativeLoadNanos;
+            this.firstResultNanos = firstResultNanos;
+            this.warmResultNanos = warmResultNanos;
+            this.uptimeNanos = uptimeNanos;
+        }
+
+        public long getNativeLoadNanos() {
+            return nativeLoadNanos;
+        }
+
+        /**
+         * 読み込み後、最初の1枚の結果が出るまで
+         */
+        public long getFirstResultNanos() {
+            return firstResultNanos;
+        }
+
+        /**
+         * ウォームアップの最後の1枚。温まった後の1枚にかかる時間の目安
+         */
+        public long getWarmResultNanos() {
+            return warmResultNanos;
+        }
+
+        /**
+         * JVMの起動から、ウォームアップが終わるまで
+         */
+        public long getUptimeNanos() {
+            return uptimeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "natives %.1f ms, first result %.1f ms, warm result %.1f ms, ready %.1f ms after start",
+                    nativeLoadNanos / 1e6, firstResultNanos / 1e6, warmResultNanos / 1e6, uptimeNanos / 1e6);
+        }
+    }
+
+    /**
+     * OpenCVのネイティブライブラリを読み込む。読み込み済みなら何もしない
+     *
+     * @param cacheDir 展開済みのライブラリを置いたディレクトリ。nullならJavaCPPの既定(~/.javacpp/cache)。
+     *                 JavaCPPが最初に展開する前に呼ばないと効かない
+     * @return かかった時間
+     */
+    public static long loadNatives(Path cacheDir) {
+        long start = System.nanoTime();
+        if (cacheDir != null && System.getProperty(CACHE_DIR_PROPERTY) == null) {
+            System.setProperty(CACHE_DIR_PROPERTY, cacheDir.toAbsolutePath().toString());
+        }
+        Loader.load(opencv_core.class);
+        Loader.load(opencv_imgproc.class);
+        Loader.load(opencv_imgcodecs.class);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 呼んだスレッドで、typesの実装それぞれに合成画像を処理させる
+     */
+    public static Report run(Path cacheDir, FinderType... types) {
+        long load = loadNatives(cacheDir);
+        long first = -1;
+        long last = 0;
+        ImageSource page = encodedPage();
+        for (FinderType type : types) {
+            try (DocumentFinder finder = type.create(ImagePool.shared(), null)) {
+                finder.setMetrics(PipelineMetrics.NONE);
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long start = System.nanoTime();
+                    finder.process(page, 50, 200);
+                    last = System.nanoTime() - start;
+                    if (first < 0) {
+                        first = last;
+                    }
+                }
+                finder.processAuto(page);
+            }
+        }
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000;
+        return new Report(load, Math.max(first, 0), last, uptime);
+    }
+
+    /**
+     * 別のスレッドでウォームアップする。サーバーならその間も接続を受け付けられる
+     */
+    public static CompletableFuture<Report> inBackground(Path cacheDir, FinderType... types) {
+        CompletableFuture<Report> report = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                report.complete(run(cacheDir, types));
+            } catch (Throwable e) {
+                report.completeExceptionally(e);
+            }
+        }, "warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return report;
+    }
+
+    /**
+     * デコードも温めるため、合成画像をエンコードしたものを入力にする
+     */
+    private static ImageSource encodedPage() {
+        try (SyntheticPage page = SyntheticPage.generate(0, 640, 480); BytePointer encoded = new BytePointer()) {
+            opencv_imgcodecs.imencode(".png", page.image(), encoded);
+            ByteBuffer data = ByteBuffer.allocateDirect((int) encoded.limit());
+            data.put(encoded.asByteBuffer()).flip();
+            return ImageSource.of("warmup.png", data);
+        }
+    }
+}
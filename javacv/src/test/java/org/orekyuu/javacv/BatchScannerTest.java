@@ -0,0 +1,123 @@
+package org.orekyuu.javacv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+class BatchScannerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resolvesDirectoriesGlobsListsAndArchives() throws IOException {
+        Path pages = Files.createDirectories(dir.resolve("pages/sub"));
+        Path png = Path.of(TestImages.writePage(dir.resolve("pages/1.png")));
+        Path jpg = Path.of(TestImages.writePage(dir.resolve("pages/2.jpg")));
+        Path jpeg = Path.of(TestImages.writePage(pages.resolve("3.jpeg")));
+        Files.writeString(dir.resolve("pages/notes.txt"), "not an image");
+        Path zip = dir.resolve("pages/more.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("4.png"));
+            out.write(Files.readAllBytes(png));
+        }
+
+        assertThat(BatchScanner.resolve(dir.resolve("pages").toString())).containsExactly(png, jpg, zip, jpeg);
+        assertThat(BatchScanner.resolve(dir.resolve("pages") + "/**.jp*g")).containsExactly(jpg, jpeg);
+        assertThat(BatchScanner.resolve(dir.resolve("pages") + "/*.png")).containsExactly(png);
+
+        Path list = dir.resolve("list.txt");
+        Files.write(list, List.of("# 処理するもの", "  " + jpg + "  ", "", png.toString()), StandardCharsets.UTF_8);
+        assertThat(BatchScanner.resolve("@" + list)).containsExactly(jpg, png);
+
+        // アーカイブはそのまま返し、中の画像は開いてから読む
+        assertThat(BatchScanner.resolve(zip.toString())).containsExactly(zip);
+        try (ImageArchive archive = ImageArchive.open(zip);
+             BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 100, 100)) {
+            List<ScanResult> results = scanner.scan(archive.iterator(), (result, finder) -> {});
+            assertThat(results).extracting(ScanResult::getPath).containsExactly(Path.of(zip + "/4.png"));
+            assertThat(results).allMatch(ScanResult::isFound);
+        }
+    }
+
+    @Test
+    void returnsResultsInInputOrderWithSeveralWorkers() {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            // 大きさを変えて、終わる順番を入力の順番とずらす
+            int scale = 1 + i % 3;
+            int[] corners = TestImages.PAGE_CORNERS.clone();
+            for (int c = 0; c < corners.length; c++) {
+                corners[c] *= scale;
+            }
+            Path file = dir.resolve("page-" + i + ".png");
+            imwrite(file.toString(), TestImages.page(240 * scale, 320 * scale, corners));
+            files.add(file);
+        }
+        List<Path> handled = new CopyOnWriteArrayList<>();
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 3, 100, 100)) {
+            List<ScanResult> results = scanner.scan(files, (result, finder) -> handled.add(result.getPath()));
+            assertThat(results).extracting(ScanResult::getPath).containsExactlyElementsOf(files);
+            assertThat(results).allMatch(ScanResult::isFound);
+            assertThat(handled).containsExactlyInAnyOrderElementsOf(files);
+        }
+    }
+
+    @Test
+    void reportsUnreadableInputsAsFailures() throws IOException {
+        Path page = Path.of(TestImages.writePage(dir.resolve("page.png")));
+        Path missing = dir.resolve("missing.png");
+        Path broken = Files.writeString(dir.resolve("broken.png"), "not a png");
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100)) {
+            List<ScanResult> results = scanner.scan(List.of(missing, page, broken));
+            assertThat(results).extracting(ScanResult::getPath).containsExactly(missing, page, broken);
+            assertThat(results.get(0).isSuccess()).isFalse();
+            assertThat(results.get(0).getError()).isNotNull();
+            assertThat(results.get(1).isFound()).isTrue();
+            assertThat(results.get(2).isSuccess()).isFalse();
+            assertThat(results.get(2).getError()).isNotNull();
+        }
+    }
+
+    @Test
+    void handsCachedResultsToHandleCached() throws IOException {
+        Path page = Path.of(TestImages.writePage(dir.resolve("page.png")));
+        Path copy = Files.copy(page, dir.resolve("copy.png"));
+        List<String> calls = new CopyOnWriteArrayList<>();
+        ResultCache cache = new ResultCache(dir.resolve("cache"), 1L << 20);
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 100, 100, cache)) {
+            List<ScanResult> results = scanner.scan(List.of(page, copy), new BatchScanner.ResultHandler() {
+                @Override
+                public void handle(ScanResult result, DocumentFinder finder) {
+                    calls.add("handle " + result.getPath().getFileName());
+                }
+
+                @Override
+                public void handleCached(ScanResult result, ResultCache.Entry entry) {
+                    assertThat(entry.getQuad()).isEqualTo(result.getQuad());
+                    calls.add("cached " + result.getPath().getFileName());
+                }
+            });
+            assertThat(calls).containsExactly("handle page.png", "cached copy.png");
+            assertThat(results).extracting(ScanResult::isCached).containsExactly(false, true);
+            assertThat(results.get(1).getQuad()).isEqualTo(results.get(0).getQuad());
+
+            // handleCachedを上書きしなければ、finderをnullにしてhandleを呼ぶ
+            List<Boolean> withoutFinder = new ArrayList<>();
+            scanner.scan(List.of(copy), (result, finder) -> withoutFinder.add(finder == null));
+            assertThat(withoutFinder).containsExactly(true);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.Pointer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+/**
+ * 長時間processし続けてもネイティブのメモリが増え続けないことを確認する。
+ * 時間がかかるので通常のtestからは外している。 {@code ./gradlew :javacv:soakTest -Psoak.iterations=100000}
+ */
+@Tag("soak")
+class BookFinderSoakTest {
+
+    private static final long ALLOWED_GROWTH = 32L * 1024 * 1024;
+    private static final long MAX_IDLE_BYTES = 8L * 1024 * 1024;
+    // 補正後の画像のサイズが毎回変わるよう、書類の大きさの違うページを順に使う
+    private static final int PAGES = 97;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void residentMemoryStaysFlat() {
+        int iterations = Integer.getInteger("soak.iterations", 100_000);
+        String[] pages = new String[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            // 画像の大きさも変えるので、縮小後や補正後のサイズもページごとに違う
+            int[] corners = {40, 50, 120 + i, 40, 130 + i, 160 + i, 30, 170 + i};
+            pages[i] = dir.resolve("page-" + i + ".png").toString();
+            imwrite(pages[i], TestImages.page(240 + i, 320 + i, corners));
+        }
+        ImagePool pool = new ImagePool(4, MAX_IDLE_BYTES);
+
+        // JITやOpenCVの内部バッファが落ち着くまで回してから計測する
+        for (int i = 0; i < PAGES * 2; i++) {
+            runOnce(pages[i % PAGES], pool);
+        }
+        System.gc();
+        long baseline = Pointer.physicalBytes();
+
+        for (int i = 0; i < iterations; i++) {
+            runOnce(pages[i % PAGES], pool);
+            // サイズが毎回違うので作り直しは起きるが、待たせている分は上限で頭打ちになる
+            assertThat(pool.idleBytes()).isLessThanOrEqualTo(MAX_IDLE_BYTES);
+        }
+        System.gc();
+        long after = Pointer.physicalBytes();
+
+        assertThat(after - baseline).as("rss %d MB -> %d MB", baseline >> 20, after >> 20).isLessThan(ALLOWED_GROWTH);
+        pool.close();
+    }
+
+    private static void runOnce(String page, ImagePool pool) {
+        try (BookFinder finder = new BookFinder(page, pool)) {
+            finder.process(100, 100);
+            assertThat(finder.getQuad()).isNotNull();
+        }
+    }
+}
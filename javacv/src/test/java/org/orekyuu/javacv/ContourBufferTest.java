@@ -0,0 +1,181 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Loader;
+import org.bytedeco.opencv.opencv_core.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+class ContourBufferTest {
+
+    @Test
+    void matchesNativeContourFunctions() {
+        long compared = 0;
+        for (int seed = 0; seed < 6; seed++) {
+            try (SyntheticPage page = SyntheticPage.generate(seed, 640, 480);
+                 Mat gray = new Mat(); Mat edges = new Mat(); MatVector contours = new MatVector();
+                 Mat approx = new Mat(); ContourBuffer buffer = new ContourBuffer()) {
+                cvtColor(page.image(), gray, COLOR_BGR2GRAY);
+                // 低い閾値で、雑音の多いエッジ画像にする
+                Canny(gray, edges, 10, 30);
+                findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+                buffer.load(contours);
+
+                assertThat(buffer.size()).isEqualTo(contours.size());
+                for (int i = 0; i < buffer.size(); i++) {
+                    Mat contour = contours.get(i);
+                    assertThat(buffer.pointCount(i)).isEqualTo(contour.total());
+                    assertThat(buffer.area(i)).isEqualTo(contourArea(contour));
+                    double perimeter = arcLength(contour, true);
+                    assertThat(buffer.perimeter(i)).isEqualTo(perimeter);
+                    try (Rect rect = boundingRect(contour)) {
+                        assertThat(buffer.boundingArea(i)).isEqualTo((long) rect.width() * rect.height());
+                    }
+
+                    approxPolyDP(contour, approx, 0.02 * perimeter, true);
+                    int vertices = buffer.approximate(i, 0.02 * perimeter);
+                    assertThat(vertices).isEqualTo(approx.rows());
+                    int[] expected = new int[vertices * 2];
+                    new IntPointer(approx.data()).get(expected);
+                    for (int v = 0; v < vertices; v++) {
+                        assertThat(buffer.approximatedX(v)).isEqualTo(expected[v * 2]);
+                        assertThat(buffer.approximatedY(v)).isEqualTo(expected[v * 2 + 1]);
+                    }
+                    compared++;
+                }
+            }
+        }
+        assertThat(compared).isGreaterThan(1000);
+    }
+
+    @Test
+    void largestQuadMatchesSequentialSearch() {
+        for (int seed = 0; seed < 6; seed++) {
+            for (double threshold : new double[]{10, 50, 100}) {
+                try (SyntheticPage page = SyntheticPage.generate(seed, 640, 480);
+                     Mat gray = new Mat(); Mat edges = new Mat(); MatVector contours = new MatVector();
+                     Mat approx = new Mat(); ContourBuffer buffer = new ContourBuffer()) {
+                    cvtColor(page.image(), gray, COLOR_BGR2GRAY);
+                    Canny(gray, edges, threshold, threshold * 3);
+                    findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+
+                    // 以前のfindLargestSquareと同じ、先頭から順に大きいものを近似していく探し方
+                    double maxArea = 0;
+                    int expected = -1;
+                    for (int i = 0; i < contours.size(); i++) {
+                        double area = contourArea(contours.get(i));
+                        if (area > 300 && area > maxArea) {
+                            approxPolyDP(contours.get(i), approx, 0.02 * arcLength(contours.get(i), true), true);
+                            if (approx.rows() == 4) {
+                                maxArea = area;
+                                expected = i;
+                            }
+                        }
+                    }
+
+                    buffer.load(contours);
+                    assertThat(buffer.largestQuad(300, 0.02)).isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    void nextQuadContinuesInAreaOrder() {
+        try (Mat image = new Mat(480, 640, CV_8UC1, Scalar.BLACK); Mat edges = new Mat(); MatVector contours = new MatVector();
+             Mat approx = new Mat(); ContourBuffer buffer = new ContourBuffer()) {
+            // 大きさの違う四角形を3つ並べる
+            for (int i = 0; i < 3; i++) {
+                try (Rect rect = new Rect(20 + i * 210, 40, 190 - i * 50, 300 - i * 80)) {
+                    rectangle(image, rect, Scalar.WHITE, FILLED, LINE_8, 0);
+                }
+            }
+            Canny(image, edges, 50, 150);
+            findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+            int expected = 0;
+            for (int i = 0; i < contours.size(); i++) {
+                if (contourArea(contours.get(i)) > 300) {
+                    approxPolyDP(contours.get(i), approx, 0.02 * arcLength(contours.get(i), true), true);
+                    if (approx.rows() == 4) {
+                        expected++;
+                    }
+                }
+            }
+
+            buffer.load(contours);
+            int found = 0;
+            double previous = Double.MAX_VALUE;
+            for (int quad = buffer.largestQuad(300, 0.02); quad >= 0; quad = buffer.nextQuad()) {
+                assertThat(buffer.area(quad)).isLessThanOrEqualTo(previous);
+                previous = buffer.area(quad);
+                found++;
+            }
+            assertThat(found).isEqualTo(expected).isGreaterThanOrEqualTo(3);
+            assertThat(buffer.rejectedCount()).isEqualTo(buffer.size() - found);
+        }
+    }
+
+    @Test
+    void nextQuadKeepsContourOrderForEqualAreas() {
+        try (Mat image = new Mat(480, 640, CV_8UC1, Scalar.BLACK); Mat edges = new Mat(); MatVector contours = new MatVector();
+             ContourBuffer buffer = new ContourBuffer()) {
+            // 同じ大きさの四角形を並べる
+            for (int i = 0; i < 8; i++) {
+                try (Rect rect = new Rect(20 + (i % 4) * 150, 40 + (i / 4) * 200, 100, 120)) {
+                    rectangle(image, rect, Scalar.WHITE, FILLED, LINE_8, 0);
+                }
+            }
+            Canny(image, edges, 50, 150);
+            findContours(edges, contours, RETR_LIST, CHAIN_APPROX_SIMPLE);
+            buffer.load(contours);
+
+            List<Integer> found = new ArrayList<>();
+            for (int quad = buffer.largestQuad(300, 0.02); quad >= 0; quad = buffer.nextQuad()) {
+                found.add(quad);
+            }
+            assertThat(found).hasSizeGreaterThanOrEqualTo(8);
+            for (int i = 1; i < found.size(); i++) {
+                double previous = buffer.area(found.get(i - 1));
+                double current = buffer.area(found.get(i));
+                assertThat(current).isLessThanOrEqualTo(previous);
+                if (current == previous) {
+                    assertThat(found.get(i)).isGreaterThan(found.get(i - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    void loadsLegacySequences() {
+        IplImage image = cvCreateImage(cvSize(240, 320), IPL_DEPTH_8U, 1);
+        try (Mat page = TestImages.page(240, 320, TestImages.PAGE_CORNERS);
+             Mat gray = new Mat(); CvMemStorage storage = CvMemStorage.create(); CvSeq first = new CvSeq();
+             ContourBuffer buffer = new ContourBuffer()) {
+            cvtColor(page, gray, COLOR_BGR2GRAY);
+            try (IplImage header = cvIplImage(gray)) {
+                cvCanny(header, image, 100, 100);
+            }
+            cvFindContours(image, storage, first, Loader.sizeof(CvContour.class), CV_RETR_LIST,
+                    CV_CHAIN_APPROX_SIMPLE, cvPoint(0, 0));
+            buffer.load(first);
+
+            assertThat(buffer.size()).isPositive();
+            for (int i = 0; i < buffer.size(); i++) {
+                CvSeq seq = buffer.sequence(i);
+                assertThat(buffer.pointCount(i)).isEqualTo(seq.total());
+                assertThat(buffer.area(i)).isEqualTo(cvContourArea(seq, CV_WHOLE_SEQ, 0));
+                CvPoint point = new CvPoint(cvGetSeqElem(seq, 0));
+                assertThat(buffer.x(i, 0)).isEqualTo(point.x());
+                assertThat(buffer.y(i, 0)).isEqualTo(point.y());
+            }
+        } finally {
+            cvReleaseImage(image);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CorePlanTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void splitsCoresByWorkload() {
+        // 小さい画像が多ければ、1枚1スレッドでワーカーを増やす
+        assertPlan(CorePlan.forWorkload(1000, 300_000, 8), 8, 1);
+        // 小さい画像でも、枚数が少なければ余ったコアを内部で使う
+        assertPlan(CorePlan.forWorkload(3, 300_000, 8), 3, 2);
+        assertPlan(CorePlan.forWorkload(1, 300_000, 8), 1, 8);
+        // 大きい画像は1枚に数スレッドずつ
+        assertPlan(CorePlan.forWorkload(1000, 12_000_000, 8), 2, 4);
+        assertPlan(CorePlan.forWorkload(1000, 12_000_000, 2), 1, 2);
+        assertPlan(CorePlan.withWorkers(3, 8), 3, 2);
+    }
+
+    @Test
+    void samplesSizesFromHeaders() {
+        List<ImageSource> pages = List.of(
+                ImageSource.of(Path.of(TestImages.writePage(dir.resolve("a.png")))),
+                ImageSource.of(Path.of(TestImages.writePage(dir.resolve("b.png")))));
+        assertPlan(CorePlan.forSources(pages, FinderType.MAT, 4), 2, 2);
+    }
+
+    @Test
+    void sizesByProcessedPixels() {
+        // 縮小画像だけを使う実装では、大きい写真でもワーカーを減らさない
+        assertThat(CorePlan.processedPixels(FinderType.LEGACY, 4000, 3000)).isEqualTo(480 * 360);
+        assertThat(CorePlan.processedPixels(FinderType.MAT, 3000, 4000)).isEqualTo(480 * 640);
+        assertPlan(CorePlan.forWorkload(1000, CorePlan.processedPixels(FinderType.MAT, 4000, 3000), 8), 8, 1);
+        // 元の解像度で補正する実装だけ、1枚に数スレッドずつ
+        assertThat(CorePlan.processedPixels(FinderType.PYRAMID, 4000, 3000)).isEqualTo(12_000_000);
+        assertPlan(CorePlan.forWorkload(1000, CorePlan.processedPixels(FinderType.PYRAMID, 4000, 3000), 8), 2, 4);
+    }
+
+    @Test
+    void scannerPinsPlanUntilClosed() {
+        int previous = opencv_core.getNumThreads();
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, CorePlan.withWorkers(1, previous + 2), 100, 100, null)) {
+            assertThat(opencv_core.getNumThreads()).isEqualTo(previous + 2);
+            assertThat(scanner.scan(List.of())).isEmpty();
+        }
+        assertThat(opencv_core.getNumThreads()).isEqualTo(previous);
+    }
+
+    @Test
+    void pinsOpenCvThreads() {
+        int previous = opencv_core.getNumThreads();
+        try {
+            CorePlan plan = CorePlan.withWorkers(1, 3).pin();
+            assertThat(opencv_core.getNumThreads()).isEqualTo(3);
+            assertThat(CorePlan.pinned()).isSameAs(plan);
+            assertThat(plan.throughput(30, 2_000_000_000L)).isEqualTo("15.0 images/sec, 5.00 images/sec/core");
+        } finally {
+            CorePlan.withWorkers(1, previous).pin();
+        }
+    }
+
+    private static void assertPlan(CorePlan plan, int workers, int openCvThreads) {
+        assertThat(plan.getWorkers()).as("workers of %s", plan).isEqualTo(workers);
+        assertThat(plan.getOpenCvThreads()).as("threads of %s", plan).isEqualTo(openCvThreads);
+    }
+}
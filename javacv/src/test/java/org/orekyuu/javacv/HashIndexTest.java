@@ -0,0 +1,123 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point2f;
+import org.bytedeco.opencv.opencv_core.Size;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_imgproc.getRotationMatrix2D;
+import static org.bytedeco.opencv.global.opencv_imgproc.warpAffine;
+
+class HashIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsSameEntriesAsBruteForce() throws IOException {
+        Random random = new Random(1);
+        long[] hashes = new long[150_000];
+        try (HashIndex index = HashIndex.open(dir)) {
+            // 途中で2回表を書き直し、最後の分はログに残る
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = random.nextLong();
+                index.add(hashes[i], i);
+            }
+            for (int query = 0; query < 200; query++) {
+                long hash = flip(hashes[random.nextInt(hashes.length)], random.nextInt(14), random);
+                int radius = random.nextInt(16);
+                List<Long> expected = new ArrayList<>();
+                for (int i = 0; i < hashes.length; i++) {
+                    if (PerceptualHash.distance(hashes[i], hash) <= radius) {
+                        expected.add((long) i);
+                    }
+                }
+                List<HashIndex.Match> found = index.search(hash, radius);
+                assertThat(found).extracting(HashIndex.Match::getId).as("radius %d", radius)
+                        .containsExactlyInAnyOrderElementsOf(expected);
+                assertThat(found).isSortedAccordingTo((a, b) -> Integer.compare(a.getDistance(), b.getDistance()));
+            }
+        }
+    }
+
+    @Test
+    void reopensFromMappedFileAndLog() throws IOException {
+        try (HashIndex index = HashIndex.open(dir)) {
+            for (int i = 0; i < 10; i++) {
+                index.add(i * 0x9E3779B97F4A7C15L, i);
+            }
+            index.compact();
+            for (int i = 10; i < 15; i++) {
+                index.add(i * 0x9E3779B97F4A7C15L, i);
+            }
+            assertThat(index.addIfAbsent(flip(3 * 0x9E3779B97F4A7C15L, 2, new Random(2)), 99, 4).getId()).isEqualTo(3);
+        }
+        // 書きかけで落ちた1件
+        Files.write(dir.resolve("hashes.log"), new byte[7], StandardOpenOption.APPEND);
+
+        try (HashIndex index = HashIndex.open(dir)) {
+            assertThat(index.size()).isEqualTo(15);
+            for (int i = 0; i < 15; i++) {
+                HashIndex.Match match = index.nearest(i * 0x9E3779B97F4A7C15L, 0);
+                assertThat(match.getId()).isEqualTo(i);
+            }
+            index.add(42, 42);
+        }
+        try (HashIndex index = HashIndex.open(dir)) {
+            assertThat(index.size()).isEqualTo(16);
+            assertThat(index.nearest(43, 1).getId()).isEqualTo(42);
+        }
+    }
+
+    @Test
+    void rerunDoesNotMatchPagesAgainstThemselves() throws IOException {
+        long page = 0x9E3779B97F4A7C15L;
+        long other = ~page;
+        try (HashIndex index = HashIndex.open(dir)) {
+            assertThat(index.addIfAbsent(page, 1, 6)).isNull();
+            assertThat(index.addIfAbsent(other, 2, 6)).isNull();
+            assertThat(index.addIfAbsent(flip(page, 2, new Random(3)), 3, 6).getId()).isEqualTo(1);
+        }
+        // 同じディレクトリで同じページをもう一度処理する
+        try (HashIndex index = HashIndex.open(dir)) {
+            assertThat(index.addIfAbsent(page, 1, 6)).isNull();
+            assertThat(index.addIfAbsent(other, 2, 6)).isNull();
+            assertThat(index.addIfAbsent(flip(page, 2, new Random(3)), 3, 6).getId()).isEqualTo(1);
+            // 自分自身は追加し直さない
+            assertThat(index.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void perceptualHashToleratesReshoots() {
+        try (SyntheticPage page = SyntheticPage.generate(7, 640, 480);
+             SyntheticPage other = SyntheticPage.generate(8, 640, 480);
+             Mat reshot = new Mat(); Point2f center = new Point2f(320, 240); Size size = new Size(640, 480);
+             Mat rotation = getRotationMatrix2D(center, 1.5, 1.02)) {
+            // 少し傾けて寄り、明るさも変える
+            warpAffine(page.image(), reshot, rotation, size);
+            reshot.convertTo(reshot, -1, 1.1, 8);
+
+            long original = PerceptualHash.of(page.image());
+            assertThat(PerceptualHash.distance(original, PerceptualHash.of(reshot))).isLessThanOrEqualTo(8);
+            assertThat(PerceptualHash.distance(original, PerceptualHash.of(other.image()))).isGreaterThan(16);
+        }
+    }
+
+    private static long flip(long hash, int bits, Random random) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,145 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+
+class ImageArchiveTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsStoredAndDeflatedZipEntries() throws IOException {
+        byte[] png = Files.readAllBytes(Path.of(TestImages.writePage(dir.resolve("page.png"))));
+        byte[] jpeg = Files.readAllBytes(Path.of(TestImages.writePage(dir.resolve("page.jpg"))));
+        Path zip = dir.resolve("pages.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("pages/"));
+            out.putNextEntry(stored("pages/a.png", png));
+            out.write(png);
+            out.putNextEntry(new ZipEntry("pages/b.jpg"));
+            out.write(jpeg);
+            out.putNextEntry(new ZipEntry("notes.txt"));
+            out.write("not an image".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try (ImageArchive archive = ImageArchive.open(zip)) {
+            List<ImageSource> sources = archive.stream().collect(Collectors.toList());
+            assertThat(sources).extracting(ImageSource::name)
+                    .containsExactly(zip + "/pages/a.png", zip + "/pages/b.jpg");
+            for (ImageSource source : sources) {
+                try (Mat image = source.decode(IMREAD_COLOR)) {
+                    assertThat(image.cols()).isEqualTo(240);
+                    assertThat(image.rows()).isEqualTo(320);
+                }
+            }
+        }
+    }
+
+    @Test
+    void readsTarEntriesWithLongNames() throws IOException {
+        byte[] png = Files.readAllBytes(Path.of(TestImages.writePage(dir.resolve("page.png"))));
+        String longName = "scans/" + "x".repeat(120) + ".png";
+        Path tar = dir.resolve("pages.tar");
+        try (OutputStream out = Files.newOutputStream(tar)) {
+            tarEntry(out, "a.png", "2020/05", '0', png);
+            tarEntry(out, "././@LongLink", "", 'L', longName.getBytes(StandardCharsets.UTF_8));
+            tarEntry(out, longName.substring(0, 99), "", '0', png);
+            tarEntry(out, "notes.txt", "", '0', "not an image".getBytes(StandardCharsets.UTF_8));
+            out.write(new byte[1024]);
+        }
+
+        try (ImageArchive archive = ImageArchive.open(tar)) {
+            List<String> names = new ArrayList<>();
+            for (ImageSource source : archive) {
+                names.add(source.name());
+                try (Mat image = source.decode(IMREAD_COLOR)) {
+                    assertThat(image.cols()).isEqualTo(240);
+                }
+            }
+            assertThat(names).containsExactly(tar + "/2020/05/a.png", tar + "/" + longName);
+        }
+    }
+
+    @Test
+    void batchScansArchiveEntriesInOrder() throws IOException {
+        byte[] png = Files.readAllBytes(Path.of(TestImages.writePage(dir.resolve("page.png"))));
+        Path zip = dir.resolve("batch.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (int i = 0; i < 10; i++) {
+                out.putNextEntry(i % 2 == 0 ? new ZipEntry(i + ".png") : stored(i + ".png", png));
+                out.write(png);
+            }
+            out.putNextEntry(new ZipEntry("broken.png"));
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        try (ImageArchive archive = ImageArchive.open(zip);
+             BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100)) {
+            List<ScanResult> results = scanner.scan(archive.iterator(), (result, finder) -> {});
+            assertThat(results).hasSize(11);
+            for (int i = 0; i < 10; i++) {
+                assertThat(results.get(i).getPath()).isEqualTo(Path.of(zip + "/" + i + ".png"));
+                assertThat(results.get(i).isFound()).isTrue();
+            }
+            assertThat(results.get(10).getError()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    private static ZipEntry stored(String name, byte[] data) {
+        ZipEntry entry = new ZipEntry(name);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+        return entry;
+    }
+
+    private static void tarEntry(OutputStream out, String name, String prefix, char type, byte[] data) throws IOException {
+        byte[] header = new byte[512];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 124, String.format("%011o", data.length));
+        put(header, 136, String.format("%011o", 0));
+        header[156] = (byte) type;
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+        put(header, 345, prefix);
+        // チェックサムの欄を空白として計算する
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int sum = 0;
+        for (byte b : header) {
+            sum += b & 0xFF;
+        }
+        put(header, 148, String.format("%06o", sum));
+        out.write(header);
+        ByteArrayOutputStream padded = new ByteArrayOutputStream();
+        padded.write(data);
+        padded.write(new byte[(512 - data.length % 512) % 512]);
+        out.write(padded.toByteArray());
+    }
+
+    private static void put(byte[] header, int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
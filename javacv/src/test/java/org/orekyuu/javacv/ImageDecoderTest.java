@@ -0,0 +1,146 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+class ImageDecoderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsSizeFromHeader() throws IOException {
+        Path jpeg = dir.resolve("page.jpg");
+        Path png = dir.resolve("page.png");
+        try (Mat page = TestImages.page(1200, 900, new int[]{100, 100, 1000, 120, 1050, 800, 80, 780})) {
+            imwrite(jpeg.toString(), page);
+            imwrite(png.toString(), page);
+        }
+
+        assertThat(ImageDecoder.readSize(jpeg)).containsExactly(1200, 900);
+        assertThat(ImageDecoder.readSize(png)).containsExactly(1200, 900);
+        Path text = Files.writeString(dir.resolve("page.txt"), "not an image");
+        assertThat(ImageDecoder.readSize(text)).isNull();
+    }
+
+    @Test
+    void swapsSizeForRotatedExifOrientation() throws IOException {
+        // ヘッダだけのJPEG。APP1のExifでOrientation=6(90度回転)を指定する
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(0xFFD8);
+        out.writeShort(0xFFE1);
+        out.writeShort(2 + 6 + 8 + 2 + 12 + 4);
+        out.writeBytes("Exif\0\0");
+        out.writeBytes("MM");
+        out.writeShort(42);
+        out.writeInt(8);
+        out.writeShort(1);
+        out.writeShort(0x0112);
+        out.writeShort(3);
+        out.writeInt(1);
+        out.writeShort(6);
+        out.writeShort(0);
+        out.writeInt(0);
+        out.writeShort(0xFFC0);
+        out.writeShort(8 + 3 * 3);
+        out.writeByte(8);
+        out.writeShort(3000);
+        out.writeShort(4000);
+        out.writeByte(3);
+        Path jpeg = Files.write(dir.resolve("rotated.jpg"), bytes.toByteArray());
+
+        assertThat(ImageDecoder.readSize(jpeg)).containsExactly(3000, 4000);
+    }
+
+    @Test
+    void choosesLargestReductionThatKeepsTargetSize() {
+        assertThat(ImageDecoder.scaleFor(4000, 3000, 480, 640)).isEqualTo(8);
+        assertThat(ImageDecoder.scaleFor(3000, 4000, 480, 640)).isEqualTo(4);
+        assertThat(ImageDecoder.scaleFor(1920, 1440, 480, 640)).isEqualTo(4);
+        assertThat(ImageDecoder.scaleFor(900, 1200, 480, 640)).isEqualTo(1);
+        assertThat(ImageDecoder.scaleFor(240, 320, 480, 640)).isEqualTo(1);
+    }
+
+    @Test
+    void decodesLargeJpegReduced() {
+        Path jpeg = dir.resolve("large.jpg");
+        int[] corners = {600, 400, 3300, 300, 3500, 2700, 450, 2850};
+        try (Mat page = TestImages.page(4000, 3000, corners)) {
+            imwrite(jpeg.toString(), page);
+        }
+
+        try (Mat image = ImageDecoder.read(jpeg.toString(), 480, 640)) {
+            assertThat(image.cols()).isEqualTo(500);
+            assertThat(image.rows()).isEqualTo(375);
+        }
+        try (MatBookFinder finder = new MatBookFinder()) {
+            finder.process(jpeg.toString(), 100, 100);
+            TestImages.assertNearCorners(finder.getQuad(), Quad.of(new float[]{
+                    600 * 0.12f, 400 * 0.12f, 3300 * 0.12f, 300 * 0.12f,
+                    3500 * 0.12f, 2700 * 0.12f, 450 * 0.12f, 2850 * 0.12f}), 2);
+        }
+    }
+
+    @Test
+    void pyramidReadsFullResolutionOnlyWhenFound() {
+        Path blank = dir.resolve("blank.jpg");
+        Path page = dir.resolve("page.jpg");
+        try (Mat empty = TestImages.page(4000, 3000, new int[]{0, 0, 0, 0, 0, 0, 0, 0});
+             Mat document = TestImages.page(4000, 3000, new int[]{600, 400, 3300, 300, 3500, 2700, 450, 2850})) {
+            imwrite(blank.toString(), empty);
+            imwrite(page.toString(), document);
+        }
+
+        StageMetrics metrics = new StageMetrics();
+        try (MatBookFinder finder = new MatBookFinder(null, true)) {
+            finder.setMetrics(metrics);
+            finder.process(blank.toString(), 100, 100);
+            assertThat(finder.getQuad()).isNull();
+            assertThat(metrics.count(PipelineMetrics.Stage.DECODE)).isEqualTo(1);
+
+            finder.process(page.toString(), 100, 100);
+            assertThat(finder.getSourceQuad()).isNotNull();
+            assertThat(metrics.count(PipelineMetrics.Stage.DECODE)).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void decodesBuffersReducedWithoutFiles() throws IOException {
+        Path jpeg = dir.resolve("buffer.jpg");
+        try (Mat page = TestImages.page(4000, 3000, new int[]{600, 400, 3300, 300, 3500, 2700, 450, 2850})) {
+            imwrite(jpeg.toString(), page);
+        }
+        byte[] bytes = Files.readAllBytes(jpeg);
+        // positionが先頭でなくても、そこから読む
+        ByteBuffer heap = ByteBuffer.allocate(bytes.length + 16).position(16).put(bytes).position(16);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+
+        for (ImageSource source : List.of(ImageSource.of("heap", heap), ImageSource.of("direct", direct),
+                ImageSource.map(jpeg))) {
+            assertThat(ImageDecoder.readSize(source)).containsExactly(4000, 3000);
+            try (Mat image = ImageDecoder.read(source, 480, 640)) {
+                assertThat(image.cols()).isEqualTo(500);
+                assertThat(image.rows()).isEqualTo(375);
+            }
+        }
+        assertThat(heap.position()).isEqualTo(16);
+
+        ImageSource broken = ImageSource.of("broken", ByteBuffer.wrap(new byte[]{1, 2, 3}));
+        assertThatThrownBy(() -> broken.decode(IMREAD_COLOR)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
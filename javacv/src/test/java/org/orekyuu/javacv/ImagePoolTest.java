@@ -0,0 +1,59 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.IPL_DEPTH_8U;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+class ImagePoolTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void evictsLeastRecentlyUsedSizesOverByteLimit() {
+        try (ImagePool pool = new ImagePool(4, 3 * 100 * 100)) {
+            IplImage small = pool.acquire(100, 100, IPL_DEPTH_8U, 1);
+            IplImage medium = pool.acquire(100, 200, IPL_DEPTH_8U, 1);
+            pool.release(small);
+            pool.release(medium);
+            // smallを使ったので、次に超えた時はmediumが先に解放される
+            pool.release(pool.acquire(100, 100, IPL_DEPTH_8U, 1));
+            pool.release(pool.acquire(100, 150, IPL_DEPTH_8U, 1));
+
+            assertThat(pool.idleBytes()).isLessThanOrEqualTo(3 * 100 * 100);
+            assertThat(pool.idleCount()).isEqualTo(2);
+            long created = pool.createdCount();
+            pool.release(pool.acquire(100, 100, IPL_DEPTH_8U, 1));
+            assertThat(pool.createdCount()).isEqualTo(created);
+            pool.release(pool.acquire(100, 200, IPL_DEPTH_8U, 1));
+            assertThat(pool.createdCount()).isEqualTo(created + 1);
+
+            // 上限より大きいものは待たせない
+            pool.release(pool.acquire(400, 400, IPL_DEPTH_8U, 1));
+            assertThat(pool.idleBytes()).isLessThanOrEqualTo(3 * 100 * 100);
+        }
+    }
+
+    @Test
+    void pagesOfDifferentSizesStayWithinLimit() {
+        long limit = 2L << 20;
+        try (ImagePool pool = new ImagePool(8, limit);
+             DocumentFinder finder = FinderType.LEGACY.create(pool, null)) {
+            for (int i = 0; i < 60; i++) {
+                // 書類の大きさを変えて、補正後の画像のサイズがページごとに違うようにする
+                int[] corners = {40, 50, 120 + i, 40, 130 + i, 160 + i * 2, 30, 170 + i * 2};
+                String page = dir.resolve("page-" + i + ".png").toString();
+                imwrite(page, TestImages.page(240, 320, corners));
+                finder.process(page, 100, 100);
+                assertThat(finder.getQuad()).isNotNull();
+            }
+            assertThat(pool.idleBytes()).isLessThanOrEqualTo(limit);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.orekyuu.javacv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LatestWinsSchedulerTest {
+
+    @Test
+    void burstIsCoalescedAndOnlyLatestIsPublished() throws Exception {
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(1);
+        List<Integer> computed = new CopyOnWriteArrayList<>();
+        List<Integer> shown = new CopyOnWriteArrayList<>();
+
+        try (LatestWinsScheduler<Integer, Integer> scheduler = new LatestWinsScheduler<>("test", (value, superseded) -> {
+            computed.add(value);
+            if (value == 0) {
+                firstStarted.countDown();
+                release.await();
+            }
+            return value;
+        }, Runnable::run, value -> {
+            shown.add(value);
+            if (value == 10) {
+                published.countDown();
+            }
+        }, Throwable::printStackTrace)) {
+            scheduler.request(0);
+            assertThat(firstStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            for (int i = 1; i <= 10; i++) {
+                scheduler.request(i);
+            }
+            release.countDown();
+
+            assertThat(published.await(5, TimeUnit.SECONDS)).isTrue();
+            // 0は計算中に古くなったので捨てられ、1から9は計算すらされない
+            assertThat(computed).containsExactly(0, 10);
+            assertThat(shown).containsExactly(10);
+            assertThat(scheduler.latency().count()).isEqualTo(1);
+            assertThat(scheduler.discardedCount()).isEqualTo(10);
+        }
+    }
+}
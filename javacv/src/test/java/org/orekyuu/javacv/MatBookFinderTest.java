@@ -0,0 +1,75 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+class MatBookFinderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsSameCornersAsLegacyFinder() {
+        int[][] pages = {
+                TestImages.PAGE_CORNERS,
+                {150, 200, 750, 150, 800, 1000, 100, 1050},
+                {300, 100, 850, 300, 600, 1100, 60, 800},
+        };
+        for (int i = 0; i < pages.length; i++) {
+            String path = dir.resolve("page" + i + ".png").toString();
+            imwrite(path, TestImages.page(i == 0 ? 240 : 900, i == 0 ? 320 : 1200, pages[i]));
+
+            try (DocumentFinder legacy = FinderType.LEGACY.create(ImagePool.shared(), null);
+                 DocumentFinder mat = FinderType.MAT.create(ImagePool.shared(), null)) {
+                legacy.process(path, 100, 100);
+                mat.process(path, 100, 100);
+
+                assertThat(mat.getQuad()).isNotNull().isEqualTo(legacy.getQuad());
+                IplImage expected = legacy.getResult();
+                IplImage actual = mat.getResult();
+                assertThat(actual.width()).isEqualTo(expected.width());
+                assertThat(actual.height()).isEqualTo(expected.height());
+            }
+        }
+    }
+
+    @Test
+    void pyramidWarpsFromOriginalResolution() {
+        int[] corners = {600, 400, 3300, 300, 3500, 2700, 450, 2850};
+        String path = dir.resolve("large.png").toString();
+        imwrite(path, TestImages.page(4000, 3000, corners));
+
+        try (DocumentFinder finder = FinderType.PYRAMID.create(ImagePool.shared(), null)) {
+            finder.process(path, 100, 100);
+
+            Quad quad = finder.getSourceQuad();
+            assertThat(quad).isNotNull();
+            for (int i = 0; i < 4; i++) {
+                assertThat(quad.x(i)).isCloseTo(corners[i * 2], within(2f));
+                assertThat(quad.y(i)).isCloseTo(corners[i * 2 + 1], within(2f));
+            }
+            // 縮小画像の大きさに縛られず、元画像での辺の長さで出力する
+            assertThat(finder.getResult().width()).isCloseTo(3054, within(5));
+            assertThat(finder.getResult().height()).isCloseTo(2455, within(5));
+        }
+    }
+
+    @Test
+    void notFound() {
+        String path = dir.resolve("blank.png").toString();
+        imwrite(path, TestImages.page(240, 320, new int[]{10, 10, 12, 10, 12, 12, 10, 12}));
+        try (DocumentFinder finder = new MatBookFinder()) {
+            finder.process(path, 100, 100);
+            assertThat(finder.getQuad()).isNull();
+            assertThat(finder.getResult()).isNull();
+            assertThat(finder.steps().get(1)).isNull();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.orekyuu.javacv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NearDuplicateFilterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void filtersCachedResultsToo() throws IOException {
+        Path page = Path.of(TestImages.writePage(dir.resolve("page.png")));
+        // 同じ内容なので、2枚目はキャッシュから返る
+        Path copy = Files.copy(page, dir.resolve("copy.png"));
+        List<Path> passed = new CopyOnWriteArrayList<>();
+        BatchScanner.ResultHandler recorder = new BatchScanner.ResultHandler() {
+            @Override
+            public void handle(ScanResult result, DocumentFinder finder) {
+                passed.add(result.getPath());
+            }
+
+            @Override
+            public void handleCached(ScanResult result, ResultCache.Entry entry) {
+                passed.add(result.getPath());
+            }
+        };
+        ResultCache cache = new ResultCache(dir.resolve("cache"), 1L << 20, ".png");
+        try (HashIndex index = HashIndex.open(dir.resolve("hashes"));
+             PathIds paths = PathIds.open(dir.resolve("hashes"));
+             BatchScanner scanner = new BatchScanner(FinderType.MAT, CorePlan.withWorkers(1), 100, 100, cache)) {
+            NearDuplicateFilter filter = new NearDuplicateFilter(index, paths, 6, recorder);
+            scanner.scan(List.of(page), filter);
+            scanner.scan(List.of(copy), filter);
+
+            assertThat(cache.hitCount()).isEqualTo(1);
+            assertThat(passed).containsExactly(page);
+            assertThat(filter.duplicateCount()).isEqualTo(1);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imread;
+
+class OutputWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void writesCopiesInEveryFormat() throws Exception {
+        for (OutputWriter.Format format : OutputWriter.Format.values()) {
+            Path path;
+            try (OutputWriter writer = new OutputWriter(dir.resolve(format.name()), format, format == OutputWriter.Format.PNG ? 3 : 90, 1, 1, 1);
+                 Mat image = new Mat(40, 60, CV_8UC3, new Scalar(10, 200, 30, 0))) {
+                Future<Path> written = writer.submit("page", image);
+                // 積んだ後に元のバッファを書き換えても、書き出す内容は変わらない
+                image.put(new Scalar(0, 0, 0, 0));
+                path = written.get();
+                assertThat(writer.syncCount()).isEqualTo(1);
+            }
+            assertThat(path.getFileName().toString()).isEqualTo("page" + format.extension());
+            try (Mat read = imread(path.toString())) {
+                assertThat(read.cols()).isEqualTo(60);
+                assertThat(read.rows()).isEqualTo(40);
+                assertThat(read.ptr(20, 30).get(1) & 0xff).as(format.name()).isBetween(190, 210);
+            }
+        }
+    }
+
+    @Test
+    void writesBatchResultsWhileScanning() throws IOException {
+        Path pages = Files.createDirectories(dir.resolve("pages"));
+        for (String name : new String[]{"a", "b", "c"}) {
+            TestImages.writePage(pages.resolve(name + ".png"));
+        }
+        Path output = dir.resolve("out");
+        OutputWriter writer = new OutputWriter(output, OutputWriter.Format.JPEG, 80, 1, 1, 2);
+        try (writer; BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100)) {
+            assertThat(scanner.scan(BatchScanner.resolve(pages.toString()), writer.handler()))
+                    .allMatch(ScanResult::isFound);
+        }
+
+        assertThat(writer.writtenCount()).isEqualTo(3);
+        // 2件ごとと、残りの1件を閉じる時に。検出が遅れて後続が来なければ、まとめずにfsyncすることもある
+        assertThat(writer.syncCount()).isBetween(2L, 3L);
+        for (String name : new String[]{"a", "b", "c"}) {
+            try (Mat read = imread(output.resolve(name + ".jpg").toString())) {
+                assertThat(read.cols()).isGreaterThan(100);
+            }
+        }
+    }
+
+    @Test
+    void writesCachedResultsToo() throws IOException {
+        Path pages = Files.createDirectories(dir.resolve("pages"));
+        for (String name : new String[]{"a", "b"}) {
+            TestImages.writePage(pages.resolve(name + ".png"));
+        }
+        for (String run : new String[]{"first", "second"}) {
+            Path output = dir.resolve(run);
+            try (OutputWriter writer = new OutputWriter(output, OutputWriter.Format.JPEG, 80, 1, 1, 0);
+                 BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100,
+                         writer.cache(dir.resolve("cache"), 1 << 24))) {
+                List<ScanResult> results = scanner.scan(BatchScanner.resolve(pages.toString()), writer.handler());
+                assertThat(results).allMatch(ScanResult::isFound)
+                        .allMatch(result -> result.isCached() == run.equals("second"));
+            }
+            for (String name : new String[]{"a", "b"}) {
+                try (Mat read = imread(output.resolve(name + ".jpg").toString())) {
+                    assertThat(read.cols()).as(run).isGreaterThan(100);
+                }
+            }
+        }
+        // 形式が違えばキャッシュは使わない
+        try (OutputWriter writer = new OutputWriter(dir.resolve("png"), OutputWriter.Format.PNG, -1, 1, 1, 0);
+             BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100,
+                     writer.cache(dir.resolve("cache"), 1 << 24))) {
+            assertThat(scanner.scan(BatchScanner.resolve(pages.toString()), writer.handler()))
+                    .noneMatch(ScanResult::isCached);
+        }
+    }
+
+    @Test
+    void keepsInputsWithSameBaseNameApart() throws IOException {
+        Path pages = Files.createDirectories(dir.resolve("pages"));
+        TestImages.writePage(Files.createDirectories(pages.resolve("dir1")).resolve("page.png"));
+        TestImages.writePage(Files.createDirectories(pages.resolve("dir2")).resolve("page.png"));
+        TestImages.writePage(pages.resolve("a.png"));
+        TestImages.writePage(pages.resolve("a.jpg"));
+        Path output = dir.resolve("out");
+        OutputWriter writer = new OutputWriter(output, OutputWriter.Format.PNG, -1, 1, 1, 0);
+        try (writer; BatchScanner scanner = new BatchScanner(FinderType.MAT, 2, 100, 100)) {
+            assertThat(scanner.scan(BatchScanner.resolve(pages.toString()), writer.handler())).allMatch(ScanResult::isFound);
+        }
+
+        assertThat(writer.writtenCount()).isEqualTo(4);
+        assertThat(writer.getFailures()).isEmpty();
+        try (Stream<Path> files = Files.list(output)) {
+            assertThat(files.map(path -> path.getFileName().toString()))
+                    .containsExactlyInAnyOrder("page.png", "page-2.png", "a.png", "a-2.png");
+        }
+    }
+
+    @Test
+    void reportsFailedWrites() throws IOException {
+        Path page = Path.of(TestImages.writePage(dir.resolve("page.png")));
+        Path output = dir.resolve("out");
+        // 書き出し先に同じ名前のディレクトリがあると書けない
+        Files.createDirectories(output.resolve("page.png"));
+        OutputWriter writer = new OutputWriter(output, OutputWriter.Format.PNG, -1, 1, 1, 1);
+        try (writer; BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 100, 100)) {
+            assertThat(scanner.scan(List.of(page), writer.handler())).allMatch(ScanResult::isFound);
+        }
+
+        assertThat(writer.getFailures()).containsOnlyKeys(page);
+        assertThat(writer.writtenCount()).isZero();
+    }
+}
@@ -0,0 +1,67 @@
+package org.orekyuu.javacv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PathIdsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void mapsIdsBackToPathsAfterReopening() throws IOException {
+        Path page = Paths.get("scans", "page 1.png");
+        long id;
+        try (PathIds ids = PathIds.open(dir)) {
+            id = ids.add(page);
+            assertThat(ids.add(page)).isEqualTo(id).isEqualTo(PathIds.id(page));
+            ids.add(Paths.get("scans", "page-2.png"));
+        }
+        long size = Files.size(dir.resolve("paths.dat"));
+        // 書きかけで終わった1件
+        Files.write(dir.resolve("paths.dat"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13}, StandardOpenOption.APPEND);
+
+        try (PathIds ids = PathIds.open(dir)) {
+            assertThat(ids.get(id)).isEqualTo(page);
+            assertThat(ids.describe(id)).isEqualTo(page.toString());
+            assertThat(ids.describe(0x2aL)).isEqualTo("000000000000002a");
+            // 同じパスは1度だけ書く
+            ids.add(page);
+        }
+        assertThat(Files.size(dir.resolve("paths.dat"))).isEqualTo(size);
+    }
+
+    @Test
+    void looksUpThroughMappedTableAndLaterAdditions() throws IOException {
+        try (PathIds ids = PathIds.open(dir)) {
+            for (int i = 0; i < 1000; i++) {
+                ids.add(Paths.get("page-" + i + ".png"));
+            }
+            ids.compact();
+            for (int i = 1000; i < 1500; i++) {
+                ids.add(Paths.get("page-" + i + ".png"));
+            }
+            ids.compact();
+            // 最後の分は表に入れずに閉じる
+            for (int i = 1500; i < 1600; i++) {
+                ids.add(Paths.get("page-" + i + ".png"));
+            }
+        }
+        try (PathIds ids = PathIds.open(dir)) {
+            for (int i = 0; i < 1600; i++) {
+                Path path = Paths.get("page-" + i + ".png");
+                assertThat(ids.get(PathIds.id(path))).isEqualTo(path);
+            }
+            assertThat(ids.get(PathIds.id(Paths.get("page-1600.png")))).isNull();
+        }
+        assertThat(Files.size(dir.resolve("paths.idx"))).isEqualTo(32 + 1500 * 16);
+    }
+}
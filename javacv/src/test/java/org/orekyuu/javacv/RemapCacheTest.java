@@ -0,0 +1,80 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.opencv.opencv_core.*;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.*;
+import static org.bytedeco.opencv.global.opencv_imgproc.*;
+
+class RemapCacheTest {
+
+    @Test
+    void remapMatchesWarpPerspective() {
+        try (SyntheticPage page = SyntheticPage.generate(3, 640, 480); RemapCache cache = new RemapCache();
+             Mat expected = new Mat(); Mat actual = new Mat(300, 200, CV_8UC3)) {
+            Quad quad = new Quad(100, 60, 320, 80, 300, 400, 90, 380);
+            warp(page.image(), quad, 200, 300, expected);
+
+            // 1回目はそのまま補正し、2回目に表を作り、3回目から表を使い回す
+            for (int i = 0; i < 3; i++) {
+                actual.put(Scalar.all(255));
+                cache.warp(page.image(), quad, 200, 300, actual);
+                // 座標の丸め方の違いで、模様の細かいところが数画素だけずれる
+                assertThat(norm(expected, actual, NORM_INF, null)).isLessThanOrEqualTo(8);
+                assertThat(norm(expected, actual, NORM_L1, null) / actual.total() / 3).isLessThan(0.01);
+            }
+            assertThat(cache.missCount()).isEqualTo(2);
+            assertThat(cache.hitCount()).isEqualTo(1);
+            assertThat(cache.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedQuad() {
+        try (SyntheticPage page = SyntheticPage.generate(1, 640, 480); RemapCache cache = new RemapCache(2, 4);
+             Mat dest = new Mat(100, 100, CV_8UC3)) {
+            Quad first = shifted(0);
+            Quad second = shifted(20);
+            Quad third = shifted(40);
+            // 2回目で表を作る
+            for (Quad quad : new Quad[]{first, second}) {
+                cache.warp(page.image(), quad, 100, 100, dest);
+                cache.warp(page.image(), quad, 100, 100, dest);
+            }
+            // 先に作ったfirstを使っておくと、追い出されるのはsecondになる
+            cache.warp(page.image(), first, 100, 100, dest);
+            assertThat(cache.hitCount()).isEqualTo(1);
+            cache.warp(page.image(), third, 100, 100, dest);
+            cache.warp(page.image(), third, 100, 100, dest);
+            assertThat(cache.size()).isEqualTo(2);
+
+            cache.warp(page.image(), first, 100, 100, dest);
+            assertThat(cache.hitCount()).isEqualTo(2);
+            // stepより小さいずれは同じ四隅として扱う
+            cache.warp(page.image(), new Quad(41, 1, 241, 0, 240, 199, 40, 201), 100, 100, dest);
+            assertThat(cache.hitCount()).isEqualTo(3);
+            long misses = cache.missCount();
+            cache.warp(page.image(), second, 100, 100, dest);
+            assertThat(cache.hitCount()).isEqualTo(3);
+            assertThat(cache.missCount()).isEqualTo(misses + 1);
+        }
+    }
+
+    private static Quad shifted(int offset) {
+        return new Quad(offset, 0, 200 + offset, 0, 200 + offset, 200, offset, 200);
+    }
+
+    private static void warp(Mat source, Quad quad, int width, int height, Mat dest) {
+        try (Mat from = new Mat(4, 1, CV_32FC2); Mat to = new Mat(4, 1, CV_32FC2); Size size = new Size(width, height)) {
+            float[] corners = quad.toArray();
+            float[] rect = {0, 0, width, 0, width, height, 0, height};
+            new FloatPointer(from.data()).put(corners);
+            new FloatPointer(to.data()).put(rect);
+            try (Mat perspective = getPerspectiveTransform(from, to)) {
+                warpPerspective(source, dest, perspective, size, INTER_LINEAR, BORDER_CONSTANT, Scalar.ZERO);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResultCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void hashMatchesXxh64() {
+        assertThat(ContentHash.xxh64(ascii(""), 0)).isEqualTo(0xEF46DB3751D8E999L);
+        assertThat(ContentHash.xxh64(ascii("a"), 0)).isEqualTo(0xD24EC4F1A98C6E5BL);
+        assertThat(ContentHash.xxh64(ascii("abc"), 0)).isEqualTo(0x44BC2CF5AD770999L);
+        assertThat(ContentHash.xxh64(ascii("Nobody inspects the spammish repetition"), 0)).isEqualTo(0xFBCEA83C8A378BF1L);
+    }
+
+    @Test
+    void duplicateContentSkipsDetectionAcrossRuns() throws IOException {
+        Path pages = Files.createDirectories(dir.resolve("pages"));
+        TestImages.writePage(pages.resolve("a.png"));
+        // 名前が違っても内容が同じなら同じ結果を使う
+        Files.copy(pages.resolve("a.png"), pages.resolve("b.png"));
+        List<Path> files = BatchScanner.resolve(pages.toString());
+
+        List<ScanResult> first;
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 100, 100,
+                new ResultCache(dir.resolve("cache"), 1 << 20, ".png"))) {
+            first = scanner.scan(files);
+        }
+        assertThat(first).extracting(ScanResult::isCached).containsExactly(false, true);
+        assertThat(first.get(1).getQuad()).isEqualTo(first.get(0).getQuad());
+
+        ResultCache reopened = new ResultCache(dir.resolve("cache"), 1 << 20, ".png");
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 100, 100, reopened)) {
+            List<ScanResult> second = scanner.scan(files, (result, finder) -> assertThat(finder).isNull());
+            assertThat(second).extracting(ScanResult::isCached).containsExactly(true, true);
+            assertThat(second.get(0).getQuad()).isEqualTo(first.get(0).getQuad());
+        }
+        // 閾値が違えば計算し直す
+        try (BatchScanner scanner = new BatchScanner(FinderType.MAT, 1, 120, 100, reopened)) {
+            assertThat(scanner.scan(files)).extracting(ScanResult::isCached).containsExactly(false, true);
+        }
+
+        String key = ResultCache.key(ImageSource.of(files.get(0)), FinderType.MAT.name(), 100, 100);
+        try (Mat image = reopened.get(key).decodeImage()) {
+            assertThat(image.cols()).isEqualTo(first.get(0).getResultWidth());
+            assertThat(image.rows()).isEqualTo(first.get(0).getResultHeight());
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWithinSize() throws IOException {
+        ResultCache cache = new ResultCache(dir, 2500);
+        cache.put("aa-1", entry(1000));
+        cache.put("bb-2", entry(1000));
+        assertThat(cache.get("aa-1")).isNotNull();
+        cache.put("cc-3", entry(1000));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("bb-2")).isNull();
+        assertThat(cache.bytes()).isLessThanOrEqualTo(2500);
+
+        // 壊れたファイルは読めなかったものとして消す
+        Path broken = dir.resolve("cc").resolve("cc-3");
+        Files.write(broken, new byte[]{1, 2, 3});
+        ResultCache reopened = new ResultCache(dir, 2500);
+        assertThat(reopened.size()).isEqualTo(2);
+        assertThat(reopened.get("cc-3")).isNull();
+        assertThat(reopened.get("aa-1").getImage()).hasSize(1000);
+        assertThat(broken).doesNotExist();
+    }
+
+    @Test
+    void concurrentWritersKeepEntriesReadable() throws Exception {
+        ResultCache cache = new ResultCache(dir, 20_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String key = String.format("%02x-key", i % 30);
+                        ResultCache.Entry entry = cache.get(key);
+                        if (entry != null) {
+                            assertThat(entry.getImage()).hasSize(500);
+                        } else {
+                            cache.put(key, entry(500));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            List<Path> left = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            assertThat(left).hasSize(cache.size());
+        }
+        assertThat(cache.bytes()).isLessThanOrEqualTo(20_000);
+    }
+
+    private static ResultCache.Entry entry(int imageBytes) {
+        return new ResultCache.Entry(Quad.of(new float[]{0, 0, 10, 0, 10, 10, 0, 10}), 10, 10, new byte[imageBytes]);
+    }
+
+    private static ByteBuffer ascii(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
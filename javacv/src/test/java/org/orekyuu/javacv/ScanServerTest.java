@@ -0,0 +1,173 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.IMREAD_COLOR;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imdecode;
+
+class ScanServerTest {
+
+    @TempDir
+    Path dir;
+
+    private ScanServer server;
+    private byte[] page;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ScanServer(new InetSocketAddress("127.0.0.1", 0), FinderType.MAT, 1, 1, 1 << 16);
+        server.start();
+        page = Files.readAllBytes(Path.of(TestImages.writePage(dir.resolve("page.png"))));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    @Test
+    void returnsCorrectedImageAndCorners() throws IOException {
+        HttpURLConnection connection = post("/scan?threshold=100", page);
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(connection.getContentType()).isEqualTo("image/png");
+        // 縮小画像ではなく、送った画像の座標で返す
+        String[] corners = connection.getHeaderField("X-Document-Quad").split("[;,]");
+        float[] points = new float[8];
+        for (int i = 0; i < 8; i++) {
+            points[i] = Float.parseFloat(corners[i]);
+        }
+        int[] expected = TestImages.PAGE_CORNERS;
+        TestImages.assertNearCorners(Quad.of(points), new Quad(expected[0], expected[1], expected[2], expected[3],
+                expected[4], expected[5], expected[6], expected[7]), 3);
+        try (InputStream in = connection.getInputStream(); Mat image = imdecode(new Mat(in.readAllBytes()), IMREAD_COLOR)) {
+            assertThat(image.cols()).isGreaterThan(100);
+        }
+
+        connection = post("/scan?threshold=auto&output=json", page);
+        assertThat(connection.getResponseCode()).isEqualTo(200);
+        assertThat(body(connection)).startsWith("{\"found\":true,");
+    }
+
+    @Test
+    void rejectsWhenWorkersAndQueueAreFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        // 1件を処理中に、1件を待ち行列に入れて埋める
+        for (int i = 0; i < 2; i++) {
+            server.workers().submit(() -> {
+                release.await();
+                return null;
+            });
+        }
+        HttpURLConnection rejected = post("/scan", page);
+        assertThat(rejected.getResponseCode()).isEqualTo(429);
+        assertThat(rejected.getHeaderField("Retry-After")).isEqualTo("1");
+
+        release.countDown();
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while ((server.workers().getActiveCount() > 0 || !server.workers().getQueue().isEmpty())
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(post("/scan", page).getResponseCode()).isEqualTo(200);
+    }
+
+    @Test
+    void reportsClientErrors() throws IOException {
+        assertThat(post("/scan", "not an image".getBytes(StandardCharsets.UTF_8)).getResponseCode()).isEqualTo(400);
+        assertThat(post("/scan?format=gif", page).getResponseCode()).isEqualTo(400);
+        assertThat(post("/scan", new byte[(1 << 16) + 1]).getResponseCode()).isEqualTo(413);
+
+        HttpURLConnection get = (HttpURLConnection) url("/scan").openConnection();
+        assertThat(get.getResponseCode()).isEqualTo(405);
+        HttpURLConnection health = (HttpURLConnection) url("/health").openConnection();
+        assertThat(health.getResponseCode()).isEqualTo(200);
+    }
+
+    @Test
+    void rejectsMalformedContentLength() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getAddress().getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /scan HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 12abc\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine();
+            assertThat(status).startsWith("HTTP/1.1 400");
+        }
+    }
+
+    @Test
+    void rejectsUploadLimitsThatOverflow() {
+        assertThat(ScanServer.uploadBytes(32)).isEqualTo(32 << 20);
+        assertThat(ScanServer.uploadBytes(2047)).isEqualTo(2047 << 20);
+        assertThatThrownBy(() -> ScanServer.uploadBytes(2048)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ScanServer.uploadBytes(0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ScanServer(new InetSocketAddress("127.0.0.1", 0), FinderType.MAT, 1, 1, Integer.MAX_VALUE))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void healthyAfterWarmup() throws Exception {
+        Warmup.Report report = server.warmUp(null).get();
+        assertThat(report.getFirstResultNanos()).isPositive();
+        assertThat(report.getWarmResultNanos()).isPositive();
+        assertThat(report.getUptimeNanos()).isGreaterThan(report.getFirstResultNanos());
+        HttpURLConnection health = (HttpURLConnection) url("/health").openConnection();
+        assertThat(health.getResponseCode()).isEqualTo(200);
+    }
+
+    @Test
+    void unhealthyWhenWarmupFails() throws IOException {
+        server.watchWarmup(CompletableFuture.failedFuture(new UnsatisfiedLinkError("no jniopencv_core")));
+        HttpURLConnection health = (HttpURLConnection) url("/health").openConnection();
+        assertThat(health.getResponseCode()).isEqualTo(503);
+        try (InputStream in = health.getErrorStream()) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8))
+                    .startsWith("warm-up failed:").contains("no jniopencv_core");
+        }
+    }
+
+    private HttpURLConnection post(String path, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url(path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        } catch (IOException e) {
+            // 本文を読まずに断られた場合も、応答は読める
+        }
+        return connection;
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
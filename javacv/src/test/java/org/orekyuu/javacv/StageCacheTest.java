@@ -0,0 +1,89 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.IplImage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.IPL_DEPTH_8U;
+
+class StageCacheTest {
+
+    @TempDir
+    Path dir;
+
+    ImagePool pool;
+    StageCache cache;
+
+    @BeforeEach
+    void setup() {
+        pool = new ImagePool(4);
+        cache = new StageCache(pool, 8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.close();
+        pool.close();
+    }
+
+    @Test
+    void thresholdChangeReusesSmoothedImage() {
+        String page = TestImages.writePage(dir.resolve("page.png"));
+        Quad expected;
+        try (BookFinder finder = new BookFinder(page, pool)) {
+            finder.process(100, 100);
+            expected = finder.getQuad();
+        }
+
+        try (BookFinder finder = new BookFinder(page, pool, cache)) {
+            finder.process(100, 100);
+            assertThat(cache.missCount()).isEqualTo(2);
+        }
+        try (BookFinder finder = new BookFinder(page, pool, cache)) {
+            finder.process(120, 80);
+            finder.process(100, 100);
+            assertThat(cache.hitCount()).isEqualTo(4);
+            assertThat(cache.missCount()).isEqualTo(2);
+            assertThat(finder.getQuad()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void invalidateReleasesEntries() {
+        String page = TestImages.writePage(dir.resolve("page.png"));
+        try (BookFinder finder = new BookFinder(page, pool, cache)) {
+            finder.process(100, 100);
+        }
+        assertThat(cache.size()).isEqualTo(2);
+
+        cache.invalidate(StageCache.inputOf(page));
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        StageCache.Key first = StageCache.key("first", StageCache.Stage.RESIZED);
+        StageCache.Key second = StageCache.key("second", StageCache.Stage.RESIZED);
+        StageCache.Key third = StageCache.key("third", StageCache.Stage.RESIZED);
+        IplImage image = pool.acquire(8, 8, IPL_DEPTH_8U, 1);
+        try (StageCache small = new StageCache(pool, 2)) {
+            small.put(first, image);
+            small.put(second, image);
+            // 先に入れたfirstを読んでおくと、追い出されるのはsecondになる
+            assertThat(small.<Boolean>read(first, cached -> Boolean.TRUE)).isTrue();
+            small.put(third, image);
+
+            assertThat(small.size()).isEqualTo(2);
+            assertThat(small.<Boolean>read(second, cached -> Boolean.TRUE)).isNull();
+            assertThat(small.<Boolean>read(first, cached -> Boolean.TRUE)).isTrue();
+            assertThat(small.<Boolean>read(third, cached -> Boolean.TRUE)).isTrue();
+        } finally {
+            pool.release(image);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.orekyuu.javacv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StageMetricsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordsEveryStage() {
+        String page = TestImages.writePage(dir.resolve("page.png"));
+        StageMetrics metrics = new StageMetrics();
+        try (DocumentFinder finder = FinderType.LEGACY.create(ImagePool.shared(), null)) {
+            finder.setMetrics(metrics);
+            finder.process(page, 100, 100);
+        }
+
+        for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+            assertThat(metrics.count(stage)).as(stage.name()).isEqualTo(1);
+        }
+        assertThat(metrics.count(PipelineMetrics.Counter.CONTOURS_SEEN)).isPositive();
+        assertThat(metrics.count(PipelineMetrics.Counter.DOCUMENTS_FOUND)).isEqualTo(1);
+        assertThat(metrics.count(PipelineMetrics.Counter.DOCUMENTS_MISSED)).isZero();
+        assertThat(metrics.histogram("CANNY")).containsOnlyOnce(1);
+    }
+
+    @Test
+    void bothFindersCountContoursAlike() {
+        String page = TestImages.writePage(dir.resolve("page.png"));
+        StageMetrics legacy = new StageMetrics();
+        StageMetrics mat = new StageMetrics();
+        try (DocumentFinder legacyFinder = FinderType.LEGACY.create(ImagePool.shared(), null);
+             DocumentFinder matFinder = FinderType.MAT.create(ImagePool.shared(), null)) {
+            legacyFinder.setMetrics(legacy);
+            matFinder.setMetrics(mat);
+            legacyFinder.process(page, 100, 100);
+            matFinder.process(page, 100, 100);
+        }
+
+        for (PipelineMetrics.Counter counter : PipelineMetrics.Counter.values()) {
+            assertThat(mat.count(counter)).as(counter.name()).isEqualTo(legacy.count(counter));
+        }
+        assertThat(legacy.count(PipelineMetrics.Counter.CONTOURS_SEEN)).isPositive();
+    }
+
+    @Test
+    void exposedThroughJmx() throws Exception {
+        String page = TestImages.writePage(dir.resolve("page.png"));
+        StageMetrics metrics = new StageMetrics();
+        metrics.register("test");
+        try (DocumentFinder finder = FinderType.MAT.create(ImagePool.shared(), null)) {
+            finder.setMetrics(metrics);
+            finder.process(page, 100, 100);
+            finder.process(page, 100, 100);
+        }
+
+        var server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.orekyuu.javacv:type=StageMetrics,name=test");
+        TabularData counts = (TabularData) server.getAttribute(name, "Counts");
+        CompositeData canny = counts.get(new Object[]{"CANNY"});
+        assertThat(canny.get("value")).isEqualTo(2L);
+        server.unregisterMBean(name);
+    }
+}
@@ -0,0 +1,82 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class StreamScannerTest {
+
+    private static final int FRAMES = 60;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * 1080pの動画の中で、書類が少しずつ右へ動いていく
+     */
+    private static int[] cornersAt(int frame) {
+        int dx = frame * 4;
+        return new int[]{500 + dx, 200, 1300 + dx, 180, 1350 + dx, 900, 450 + dx, 950};
+    }
+
+    private String writeVideo() throws Exception {
+        String path = dir.resolve("pages.avi").toString();
+        OpenCVFrameConverter.ToMat converter = new OpenCVFrameConverter.ToMat();
+        try (FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(path, 1920, 1080)) {
+            recorder.setFormat("avi");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_MPEG4);
+            recorder.setFrameRate(30);
+            recorder.setVideoQuality(2);
+            recorder.start();
+            for (int i = 0; i < FRAMES; i++) {
+                Mat frame = TestImages.page(1920, 1080, cornersAt(i));
+                recorder.record(converter.convert(frame));
+                frame.close();
+            }
+            recorder.stop();
+        }
+        return path;
+    }
+
+    @Test
+    void tracksMovingPage() throws Exception {
+        String video = writeVideo();
+        List<StreamScanner.FrameResult> results = new ArrayList<>();
+
+        StreamScanner.Stats stats;
+        try (StreamScanner scanner = new StreamScanner(new FFmpegFrameGrabber(video), 100, 100)) {
+            stats = scanner.run((result, finder) -> results.add(result));
+        }
+
+        assertThat(stats.frames).isEqualTo(FRAMES);
+        assertThat(stats.lost).isZero();
+        // 最初の1枚だけ全体を探し、あとは前のフレームの周りで見つかる
+        assertThat(stats.fullSearches).isEqualTo(1);
+        assertThat(stats.tracked).isEqualTo(FRAMES - 1);
+        assertThat(stats.elapsedNanos).isPositive();
+        assertThat(stats.framesPerSecond()).isPositive();
+        assertThat(stats.toString()).startsWith(FRAMES + " frames (" + (FRAMES - 1) + " tracked, 1 full searches, 0 lost)");
+        assertThat(results).hasSize(FRAMES);
+
+        // 1920x1080は480x270に縮小して探している
+        for (StreamScanner.FrameResult result : results) {
+            int[] expected = cornersAt((int) result.getFrameNumber() - 1);
+            Quad quad = result.getQuad();
+            assertThat(quad.x(Quad.TOP_LEFT)).isCloseTo(expected[0] / 4f, within(3f));
+            assertThat(quad.y(Quad.TOP_LEFT)).isCloseTo(expected[1] / 4f, within(3f));
+            assertThat(quad.x(Quad.BOTTOM_RIGHT)).isCloseTo(expected[4] / 4f, within(3f));
+            assertThat(quad.y(Quad.BOTTOM_RIGHT)).isCloseTo(expected[5] / 4f, within(3f));
+        }
+    }
+}
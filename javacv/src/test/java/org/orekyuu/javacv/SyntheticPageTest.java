@@ -0,0 +1,35 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.*;
+
+class SyntheticPageTest {
+
+    @Test
+    void sameSeedGivesSameImage() {
+        try (SyntheticPage a = SyntheticPage.generate(42, 640, 480);
+             SyntheticPage b = SyntheticPage.generate(42, 640, 480);
+             SyntheticPage c = SyntheticPage.generate(43, 640, 480);
+             Mat diff = new Mat()) {
+            assertThat(a.corners()).isEqualTo(b.corners());
+            absdiff(a.image(), b.image(), diff);
+            assertThat(countNonZero(diff.reshape(1))).isZero();
+
+            assertThat(c.corners()).isNotEqualTo(a.corners());
+        }
+    }
+
+    @Test
+    void pyramidFinderLocatesGeneratedCorners() {
+        try (SyntheticPage page = SyntheticPage.generate(3, 1600, 1200);
+             MatBookFinder finder = new MatBookFinder(null, true)) {
+            finder.process(page.image(), 50, 200);
+
+            Quad quad = finder.getSourceQuad();
+            TestImages.assertNearCorners(quad, page.corners(), 2);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.javacpp.indexer.IntIndexer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.bytedeco.opencv.global.opencv_core.CV_32SC2;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC3;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+import static org.bytedeco.opencv.global.opencv_imgproc.fillConvexPoly;
+
+/**
+ * 暗い背景に白い四角形を置いただけの、テスト用の書類画像
+ */
+class TestImages {
+
+    static final int[] PAGE_CORNERS = {40, 50, 200, 40, 210, 280, 30, 290};
+
+    static Mat page(int width, int height, int[] corners) {
+        return page(width, height, corners, 40, 230);
+    }
+
+    /**
+     * 背景と書類の明るさを指定する。差を小さくすると、閾値によってはエッジが出なくなる
+     */
+    static Mat page(int width, int height, int[] corners, int background, int paper) {
+        Mat image = new Mat(height, width, CV_8UC3, new Scalar(background, background, background, 0));
+        Mat polygon = new Mat(4, 1, CV_32SC2);
+        IntIndexer indexer = polygon.createIndexer();
+        for (int i = 0; i < 4; i++) {
+            indexer.put(i, 0, 0, corners[i * 2]);
+            indexer.put(i, 0, 1, corners[i * 2 + 1]);
+        }
+        fillConvexPoly(image, polygon, new Scalar(paper, paper, paper, 0));
+        return image;
+    }
+
+    static String writePage(Path path) {
+        imwrite(path.toString(), page(240, 320, PAGE_CORNERS));
+        return path.toString();
+    }
+
+    /**
+     * 並びの向きは問わず、どの正解の角にもtolerance以内の角がある
+     */
+    static void assertNearCorners(Quad actual, Quad expected, double tolerance) {
+        assertThat(actual).isNotNull();
+        for (int i = 0; i < 4; i++) {
+            double nearest = Double.MAX_VALUE;
+            for (int j = 0; j < 4; j++) {
+                nearest = Math.min(nearest, Math.hypot(actual.x(j) - expected.x(i), actual.y(j) - expected.y(i)));
+            }
+            assertThat(nearest).isCloseTo(0, within(tolerance));
+        }
+    }
+}
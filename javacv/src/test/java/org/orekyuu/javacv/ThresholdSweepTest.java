@@ -0,0 +1,92 @@
+package org.orekyuu.javacv;
+
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Scalar;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.bytedeco.opencv.global.opencv_core.CV_8UC1;
+import static org.bytedeco.opencv.global.opencv_imgcodecs.imwrite;
+
+class ThresholdSweepTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void stopsAfterFirstPairOnEasyImage() {
+        try (SyntheticPage page = SyntheticPage.generate(5, 1280, 960);
+             MatBookFinder finder = new MatBookFinder(null, true)) {
+            finder.processAuto(page.image());
+
+            ThresholdSweep.Result result = finder.getSweepResult();
+            assertThat(result).isNotNull();
+            assertThat(result.isConfident()).isTrue();
+            assertThat(result.getTried()).isEqualTo(1);
+            TestImages.assertNearCorners(finder.getSourceQuad(), page.corners(), 2);
+        }
+    }
+
+    @Test
+    void sweepsWhenDefaultThresholdsMissLowContrastPage() {
+        int[] corners = {100, 80, 380, 70, 400, 560, 90, 580};
+        try (Mat image = TestImages.page(480, 640, corners, 100, 118);
+             MatBookFinder finder = new MatBookFinder()) {
+            // 既定の組では見つからない
+            finder.process(image, ThresholdSweep.DEFAULT_GRID[0][0], ThresholdSweep.DEFAULT_GRID[0][1]);
+            assertThat(finder.getQuad()).isNull();
+
+            finder.processAuto(image);
+
+            ThresholdSweep.Result result = finder.getSweepResult();
+            assertThat(result).isNotNull();
+            assertThat(result.getTried()).isGreaterThan(1);
+            assertThat(result.getThreshold2()).isLessThan(ThresholdSweep.DEFAULT_GRID[0][1]);
+            TestImages.assertNearCorners(finder.getQuad(), Quad.of(toFloats(corners)), 3);
+            assertThat(finder.getResult()).isNotNull();
+        }
+    }
+
+    @Test
+    void legacyFinderSweepsToo() {
+        int[] corners = {100, 80, 380, 70, 400, 560, 90, 580};
+        Path file = dir.resolve("page.png");
+        try (Mat image = TestImages.page(480, 640, corners, 100, 118)) {
+            imwrite(file.toString(), image);
+        }
+        try (BookFinder finder = new BookFinder(ImagePool.shared())) {
+            finder.process(file.toString(), ThresholdSweep.DEFAULT_GRID[0][0], ThresholdSweep.DEFAULT_GRID[0][1]);
+            assertThat(finder.getQuad()).isNull();
+
+            finder.processAuto(file.toString());
+
+            assertThat(finder.getSweepResult()).isNotNull();
+            TestImages.assertNearCorners(finder.getQuad(), Quad.of(toFloats(corners)), 3);
+            assertThat(finder.getResult()).isNotNull();
+            assertThat(finder.steps()).doesNotContainNull();
+        }
+    }
+
+    @Test
+    void returnsNullWithoutQuad() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try (Mat blank = new Mat(480, 360, CV_8UC1, new Scalar(128))) {
+            ThresholdSweep sweep = new ThresholdSweep(pool);
+            assertThat(sweep.sweep(blank)).isNull();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static float[] toFloats(int[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = values[i];
+        }
+        return floats;
+    }
+}
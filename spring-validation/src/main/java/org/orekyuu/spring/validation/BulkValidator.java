@@ -0,0 +1,63 @@
+package org.orekyuu.spring.validation;
+
+import javax.validation.ConstraintViolation;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * 何十万件もの要素を持つフォームを検証する。大きなListの要素はForkJoinPoolで分けて並列に検証し、
+ * 違反は集めずに見つけた順にコールバックへ渡す。上限の数だけ見つけたら、残りは検証しない。
+ * <p>
+ * プロパティパスは {@link GeneratedValidator#validate(Object)} と同じだが、並列にするので渡す順番は決まらない
+ */
+public final class BulkValidator<T> {
+
+    public static final int DEFAULT_SPLIT_THRESHOLD = 4096;
+
+    private final GeneratedValidator<T> validator;
+    private final ForkJoinPool pool;
+    private final int splitThreshold;
+
+    public BulkValidator(GeneratedValidator<T> validator) {
+        this(validator, ForkJoinPool.commonPool(), DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    /**
+     * @param splitThreshold これより大きいListを分ける。1つのタスクが受け持つ要素の数もこれ以下になる
+     */
+    public BulkValidator(GeneratedValidator<T> validator, ForkJoinPool pool, int splitThreshold) {
+        this.validator = validator;
+        this.pool = pool;
+        this.splitThreshold = splitThreshold;
+    }
+
+    public long validate(T object, Consumer<? super ConstraintViolation<T>> callback) {
+        return validate(object, Long.MAX_VALUE, callback);
+    }
+
+    /**
+     * @param callback 同時には呼ばない
+     * @return コールバックに渡した違反の数
+     */
+    @SuppressWarnings("unchecked")
+    public long validate(T object, long maxViolations, Consumer<? super ConstraintViolation<T>> callback) {
+        if (object == null) {
+            throw new IllegalArgumentException("The object to be validated must not be null.");
+        }
+        ValidationContext context = new ValidationContext(object,
+                violation -> callback.accept((ConstraintViolation<T>) violation), maxViolations, pool, splitThreshold);
+        validator.validate(context, object, PropertyPath.ROOT);
+        return context.getReportedCount();
+    }
+
+    /**
+     * 最初に見つけたmaxViolations件だけを返す
+     */
+    public Set<ConstraintViolation<T>> validate(T object, long maxViolations) {
+        Set<ConstraintViolation<T>> violations = new HashSet<>();
+        validate(object, maxViolations, violations::add);
+        return violations;
+    }
+}
@@ -0,0 +1,19 @@
+package org.orekyuu.spring.validation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 付けたクラスのフィールドの制約を、リフレクションを使わずに検証するクラスをコンパイル時に生成する。
+ * 生成するクラスは同じパッケージの {@code 外側のクラス_クラス名Validator} で、{@code INSTANCE} から使う。
+ * <p>
+ * 検証結果はBean Validationと同じメッセージとプロパティパスになる。ただし対応しているのは
+ * Defaultグループのフィールドの制約と {@link javax.validation.Valid} だけで、カスケードは実行時の型ではなく宣言した型で行う。
+ * 対応していない制約があればコンパイルエラーにする
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateValidator {
+}
@@ -0,0 +1,27 @@
+package org.orekyuu.spring.validation;
+
+import javax.validation.ConstraintViolation;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link GenerateValidator} から生成した検証クラスの基底
+ */
+public abstract class GeneratedValidator<T> {
+
+    @SuppressWarnings("unchecked")
+    public Set<ConstraintViolation<T>> validate(T object) {
+        if (object == null) {
+            throw new IllegalArgumentException("The object to be validated must not be null.");
+        }
+        Set<ConstraintViolation<T>> violations = new HashSet<>();
+        validate(new ValidationContext(object, violation -> violations.add((ConstraintViolation<T>) violation)),
+                object, PropertyPath.ROOT);
+        return violations;
+    }
+
+    /**
+     * ネストしたオブジェクトは、ルートとそこまでのパスを引き継いでこちらを呼ぶ
+     */
+    public abstract void validate(ValidationContext context, T bean, PropertyPath path);
+}
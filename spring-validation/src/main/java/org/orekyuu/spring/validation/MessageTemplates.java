@@ -0,0 +1,74 @@
+package org.orekyuu.spring.validation;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.function.Function;
+
+/**
+ * 生成した検証クラスが、初期化時にメッセージを組み立てるのに使う。
+ * Hibernate Validatorと同じ順にリソースバンドルを引き、制約の属性を埋め込む。式言語(${...})には対応しない
+ */
+public final class MessageTemplates {
+
+    private static final String USER_BUNDLE = "ValidationMessages";
+    private static final String CONTRIBUTOR_BUNDLE = "ContributorValidationMessages";
+    private static final String DEFAULT_BUNDLE = "org.hibernate.validator.ValidationMessages";
+
+    private MessageTemplates() {
+    }
+
+    /**
+     * @param attributes 属性の名前と値を交互に並べる
+     */
+    public static String interpolate(String template, Object... attributes) {
+        Locale locale = Locale.getDefault();
+        // 利用者のバンドルだけは、置き換えた結果にまた {} があれば繰り返す
+        String message = replace(template, bundle(USER_BUNDLE, locale), true);
+        message = replace(message, bundle(CONTRIBUTOR_BUNDLE, locale), false);
+        message = replace(message, bundle(DEFAULT_BUNDLE, locale), false);
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < attributes.length; i += 2) {
+            values.put((String) attributes[i], String.valueOf(attributes[i + 1]));
+        }
+        return replace(message, values::get);
+    }
+
+    private static String replace(String message, ResourceBundle bundle, boolean recursive) {
+        if (bundle == null) {
+            return message;
+        }
+        Function<String, String> lookup = key -> bundle.containsKey(key) ? bundle.getString(key) : null;
+        String replaced = replace(message, lookup);
+        while (recursive && !replaced.equals(message)) {
+            message = replaced;
+            replaced = replace(message, lookup);
+        }
+        return replaced;
+    }
+
+    private static String replace(String message, Function<String, String> lookup) {
+        StringBuilder builder = new StringBuilder();
+        int position = 0;
+        while (true) {
+            int open = message.indexOf('{', position);
+            int close = open < 0 ? -1 : message.indexOf('}', open);
+            if (close < 0) {
+                return builder.append(message, position, message.length()).toString();
+            }
+            String value = open > 0 && message.charAt(open - 1) == '\\' ? null : lookup.apply(message.substring(open + 1, close));
+            builder.append(message, position, open).append(value != null ? value : message.substring(open, close + 1));
+            position = close + 1;
+        }
+    }
+
+    private static ResourceBundle bundle(String name, Locale locale) {
+        try {
+            return ResourceBundle.getBundle(name, locale, MessageTemplates.class.getClassLoader());
+        } catch (MissingResourceException e) {
+            return null;
+        }
+    }
+}
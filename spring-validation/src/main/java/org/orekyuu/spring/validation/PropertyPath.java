@@ -0,0 +1,195 @@
+package org.orekyuu.spring.validation;
+
+import javax.validation.ElementKind;
+import javax.validation.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 生成した検証クラスが組み立てるプロパティパス。末尾のノードから親へたどる不変のリストで、
+ * 文字列にした時はHibernate Validatorと同じく要素の添字やキーをコンテナ側のノードに付ける
+ */
+public final class PropertyPath implements Path {
+
+    public static final PropertyPath ROOT = new PropertyPath(null, null, null, null, null, null, null, null, null, null, null);
+
+    private static final String MAP_KEY = "<map key>";
+
+    private final PropertyPath parent;
+    private final ElementKind kind;
+    private final String name;
+    // このノードのコンテナ内の位置。コンテナの要素でなければcontainerはnull
+    private final Class<?> container;
+    private final Integer typeArgument;
+    private final Integer index;
+    private final Object key;
+    // at()で決めた、次に足すノードの位置
+    private final Class<?> nextContainer;
+    private final Integer nextTypeArgument;
+    private final Integer nextIndex;
+    private final Object nextKey;
+
+    private PropertyPath(PropertyPath parent, ElementKind kind, String name,
+                         Class<?> container, Integer typeArgument, Integer index, Object key,
+                         Class<?> nextContainer, Integer nextTypeArgument, Integer nextIndex, Object nextKey) {
+        this.parent = parent;
+        this.kind = kind;
+        this.name = name;
+        this.container = container;
+        this.typeArgument = typeArgument;
+        this.index = index;
+        this.key = key;
+        this.nextContainer = nextContainer;
+        this.nextTypeArgument = nextTypeArgument;
+        this.nextIndex = nextIndex;
+        this.nextKey = nextKey;
+    }
+
+    public PropertyPath property(String name) {
+        return child(ElementKind.PROPERTY, name);
+    }
+
+    /**
+     * @param name {@code <list element>} など
+     */
+    public PropertyPath containerElement(String name) {
+        return child(ElementKind.CONTAINER_ELEMENT, name);
+    }
+
+    /**
+     * 次に足すノードを、このノードが表すコンテナの要素にする
+     */
+    public PropertyPath at(Class<?> container, int typeArgument, Integer index, Object key) {
+        return new PropertyPath(parent, kind, name, this.container, this.typeArgument, this.index, this.key,
+                container, typeArgument, index, key);
+    }
+
+    private PropertyPath child(ElementKind kind, String name) {
+        return new PropertyPath(this, kind, name, nextContainer, nextTypeArgument, nextIndex, nextKey,
+                null, null, null, null);
+    }
+
+    private List<PropertyPath> segments() {
+        int size = 0;
+        for (PropertyPath p = this; p.parent != null; p = p.parent) {
+            size++;
+        }
+        PropertyPath[] segments = new PropertyPath[size];
+        for (PropertyPath p = this; p.parent != null; p = p.parent) {
+            segments[--size] = p;
+        }
+        return Arrays.asList(segments);
+    }
+
+    @Override
+    public Iterator<Node> iterator() {
+        List<PropertyPath> segments = segments();
+        Node[] nodes = new Node[segments.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new NodeView(segments.get(i), i + 1 < nodes.length ? segments.get(i + 1) : null);
+        }
+        return Arrays.asList(nodes).iterator();
+    }
+
+    private static void append(StringBuilder builder, PropertyPath segment, PropertyPath next) {
+        builder.append(segment.name);
+        if (next != null && next.container != null) {
+            if (next.kind == ElementKind.CONTAINER_ELEMENT && MAP_KEY.equals(next.name)) {
+                builder.append("<K>");
+            }
+            builder.append('[');
+            if (next.index != null) {
+                builder.append(next.index);
+            } else if (next.key != null) {
+                builder.append(next.key);
+            }
+            builder.append(']');
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<PropertyPath> segments = segments();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                builder.append('.');
+            }
+            append(builder, segments.get(i), i + 1 < segments.size() ? segments.get(i + 1) : null);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PropertyPath && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    private static final class NodeView implements PropertyNode, ContainerElementNode {
+        private final PropertyPath segment;
+        private final PropertyPath next;
+
+        NodeView(PropertyPath segment, PropertyPath next) {
+            this.segment = segment;
+            this.next = next;
+        }
+
+        @Override
+        public String getName() {
+            return segment.name;
+        }
+
+        @Override
+        public boolean isInIterable() {
+            return segment.container != null;
+        }
+
+        @Override
+        public Integer getIndex() {
+            return segment.index;
+        }
+
+        @Override
+        public Object getKey() {
+            return segment.key;
+        }
+
+        @Override
+        public ElementKind getKind() {
+            return segment.kind;
+        }
+
+        @Override
+        public Class<?> getContainerClass() {
+            return segment.container;
+        }
+
+        @Override
+        public Integer getTypeArgumentIndex() {
+            return segment.typeArgument;
+        }
+
+        @Override
+        public <T extends Node> T as(Class<T> nodeType) {
+            if (nodeType == Node.class
+                    || nodeType == PropertyNode.class && segment.kind == ElementKind.PROPERTY
+                    || nodeType == ContainerElementNode.class && segment.kind == ElementKind.CONTAINER_ELEMENT) {
+                return nodeType.cast(this);
+            }
+            throw new ClassCastException("Unable to narrow a node of kind " + segment.kind + " to " + nodeType.getName());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            append(builder, segment, next);
+            return builder.toString();
+        }
+    }
+}
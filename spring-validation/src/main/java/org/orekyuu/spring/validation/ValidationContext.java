@@ -0,0 +1,137 @@
+package org.orekyuu.spring.validation;
+
+import javax.validation.ConstraintViolation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * 1回の検証で、ルートのオブジェクトと違反の渡し先を持ち回る。
+ * プールを渡した場合は、大きなListの要素を分けて並列に検証する
+ */
+public final class ValidationContext {
+
+    /**
+     * 生成したコードが、コンテナの要素ごとに呼ぶ
+     */
+    @FunctionalInterface
+    public interface ElementVisitor<E> {
+        /**
+         * @param index Listでなければ数えた順番
+         */
+        void visit(E element, int index);
+    }
+
+    private final Object root;
+    private final Consumer<? super ConstraintViolation<?>> sink;
+    private final long maxViolations;
+    private final ForkJoinPool pool;
+    private final int splitThreshold;
+    private long reported;
+    private volatile boolean stopped;
+
+    public ValidationContext(Object root, Consumer<? super ConstraintViolation<?>> sink) {
+        this(root, sink, Long.MAX_VALUE, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxViolations この数だけ報告したら、残りは検証しない
+     * @param pool          nullなら並列にしない
+     * @param splitThreshold これより大きいListを分ける
+     */
+    public ValidationContext(Object root, Consumer<? super ConstraintViolation<?>> sink, long maxViolations,
+                             ForkJoinPool pool, int splitThreshold) {
+        this.root = root;
+        this.sink = sink;
+        this.maxViolations = maxViolations;
+        this.pool = pool;
+        this.splitThreshold = Math.max(1, splitThreshold);
+        this.stopped = maxViolations <= 0;
+    }
+
+    public Object getRoot() {
+        return root;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * 並列に検証していても、渡し先は同時には呼ばない
+     */
+    public void report(Object leaf, PropertyPath path, Object value, String message, String template) {
+        if (stopped) {
+            return;
+        }
+        synchronized (this) {
+            if (reported >= maxViolations) {
+                return;
+            }
+            reported++;
+            if (reported >= maxViolations) {
+                stopped = true;
+            }
+            sink.accept(new Violation<>(message, template, root, leaf, path, value));
+        }
+    }
+
+    public synchronized long getReportedCount() {
+        return reported;
+    }
+
+    public <E> void elements(Iterable<? extends E> values, ElementVisitor<? super E> visitor) {
+        if (pool != null && values instanceof List && values instanceof RandomAccess
+                && ((List<?>) values).size() > splitThreshold) {
+            Split<E> task = new Split<>((List<? extends E>) values, 0, ((List<?>) values).size(), visitor);
+            if (ForkJoinTask.getPool() == pool) {
+                task.invoke();
+            } else {
+                pool.invoke(task);
+            }
+            return;
+        }
+        int index = 0;
+        for (E value : values) {
+            if (stopped) {
+                return;
+            }
+            visitor.visit(value, index++);
+        }
+    }
+
+    private final class Split<E> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<? extends E> values;
+        private final int from;
+        private final int to;
+        private final ElementVisitor<? super E> visitor;
+
+        Split(List<? extends E> values, int from, int to, ElementVisitor<? super E> visitor) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= splitThreshold) {
+                for (int i = from; i < to && !stopped; i++) {
+                    visitor.visit(values.get(i), i);
+                }
+                return;
+            }
+            // 分けた片方を自分で進め、もう片方は空いているワーカーに任せる
+            List<Split<E>> halves = new ArrayList<>(2);
+            int middle = (from + to) >>> 1;
+            halves.add(new Split<>(values, from, middle, visitor));
+            halves.add(new Split<>(values, middle, to, visitor));
+            invokeAll(halves);
+        }
+    }
+}
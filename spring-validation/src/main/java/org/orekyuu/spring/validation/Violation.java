@@ -0,0 +1,92 @@
+package org.orekyuu.spring.validation;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Path;
+import javax.validation.ValidationException;
+import javax.validation.metadata.ConstraintDescriptor;
+
+/**
+ * 生成した検証クラスが報告する違反。制約のメタデータは持たないので {@link #getConstraintDescriptor()} はnull
+ */
+final class Violation<T> implements ConstraintViolation<T> {
+
+    private final String message;
+    private final String template;
+    private final T root;
+    private final Object leaf;
+    private final PropertyPath path;
+    private final Object value;
+
+    Violation(String message, String template, T root, Object leaf, PropertyPath path, Object value) {
+        this.message = message;
+        this.template = template;
+        this.root = root;
+        this.leaf = leaf;
+        this.path = path;
+        this.value = value;
+    }
+
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String getMessageTemplate() {
+        return template;
+    }
+
+    @Override
+    public T getRootBean() {
+        return root;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Class<T> getRootBeanClass() {
+        return (Class<T>) root.getClass();
+    }
+
+    @Override
+    public Object getLeafBean() {
+        return leaf;
+    }
+
+    @Override
+    public Object[] getExecutableParameters() {
+        return null;
+    }
+
+    @Override
+    public Object getExecutableReturnValue() {
+        return null;
+    }
+
+    @Override
+    public Path getPropertyPath() {
+        return path;
+    }
+
+    @Override
+    public Object getInvalidValue() {
+        return value;
+    }
+
+    @Override
+    public ConstraintDescriptor<?> getConstraintDescriptor() {
+        return null;
+    }
+
+    @Override
+    public <U> U unwrap(Class<U> type) {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        throw new ValidationException("Type " + type + " not supported for unwrapping.");
+    }
+
+    @Override
+    public String toString() {
+        return "Violation{path=" + path + ", message='" + message + "', value=" + value + "}";
+    }
+}
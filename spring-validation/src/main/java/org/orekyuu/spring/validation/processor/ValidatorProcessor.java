@@ -0,0 +1,669 @@
+package org.orekyuu.spring.validation.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link org.orekyuu.spring.validation.GenerateValidator} を付けたクラスの検証クラスを生成する。
+ * プリミティブのフィールドはボックス化せずに比べ、List/Map/Optionalの要素はリフレクションを使わずにたどる
+ */
+@SupportedAnnotationTypes(ValidatorProcessor.GENERATE)
+public class ValidatorProcessor extends AbstractProcessor {
+
+    static final String GENERATE = "org.orekyuu.spring.validation.GenerateValidator";
+    private static final String VALID = "javax.validation.Valid";
+    private static final String CONSTRAINT = "javax.validation.Constraint";
+    private static final String CONSTRAINTS = "javax.validation.constraints.";
+    private static final Set<String> SUPPORTED = Set.of("NotNull", "AssertTrue", "AssertFalse", "Min", "Max",
+            "Positive", "PositiveOrZero", "Negative", "NegativeOrZero", "NotEmpty", "NotBlank", "Size");
+    private static final String RUNTIME = "org.orekyuu.spring.validation.";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        TypeElement generate = processingEnv.getElementUtils().getTypeElement(GENERATE);
+        if (generate == null) {
+            return false;
+        }
+        for (Element element : round.getElementsAnnotatedWith(generate)) {
+            try {
+                if (element.getKind() != ElementKind.CLASS) {
+                    throw new Unsupported("@GenerateValidator can only be placed on classes", element);
+                }
+                new Generation((TypeElement) element).write();
+            } catch (Unsupported e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+            }
+        }
+        return true;
+    }
+
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        // 処理中に投げて受けるだけで、直列化はしない
+        final transient Element element;
+
+        Unsupported(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+    }
+
+    /**
+     * 型の中身を見て、どの比べ方をするかを決める
+     */
+    private enum ValueKind {
+        BOOLEAN, BOXED_BOOLEAN, INTEGRAL, BOXED_INTEGRAL, BIG_INTEGER, BIG_DECIMAL, CHAR_SEQUENCE, COLLECTION, MAP, ARRAY, OTHER
+    }
+
+    private final class Generation {
+        private final Elements elements = processingEnv.getElementUtils();
+        private final Types types = processingEnv.getTypeUtils();
+        private final TypeElement bean;
+        private final String packageName;
+        private final String className;
+        private final StringBuilder constants = new StringBuilder();
+        private final StringBuilder body = new StringBuilder();
+        private int names;
+        private int messages;
+
+        Generation(TypeElement bean) {
+            this.bean = bean;
+            this.packageName = elements.getPackageOf(bean).getQualifiedName().toString();
+            this.className = validatorName(bean);
+        }
+
+        void write() {
+            if (!bean.getTypeParameters().isEmpty()) {
+                throw new Unsupported("generic classes are not supported", bean);
+            }
+            for (Element e = bean; e instanceof TypeElement; e = e.getEnclosingElement()) {
+                if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                    throw new Unsupported("@GenerateValidator classes must not be private", bean);
+                }
+            }
+            for (TypeElement type = bean; type != null; type = superclass(type)) {
+                rejectOutsideFields(type);
+                for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                    if (!field.getModifiers().contains(Modifier.STATIC)) {
+                        field(field);
+                    }
+                }
+            }
+
+            String beanName = bean.getQualifiedName().toString();
+            String qualified = packageName.isEmpty() ? className : packageName + "." + className;
+            boolean isPublic = bean.getModifiers().contains(Modifier.PUBLIC);
+            try (Writer writer = processingEnv.getFiler().createSourceFile(qualified, bean).openWriter()) {
+                if (!packageName.isEmpty()) {
+                    writer.write("package " + packageName + ";\n\n");
+                }
+                writer.write("@javax.annotation.processing.Generated(\"" + ValidatorProcessor.class.getName() + "\")\n");
+                writer.write((isPublic ? "public " : "") + "final class " + className
+                        + " extends " + RUNTIME + "GeneratedValidator<" + beanName + "> {\n\n");
+                writer.write("    public static final " + className + " INSTANCE = new " + className + "();\n");
+                writer.write(constants.toString());
+                writer.write("\n    @Override\n");
+                writer.write("    public void validate(" + RUNTIME + "ValidationContext context, " + beanName + " bean, "
+                        + RUNTIME + "PropertyPath path) {\n");
+                writer.write(body.toString());
+                writer.write("    }\n}\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private TypeElement superclass(TypeElement type) {
+            TypeMirror superclass = type.getSuperclass();
+            if (superclass.getKind() != TypeKind.DECLARED) {
+                return null;
+            }
+            TypeElement element = (TypeElement) types.asElement(superclass);
+            return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+        }
+
+        private void field(VariableElement field) {
+            List<AnnotationMirror> constraints = constraints(field.getAnnotationMirrors(), field);
+            boolean valid = hasValid(field.getAnnotationMirrors());
+            if (!hasWork(field.asType(), constraints, valid, field)) {
+                return;
+            }
+            boolean accessible = field.getModifiers().contains(Modifier.PUBLIC)
+                    || !field.getModifiers().contains(Modifier.PRIVATE)
+                    && elements.getPackageOf(field).getQualifiedName().contentEquals(packageName);
+            if (!accessible) {
+                throw new Unsupported("constrained fields must be accessible from " + packageName, field);
+            }
+            String value = name("v");
+            line(2, "var " + value + " = bean." + field.getSimpleName() + ";");
+            String path = "path.property(\"" + field.getSimpleName() + "\")";
+            value(value, field.asType(), constraints, valid, path, path, 2, field);
+        }
+
+        /**
+         * @param path      この値の制約違反を報告するパス
+         * @param cascade   この値の中のプロパティをつなげるパス。コンテナの要素ならノードを足さずに添字だけを付ける
+         */
+        private void value(String value, TypeMirror type, List<AnnotationMirror> constraints, boolean valid,
+                           String path, String cascade, int indent, Element origin) {
+            for (AnnotationMirror constraint : constraints) {
+                constraint(value, type, constraint, path, indent, origin);
+            }
+            if (type.getKind() == TypeKind.ARRAY) {
+                // 宣言に付けた制約は、配列の要素の型にも付いたことになる
+                List<AnnotationMirror> componentConstraints = constraints(((ArrayType) type).getComponentType().getAnnotationMirrors(), origin);
+                componentConstraints.removeIf(c -> constraints.stream().anyMatch(d -> types.isSameType(c.getAnnotationType(), d.getAnnotationType())));
+                if (valid || !componentConstraints.isEmpty()) {
+                    throw new Unsupported("array elements can not be validated", origin);
+                }
+                return;
+            }
+            if (type.getKind() != TypeKind.DECLARED) {
+                if (valid) {
+                    throw new Unsupported("@Valid needs a class annotated with @GenerateValidator: " + type, origin);
+                }
+                return;
+            }
+            DeclaredType declared = (DeclaredType) type;
+            TypeElement element = (TypeElement) declared.asElement();
+            if (element.getQualifiedName().contentEquals("java.util.Optional")) {
+                TypeMirror argument = argument(declared, 0);
+                List<AnnotationMirror> elementConstraints = constraints(argument.getAnnotationMirrors(), origin);
+                boolean elementValid = valid || hasValid(argument.getAnnotationMirrors());
+                if (hasWork(argument, elementConstraints, elementValid, origin)) {
+                    // Optionalはノードを足さず、中身をそのままのパスで検証する。空なら中身はnullとして扱う
+                    String present = name("e");
+                    line(indent, "if (" + value + " != null) {");
+                    line(indent + 1, "var " + present + " = " + value + ".orElse(null);");
+                    value(present, argument, elementConstraints, elementValid, path, cascade, indent + 1, origin);
+                    line(indent, "}");
+                }
+                return;
+            }
+            DeclaredType map = container(declared, "java.util.Map");
+            if (map != null) {
+                mapEntries(value, map, valid, path, indent, origin);
+                return;
+            }
+            DeclaredType iterable = container(declared, "java.lang.Iterable");
+            if (iterable != null) {
+                iterableElements(value, iterable, types.isAssignable(types.erasure(declared), erasure("java.util.List")),
+                        valid, path, indent, origin);
+                return;
+            }
+            if (valid) {
+                if (!hasGenerateValidator(element)) {
+                    throw new Unsupported("@Valid needs a class annotated with @GenerateValidator: " + element.getQualifiedName(), origin);
+                }
+                PackageElement target = elements.getPackageOf(element);
+                String validator = (target.isUnnamed() ? "" : target.getQualifiedName() + ".") + validatorName(element);
+                line(indent, "if (" + value + " != null) {");
+                line(indent + 1, validator + ".INSTANCE.validate(context, " + value + ", " + cascade + ");");
+                line(indent, "}");
+            }
+        }
+
+        private void mapEntries(String value, DeclaredType map, boolean valid, String path, int indent, Element origin) {
+            TypeMirror keyType = argument(map, 0);
+            TypeMirror valueType = argument(map, 1);
+            List<AnnotationMirror> keyConstraints = constraints(keyType.getAnnotationMirrors(), origin);
+            boolean keyValid = hasValid(keyType.getAnnotationMirrors());
+            List<AnnotationMirror> valueConstraints = constraints(valueType.getAnnotationMirrors(), origin);
+            // Mapに付けた@Validは値に効く
+            boolean valueValid = valid || hasValid(valueType.getAnnotationMirrors());
+            boolean keyWork = hasWork(keyType, keyConstraints, keyValid, origin);
+            boolean valueWork = hasWork(valueType, valueConstraints, valueValid, origin);
+            if (!keyWork && !valueWork) {
+                return;
+            }
+            String container = name("p");
+            String entry = name("e");
+            line(indent, "if (" + value + " != null) {");
+            line(indent + 1, "var " + container + " = " + path + ";");
+            line(indent + 1, "for (var " + entry + " : " + value + ".entrySet()) {");
+            line(indent + 2, "if (context.isStopped()) {");
+            line(indent + 3, "break;");
+            line(indent + 2, "}");
+            String key = name("k");
+            line(indent + 2, "var " + key + " = " + entry + ".getKey();");
+            if (keyWork) {
+                String at = container + ".at(java.util.Map.class, 0, null, " + key + ")";
+                value(key, keyType, keyConstraints, keyValid, at + ".containerElement(\"<map key>\")", at, indent + 2, origin);
+            }
+            if (valueWork) {
+                String element = name("v");
+                line(indent + 2, "var " + element + " = " + entry + ".getValue();");
+                String at = container + ".at(java.util.Map.class, 1, null, " + key + ")";
+                value(element, valueType, valueConstraints, valueValid, at + ".containerElement(\"<map value>\")", at, indent + 2, origin);
+            }
+            line(indent + 1, "}");
+            line(indent, "}");
+        }
+
+        private void iterableElements(String value, DeclaredType iterable, boolean list, boolean valid, String path, int indent, Element origin) {
+            TypeMirror elementType = argument(iterable, 0);
+            List<AnnotationMirror> elementConstraints = constraints(elementType.getAnnotationMirrors(), origin);
+            boolean elementValid = valid || hasValid(elementType.getAnnotationMirrors());
+            if (!hasWork(elementType, elementConstraints, elementValid, origin)) {
+                return;
+            }
+            String container = name("p");
+            String element = name("e");
+            String index = name("i");
+            String at = list
+                    ? container + ".at(java.util.List.class, 0, " + index + ", null)"
+                    : container + ".at(java.lang.Iterable.class, 0, null, null)";
+            String nodeName = list ? "<list element>" : "<iterable element>";
+            // 大きなListは、並列に検証する時にcontextが分けて回す
+            line(indent, "if (" + value + " != null) {");
+            line(indent + 1, "var " + container + " = " + path + ";");
+            line(indent + 1, "context.elements(" + value + ", (" + element + ", " + index + ") -> {");
+            value(element, elementType, elementConstraints, elementValid, at + ".containerElement(\"" + nodeName + "\")", at, indent + 2, origin);
+            line(indent + 1, "});");
+            line(indent, "}");
+        }
+
+        private boolean hasWork(TypeMirror type, List<AnnotationMirror> constraints, boolean valid, Element origin) {
+            if (!constraints.isEmpty()) {
+                return true;
+            }
+            if (type.getKind() != TypeKind.DECLARED) {
+                return valid;
+            }
+            DeclaredType declared = (DeclaredType) type;
+            if (((TypeElement) declared.asElement()).getQualifiedName().contentEquals("java.util.Optional")) {
+                return elementWork(argument(declared, 0), valid, origin);
+            }
+            DeclaredType map = container(declared, "java.util.Map");
+            if (map != null) {
+                return elementWork(argument(map, 0), false, origin) || elementWork(argument(map, 1), valid, origin);
+            }
+            DeclaredType iterable = container(declared, "java.lang.Iterable");
+            if (iterable != null) {
+                return elementWork(argument(iterable, 0), valid, origin);
+            }
+            return valid;
+        }
+
+        private boolean elementWork(TypeMirror argument, boolean valid, Element origin) {
+            return hasWork(argument, constraints(argument.getAnnotationMirrors(), origin),
+                    valid || hasValid(argument.getAnnotationMirrors()), origin);
+        }
+
+        private void constraint(String value, TypeMirror type, AnnotationMirror constraint, String path, int indent, Element origin) {
+            String name = constraint.getAnnotationType().asElement().getSimpleName().toString();
+            Map<? extends ExecutableElement, ? extends AnnotationValue> attributes = elements.getElementValuesWithDefaults(constraint);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> attribute : attributes.entrySet()) {
+                if (attribute.getKey().getSimpleName().contentEquals("groups")
+                        && !((List<?>) attribute.getValue().getValue()).isEmpty()) {
+                    throw new Unsupported("only the Default group is supported", origin);
+                }
+            }
+            ValueKind kind = kind(type);
+            String condition;
+            List<Object> interpolated = new ArrayList<>();
+            switch (name) {
+                case "NotNull":
+                    if (type.getKind().isPrimitive()) {
+                        return;
+                    }
+                    condition = value + " == null";
+                    break;
+                case "AssertTrue":
+                case "AssertFalse":
+                    String test = name.equals("AssertTrue") ? "!" + value : value;
+                    if (kind == ValueKind.BOOLEAN) {
+                        condition = test;
+                    } else if (kind == ValueKind.BOXED_BOOLEAN) {
+                        condition = value + " != null && " + test;
+                    } else {
+                        throw unsupported(name, type, origin);
+                    }
+                    break;
+                case "Min":
+                case "Max":
+                    long bound = (Long) attribute(attributes, "value");
+                    interpolated.add("value");
+                    interpolated.add(bound + "L");
+                    condition = compare(value, kind, name.equals("Min") ? "<" : ">", bound, name, type, origin);
+                    break;
+                case "Positive":
+                    condition = compare(value, kind, "<=", 0, name, type, origin);
+                    break;
+                case "PositiveOrZero":
+                    condition = compare(value, kind, "<", 0, name, type, origin);
+                    break;
+                case "Negative":
+                    condition = compare(value, kind, ">=", 0, name, type, origin);
+                    break;
+                case "NegativeOrZero":
+                    condition = compare(value, kind, ">", 0, name, type, origin);
+                    break;
+                case "NotEmpty":
+                    condition = value + " == null || " + length(value, kind, name, type, origin) + " == 0";
+                    break;
+                case "NotBlank":
+                    if (kind != ValueKind.CHAR_SEQUENCE) {
+                        throw unsupported(name, type, origin);
+                    }
+                    condition = value + " == null || " + value + ".toString().trim().isEmpty()";
+                    break;
+                case "Size":
+                    int min = (Integer) attribute(attributes, "min");
+                    int max = (Integer) attribute(attributes, "max");
+                    interpolated.add("min");
+                    interpolated.add(String.valueOf(min));
+                    interpolated.add("max");
+                    interpolated.add(String.valueOf(max));
+                    String length = length(value, kind, name, type, origin);
+                    condition = value + " != null && (" + length + " < " + min + " || " + length + " > " + max + ")";
+                    break;
+                default:
+                    throw unsupported(name, type, origin);
+            }
+
+            String template = (String) attribute(attributes, "message");
+            if (template.contains("${")) {
+                throw new Unsupported("expression language in messages is not supported", origin);
+            }
+            int id = messages++;
+            constants.append("    private static final String T").append(id).append(" = ").append(literal(template)).append(";\n");
+            constants.append("    private static final String M").append(id).append(" = ")
+                    .append(RUNTIME).append("MessageTemplates.interpolate(T").append(id);
+            for (int i = 0; i < interpolated.size(); i += 2) {
+                constants.append(", ").append(literal((String) interpolated.get(i))).append(", ").append(interpolated.get(i + 1));
+            }
+            constants.append(");\n");
+            line(indent, "if (" + condition + ") {");
+            line(indent + 1, "context.report(bean, " + path + ", " + value + ", M" + id + ", T" + id + ");");
+            line(indent, "}");
+        }
+
+        private String compare(String value, ValueKind kind, String operator, long bound, String name, TypeMirror type, Element origin) {
+            switch (kind) {
+                case INTEGRAL:
+                    return value + " " + operator + " " + bound + "L";
+                case BOXED_INTEGRAL:
+                    return value + " != null && " + value + " " + operator + " " + bound + "L";
+                case BIG_INTEGER:
+                case BIG_DECIMAL:
+                    String big = kind == ValueKind.BIG_INTEGER ? "java.math.BigInteger" : "java.math.BigDecimal";
+                    return value + " != null && " + value + ".compareTo(" + big + ".valueOf(" + bound + "L)) " + operator + " 0";
+                default:
+                    throw unsupported(name, type, origin);
+            }
+        }
+
+        private String length(String value, ValueKind kind, String name, TypeMirror type, Element origin) {
+            switch (kind) {
+                case CHAR_SEQUENCE:
+                    return value + ".length()";
+                case COLLECTION:
+                case MAP:
+                    return value + ".size()";
+                case ARRAY:
+                    return value + ".length";
+                default:
+                    throw unsupported(name, type, origin);
+            }
+        }
+
+        private Unsupported unsupported(String constraint, TypeMirror type, Element origin) {
+            return new Unsupported("@" + constraint + " is not supported on " + type, origin);
+        }
+
+        private ValueKind kind(TypeMirror type) {
+            switch (type.getKind()) {
+                case BOOLEAN:
+                    return ValueKind.BOOLEAN;
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    return ValueKind.INTEGRAL;
+                case ARRAY:
+                    return ValueKind.ARRAY;
+                case DECLARED:
+                    break;
+                default:
+                    return ValueKind.OTHER;
+            }
+            String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+            switch (name) {
+                case "java.lang.Boolean":
+                    return ValueKind.BOXED_BOOLEAN;
+                case "java.lang.Byte":
+                case "java.lang.Short":
+                case "java.lang.Integer":
+                case "java.lang.Long":
+                    return ValueKind.BOXED_INTEGRAL;
+                case "java.math.BigInteger":
+                    return ValueKind.BIG_INTEGER;
+                case "java.math.BigDecimal":
+                    return ValueKind.BIG_DECIMAL;
+                default:
+            }
+            TypeMirror erased = types.erasure(type);
+            if (types.isAssignable(erased, erasure("java.lang.CharSequence"))) {
+                return ValueKind.CHAR_SEQUENCE;
+            }
+            if (types.isAssignable(erased, erasure("java.util.Collection"))) {
+                return ValueKind.COLLECTION;
+            }
+            if (types.isAssignable(erased, erasure("java.util.Map"))) {
+                return ValueKind.MAP;
+            }
+            return ValueKind.OTHER;
+        }
+
+        private List<AnnotationMirror> constraints(List<? extends AnnotationMirror> annotations, Element origin) {
+            List<AnnotationMirror> constraints = new ArrayList<>();
+            for (AnnotationMirror annotation : annotations) {
+                TypeElement type = (TypeElement) annotation.getAnnotationType().asElement();
+                String name = type.getQualifiedName().toString();
+                if (name.startsWith(CONSTRAINTS) && SUPPORTED.contains(type.getSimpleName().toString())
+                        && type.getEnclosingElement().getKind() == ElementKind.PACKAGE) {
+                    constraints.add(annotation);
+                } else if (name.startsWith(CONSTRAINTS) || isConstraint(type)) {
+                    throw new Unsupported("@" + type.getSimpleName() + " is not supported by the generated validator", origin);
+                }
+            }
+            return constraints;
+        }
+
+        /**
+         * 生成する検証クラスはフィールドしか見ないので、クラスやgetterに付いた制約は黙って落とさずにエラーにする
+         */
+        private void rejectOutsideFields(TypeElement type) {
+            if (hasConstraintOrValid(type.getAnnotationMirrors())) {
+                throw new Unsupported("class-level constraints are not supported by the generated validator", type);
+            }
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (hasConstraintOrValid(method.getAnnotationMirrors()) || hasConstraintOrValid(method.getReturnType())) {
+                    throw new Unsupported("constraints on methods are not supported by the generated validator, "
+                            + "place them on fields", method);
+                }
+            }
+        }
+
+        /**
+         * Listの要素の型のように、内側の型に付いたものも見る
+         */
+        private boolean hasConstraintOrValid(TypeMirror type) {
+            if (hasConstraintOrValid(type.getAnnotationMirrors())) {
+                return true;
+            }
+            switch (type.getKind()) {
+                case DECLARED:
+                    return ((DeclaredType) type).getTypeArguments().stream().anyMatch(this::hasConstraintOrValid);
+                case ARRAY:
+                    return hasConstraintOrValid(((ArrayType) type).getComponentType());
+                case WILDCARD:
+                    TypeMirror bound = ((WildcardType) type).getExtendsBound();
+                    return bound != null && hasConstraintOrValid(bound);
+                default:
+                    return false;
+            }
+        }
+
+        private boolean hasConstraintOrValid(List<? extends AnnotationMirror> annotations) {
+            for (AnnotationMirror annotation : annotations) {
+                TypeElement type = (TypeElement) annotation.getAnnotationType().asElement();
+                if (type.getQualifiedName().toString().startsWith(CONSTRAINTS) || isConstraint(type)
+                        || type.getQualifiedName().contentEquals(VALID)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isConstraint(TypeElement annotation) {
+            for (AnnotationMirror meta : annotation.getAnnotationMirrors()) {
+                if (((TypeElement) meta.getAnnotationType().asElement()).getQualifiedName().contentEquals(CONSTRAINT)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasValid(List<? extends AnnotationMirror> annotations) {
+            for (AnnotationMirror annotation : annotations) {
+                if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(VALID)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean hasGenerateValidator(TypeElement type) {
+            for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+                if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(GENERATE)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Object attribute(Map<? extends ExecutableElement, ? extends AnnotationValue> attributes, String name) {
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> attribute : attributes.entrySet()) {
+                if (attribute.getKey().getSimpleName().contentEquals(name)) {
+                    return attribute.getValue().getValue();
+                }
+            }
+            throw new IllegalArgumentException(name);
+        }
+
+        /**
+         * ワイルドカードは上限の型として扱う
+         */
+        private TypeMirror argument(DeclaredType type, int index) {
+            TypeMirror argument = type.getTypeArguments().get(index);
+            if (argument.getKind() == TypeKind.WILDCARD && ((WildcardType) argument).getExtendsBound() != null) {
+                return ((WildcardType) argument).getExtendsBound();
+            }
+            return argument;
+        }
+
+        /**
+         * 型引数の数が同じなら、型引数に付けた制約が残っている宣言した型のほうを使う
+         */
+        private DeclaredType container(DeclaredType type, String name) {
+            DeclaredType found = supertype(type, name);
+            if (found != null && found.getTypeArguments().size() == type.getTypeArguments().size()) {
+                return type;
+            }
+            return found;
+        }
+
+        private DeclaredType supertype(DeclaredType type, String name) {
+            TypeElement element = (TypeElement) type.asElement();
+            if (element.getQualifiedName().contentEquals(name)) {
+                return type.getTypeArguments().isEmpty() ? null : type;
+            }
+            for (TypeMirror supertype : types.directSupertypes(type)) {
+                if (supertype.getKind() == TypeKind.DECLARED) {
+                    DeclaredType found = supertype((DeclaredType) supertype, name);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private TypeMirror erasure(String name) {
+            return types.erasure(elements.getTypeElement(name).asType());
+        }
+
+        private String name(String prefix) {
+            return prefix + names++;
+        }
+
+        private void line(int indent, String code) {
+            body.append("    ".repeat(indent)).append(code).append('\n');
+        }
+    }
+
+    static String validatorName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement()) {
+            name.insert(0, e.getSimpleName() + "_");
+        }
+        return name.append("Validator").toString();
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    literal.append("\\\"");
+                    break;
+                case '\\':
+                    literal.append("\\\\");
+                    break;
+                case '\n':
+                    literal.append("\\n");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
@@ -0,0 +1,103 @@
+package org.orekyuu.spring.validation;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+public class BulkValidatorTest {
+    ForkJoinPool pool;
+
+    @BeforeEach
+    void setup() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void parallelStreamsSameViolationsAsSequential() {
+        // 1000件に1件だけ範囲外
+        ValidationSample.NestedForm form = nestedForm(200_000, 1000);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<ConstraintViolation<ValidationSample.NestedForm>> streamed = new ArrayList<>();
+        long count = new BulkValidator<>(ValidationSample_NestedFormValidator.INSTANCE, pool, 1024).validate(form, violation -> {
+            threads.add(Thread.currentThread().getName());
+            streamed.add(violation);
+        });
+
+        Assertions.assertThat(count).isEqualTo(200);
+        Assertions.assertThat(describe(streamed))
+                .containsExactlyInAnyOrderElementsOf(describe(ValidationSample_NestedFormValidator.INSTANCE.validate(form)));
+        // ValidationSampleと同じくノードの名前で絞り込める
+        Assertions.assertThat(streamed).filteredOn(conditionFactory("a")).hasSize(200).first()
+                .extracting(ConstraintViolation::getMessage).isEqualTo("must be greater than or equal to 0");
+        Assertions.assertThat(threads).hasSizeGreaterThan(1);
+    }
+
+    @Test
+    void stopsAfterMaxViolations() {
+        ValidationSample.NestedForm form = nestedForm(100_000, 1);
+        AtomicInteger visited = new AtomicInteger();
+        // 生成したコードと同じ回し方で、何件検証したかを数える
+        GeneratedValidator<ValidationSample.NestedForm> counting = new GeneratedValidator<>() {
+            @Override
+            public void validate(ValidationContext context, ValidationSample.NestedForm bean, PropertyPath path) {
+                var forms = path.property("forms");
+                context.elements(bean.forms, (element, index) -> {
+                    visited.incrementAndGet();
+                    ValidationSample_NumberFormValidator.INSTANCE.validate(context, element, forms.at(List.class, 0, index, null));
+                });
+            }
+        };
+        List<ConstraintViolation<ValidationSample.NestedForm>> streamed = new ArrayList<>();
+        long count = new BulkValidator<>(counting, pool, 1024).validate(form, 5, streamed::add);
+
+        Assertions.assertThat(count).isEqualTo(5);
+        Assertions.assertThat(streamed).hasSize(5);
+        Assertions.assertThat(visited.get()).isLessThan(2048);
+
+        // プールが無ければ1スレッドで先頭から検証する
+        Set<ConstraintViolation<ValidationSample.NestedForm>> first = new BulkValidator<>(ValidationSample_NestedFormValidator.INSTANCE, null, 0)
+                .validate(form, 3);
+        Assertions.assertThat(first).extracting(it -> it.getPropertyPath().toString())
+                .containsExactlyInAnyOrder("forms[0].a", "forms[1].a", "forms[2].a");
+    }
+
+    private static ValidationSample.NestedForm nestedForm(int size, int invalidEvery) {
+        List<ValidationSample.NumberForm> forms = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ValidationSample.NumberForm form = new ValidationSample.NumberForm();
+            form.a = i % invalidEvery == 0 ? -1 : 50;
+            forms.add(form);
+        }
+        return new ValidationSample.NestedForm(forms);
+    }
+
+    private static List<String> describe(Iterable<ConstraintViolation<ValidationSample.NestedForm>> violations) {
+        return StreamSupport.stream(violations.spliterator(), false)
+                .map(it -> it.getPropertyPath() + " " + it.getMessage() + " " + it.getInvalidValue())
+                .collect(Collectors.toList());
+    }
+
+    private Predicate<ConstraintViolation<?>> conditionFactory(String fieldName) {
+        return it -> StreamSupport.stream(it.getPropertyPath().spliterator(), false)
+                .map(Path.Node::getName)
+                .anyMatch(fieldName::equals);
+    }
+}
@@ -0,0 +1,154 @@
+package org.orekyuu.spring.validation;
+
+import org.assertj.core.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Path;
+import javax.validation.Valid;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import javax.validation.constraints.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+public class GeneratedValidatorTest {
+    Validator validator;
+
+    @BeforeEach
+    void setup() {
+        validator = Validation.buildDefaultValidatorFactory().getValidator();
+    }
+
+    @GenerateValidator
+    static class AllConstraintsForm {
+        @NotNull
+        String name;
+        @NotBlank
+        String title;
+        @Size(min = 2, max = 3)
+        List<@Positive Integer> counts;
+        Set<@NotEmpty String> tags;
+        Map<@NotBlank String, ValidationSample.@Valid NumberForm> byName;
+        Optional<ValidationSample.@Valid NumberForm> optionalForm;
+        List<@NotNull @Size(max = 1) List<@NotEmpty String>> nested;
+        @AssertTrue
+        boolean accepted;
+        @AssertFalse
+        Boolean rejected;
+        @Min(10)
+        BigInteger big;
+        @NegativeOrZero
+        BigDecimal decimal;
+        @PositiveOrZero
+        short small;
+        @Negative
+        Long negative;
+        @Size(max = 2)
+        int[] numbers;
+        @NotEmpty(message = "custom \"message\"")
+        String custom;
+    }
+
+    @Test
+    void numberForm() {
+        for (long a : new long[]{1000, 100, 50, 0, -100, Long.MIN_VALUE}) {
+            ValidationSample.NumberForm form = numberForm(a);
+            assertSame(validator.validate(form), ValidationSample_NumberFormValidator.INSTANCE.validate(form));
+        }
+    }
+
+    @Test
+    void nested() {
+        List<ValidationSample.NestedForm> forms = List.of(
+                new ValidationSample.NestedForm(List.of(numberForm(-1), numberForm(50), numberForm(1000))),
+                new ValidationSample.NestedForm(new LinkedList<>(List.of(numberForm(-1)))),
+                new ValidationSample.NestedForm(List.of()),
+                new ValidationSample.NestedForm(null));
+        for (ValidationSample.NestedForm form : forms) {
+            assertSame(validator.validate(form), ValidationSample_NestedFormValidator.INSTANCE.validate(form));
+        }
+    }
+
+    @Test
+    void extractor() {
+        List<ValidationSample.DefaultExtractorForm> forms = List.of(
+                new ValidationSample.DefaultExtractorForm(List.of("str", ""), Map.of("key", -1), Optional.of("")),
+                new ValidationSample.DefaultExtractorForm(List.of(), Map.of("", 200, "key", 50), Optional.empty()),
+                new ValidationSample.DefaultExtractorForm(null, null, null));
+        for (ValidationSample.DefaultExtractorForm form : forms) {
+            assertSame(validator.validate(form), ValidationSample_DefaultExtractorFormValidator.INSTANCE.validate(form));
+        }
+
+        // ValidationSampleと同じくノードの名前で絞り込める
+        var generated = ValidationSample_DefaultExtractorFormValidator.INSTANCE.validate(forms.get(0));
+        Assertions.assertThat(generated).filteredOn(it -> names(it.getPropertyPath()).contains("map")).hasSize(1).first()
+                .extracting(ConstraintViolation::getMessage).isEqualTo("must be greater than or equal to 0");
+    }
+
+    @Test
+    void allConstraints() {
+        AllConstraintsForm invalid = new AllConstraintsForm();
+        invalid.title = " ";
+        invalid.counts = List.of(1, 0, -2, 3);
+        invalid.tags = new TreeSet<>(Set.of("", "tag"));
+        invalid.byName = new TreeMap<>(Map.of("", numberForm(50), "b", numberForm(-5)));
+        invalid.optionalForm = Optional.of(numberForm(500));
+        invalid.nested = Arrays.asList(List.of("", "x"), null, List.of(""));
+        invalid.rejected = true;
+        invalid.big = BigInteger.ONE;
+        invalid.decimal = new BigDecimal("0.5");
+        invalid.small = -1;
+        invalid.negative = 0L;
+        invalid.numbers = new int[3];
+        invalid.custom = "";
+
+        AllConstraintsForm valid = new AllConstraintsForm();
+        valid.name = "name";
+        valid.title = "title";
+        valid.counts = List.of(1, 2);
+        valid.accepted = true;
+        valid.big = BigInteger.TEN;
+        valid.decimal = BigDecimal.ZERO;
+        valid.optionalForm = Optional.empty();
+        valid.custom = "custom";
+
+        for (AllConstraintsForm form : List.of(invalid, valid, new AllConstraintsForm())) {
+            assertSame(validator.validate(form), GeneratedValidatorTest_AllConstraintsFormValidator.INSTANCE.validate(form));
+        }
+        Assertions.assertThat(GeneratedValidatorTest_AllConstraintsFormValidator.INSTANCE.validate(valid)).isEmpty();
+    }
+
+    private static ValidationSample.NumberForm numberForm(long a) {
+        ValidationSample.NumberForm form = new ValidationSample.NumberForm();
+        form.a = a;
+        return form;
+    }
+
+    private static <T> void assertSame(Set<ConstraintViolation<T>> expected, Set<ConstraintViolation<T>> actual) {
+        Assertions.assertThat(describe(actual)).containsExactlyInAnyOrderElementsOf(describe(expected));
+    }
+
+    private static <T> List<String> describe(Set<ConstraintViolation<T>> violations) {
+        return violations.stream()
+                .map(it -> String.join(" | ", it.getPropertyPath().toString(), nodes(it.getPropertyPath()), it.getMessage(),
+                        it.getMessageTemplate(), String.valueOf(it.getInvalidValue()), String.valueOf(it.getLeafBean()),
+                        String.valueOf(it.getRootBean())))
+                .collect(Collectors.toList());
+    }
+
+    private static String nodes(Path path) {
+        return StreamSupport.stream(path.spliterator(), false)
+                .map(node -> String.join(",", node.getKind().toString(), node.getName(), String.valueOf(node.getIndex()),
+                        String.valueOf(node.getKey()), String.valueOf(node.isInIterable()), node.toString()))
+                .collect(Collectors.joining(" "));
+    }
+
+    private static List<String> names(Path path) {
+        return StreamSupport.stream(path.spliterator(), false).map(Path.Node::getName).collect(Collectors.toList());
+    }
+}
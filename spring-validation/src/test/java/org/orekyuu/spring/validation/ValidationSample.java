@@ -38,6 +38,7 @@ public class ValidationSample {
                 .isEqualTo("must not be null");
     }
 
+    @GenerateValidator
     static class NumberForm {
         @Max(100)
         @Min(0)
@@ -67,6 +68,7 @@ public class ValidationSample {
     /**
      * https://beanvalidation.org/2.0/spec/#valueextractordefinition-builtinvalueextractors
      */
+    @GenerateValidator
     static class DefaultExtractorForm {
         List<@NotEmpty String> stringList;
 
@@ -103,6 +105,7 @@ public class ValidationSample {
                 .anyMatch(fieldName::equals);
     }
 
+    @GenerateValidator
     static class NestedForm {
         @NotEmpty
         @Valid
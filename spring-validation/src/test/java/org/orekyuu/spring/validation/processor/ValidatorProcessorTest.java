@@ -0,0 +1,106 @@
+package org.orekyuu.spring.validation.processor;
+
+import org.hibernate.validator.constraints.ScriptAssert;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.orekyuu.spring.validation.GenerateValidator;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ValidatorProcessorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rejectsClassLevelConstraints() {
+        assertThat(errors("ScriptForm",
+                "@org.hibernate.validator.constraints.ScriptAssert(lang = \"javascript\", script = \"true\")\n"
+                        + "@org.orekyuu.spring.validation.GenerateValidator\n"
+                        + "public class ScriptForm {\n"
+                        + "    @javax.validation.constraints.NotNull String name;\n"
+                        + "}\n"))
+                .containsExactly("class-level constraints are not supported by the generated validator");
+    }
+
+    @Test
+    void rejectsGetterConstraints() {
+        assertThat(errors("GetterForm",
+                "@org.orekyuu.spring.validation.GenerateValidator\n"
+                        + "public class GetterForm {\n"
+                        + "    String name;\n"
+                        + "    @javax.validation.constraints.NotNull\n"
+                        + "    public String getName() { return name; }\n"
+                        + "}\n"))
+                .containsExactly("constraints on methods are not supported by the generated validator, place them on fields");
+        assertThat(errors("ValidGetterForm",
+                "@org.orekyuu.spring.validation.GenerateValidator\n"
+                        + "public class ValidGetterForm {\n"
+                        + "    java.util.List<String> names;\n"
+                        + "    public java.util.List<@javax.validation.constraints.NotBlank String> getNames() { return names; }\n"
+                        + "}\n"))
+                .containsExactly("constraints on methods are not supported by the generated validator, place them on fields");
+    }
+
+    @Test
+    void acceptsFieldConstraintsAndPlainMethods() {
+        assertThat(errors("FieldForm",
+                "@org.orekyuu.spring.validation.GenerateValidator\n"
+                        + "public class FieldForm {\n"
+                        + "    @javax.validation.constraints.NotNull String name;\n"
+                        + "    public String getName() { return name; }\n"
+                        + "}\n"))
+                .isEmpty();
+    }
+
+    private List<String> errors(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics,
+                List.of("-proc:only", "-s", dir.toString(), "-classpath", classPath()),
+                null, List.of(file));
+        task.setProcessors(List.of(new ValidatorProcessor()));
+        task.call();
+        return diagnostics.getDiagnostics().stream()
+                .filter(d -> d.getKind() == Diagnostic.Kind.ERROR)
+                .map(d -> d.getMessage(Locale.ROOT))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * テストの実行方法によってはjava.class.pathに載っていないので、使うクラスの置き場所から作る
+     */
+    private static String classPath() {
+        return Stream.of(GenerateValidator.class, NotNull.class, ScriptAssert.class)
+                .map(type -> {
+                    try {
+                        return Path.of(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+                    } catch (URISyntaxException e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+}